@@ -55,6 +55,10 @@
         <p><label for="targetPath">Target space:</label> <input type="text" id="targetPath" name="targetPath" size="80" required/></p>
         <p><label for="replaceExisting">Replace:</label> <input type="checkbox" id="replaceExisting" name="replaceExisting" value="true" unchecked/> checked means files that already exist in the repository will be updated or replaced, depending on whether they're versioned or not</p>
         <p><label for="dryRun">Dry run:</label> <input type="checkbox" id="dryRun" name="dryRun" value="true" unchecked/> checked means run through the process without writing to the repository</p>
+        <p><label for="continueOnError">Continue on error:</label> <input type="checkbox" id="continueOnError" name="continueOnError" value="true" unchecked/> checked means items that fail to import are logged and skipped, rather than stopping the import</p>
+        <p><label for="targetIsEmpty">Target is empty:</label> <input type="checkbox" id="targetIsEmpty" name="targetIsEmpty" value="true" unchecked/> checked means the target space is known to be empty, so items are created without first checking whether they already exist</p>
+        <p><label for="behaviourProfile">Behaviour profile:</label> <input type="text" id="behaviourProfile" name="behaviourProfile" size="20"/> the behaviour profile to use (e.g. "bulk-load"), or blank for the default</p>
+        <p><label for="metadataOnly">Metadata only:</label> <input type="checkbox" id="metadataOnly" name="metadataOnly" value="true" unchecked/> checked means only the metadata of items that already exist in the repository is updated - nothing is created, and content and versions are left untouched</p>
       </fieldset>
 
       <p><button class="button green" type="submit" name="submit">&#9658; Initiate Bulk Import</button></p>
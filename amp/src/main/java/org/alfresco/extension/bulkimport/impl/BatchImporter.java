@@ -19,6 +19,8 @@
 
 package org.alfresco.extension.bulkimport.impl;
 
+import java.util.Map;
+import java.util.concurrent.RunnableFuture;
 
 import org.alfresco.service.cmr.repository.NodeRef;
 
@@ -32,20 +34,56 @@ import org.alfresco.service.cmr.repository.NodeRef;
  */
 public interface BatchImporter
 {
+    /**
+     * Called at the start of each import, before any batches are imported, so that any per-import state can be
+     * reset.
+     * 
+     * @param target           The nodeRef of the target space of the import <i>(must not be null)</i>.
+     * @param targetIsEmpty    Flag indicating that the caller has asserted that the target space is empty, so that
+     *                         items in it don't need to be checked for existence first.
+     * @param behaviourProfile The name of the behaviour profile to use for the import <i>(may be null or empty, in
+     *                         which case the default profile is used)</i>.
+     * @param knownFolders     The folders created or found by a previous run of the same import, keyed by normalised
+     *                         source-relative path <i>(may be null)</i>.  They needn't be looked up again.
+     */
+    public void importStarted(NodeRef target, boolean targetIsEmpty, String behaviourProfile, Map<String, NodeRef> knownFolders);
+    
+    
+    /**
+     * Starts preparing the given batch for import.  Preparation covers loading metadata, resolving QNames and
+     * optionally reading small content into memory (i.e. work that doesn't need to happen in the batch's transaction),
+     * and may proceed in the background while earlier batches are still being imported.
+     * 
+     * Callers that need the prepared batch should run the returned task before waiting on it.  If preparation has
+     * already started in the background that's a no-op, but if it hasn't, the batch is prepared by the caller rather
+     * than waiting in the preparation queue.
+     * 
+     * @param userId          The userId with which to prepare the batch <i>(must not be null, empty or blank, and must be a valid Alfresco userId)</i>.
+     * @param batch           The batch to prepare <i>(must not be null)</i>.
+     * @param prefetchContent Flag indicating whether content may be read in advance (i.e. whether content is going to be written).
+     * @return The (possibly not yet started) preparation task <i>(will not be null)</i>.
+     */
+    public RunnableFuture<PreparedBatch> prepareBatch(String userId, Batch batch, boolean prefetchContent);
+    
+    
     /**
      * A method that will import a single batch of <code>BulkImportItem</code>s.
      * 
      * @param userId                The userId with which to run the import <i>(must not be null, empty or blank, and must be a valid Alfresco userId)</i>.
      * @param target                The nodeRef of the target space in which to perform the import <i>(must not be null, and the target space must exist and be writeable)</i>.
-     * @param batch                 The batch to import <i>(may be null or empty, though both of those states result in nothing happening)</i>.
+     * @param preparedBatch         The prepared batch to import, as returned by {@link #prepareBatch(String, Batch, boolean)} <i>(must not be null)</i>.
      * @param replaceExisting       Flag indicating whether existing nodes are to be replaced or skipped.
      * @param dryRun                Flag indicating that the import should be a "dry run" (nothing written to the repository).
+     * @param metadataOnly          Flag indicating that only the metadata of nodes that already exist is to be updated
+     *                              (nothing is created, and content and version history are left untouched).
+     * @return The folders the batch created or found, keyed by normalised source-relative path <i>(will not be null)</i>.
      * @throws InterruptedException If the batch is interrupted during processing.
      */
-    public void importBatch(String  userId,
-                            NodeRef target,
-                            Batch   batch,
-                            boolean replaceExisting,
-                            boolean dryRun)
+    public Map<String, NodeRef> importBatch(String        userId,
+                            NodeRef       target,
+                            PreparedBatch preparedBatch,
+                            boolean       replaceExisting,
+                            boolean       dryRun,
+                            boolean       metadataOnly)
         throws InterruptedException;
 }
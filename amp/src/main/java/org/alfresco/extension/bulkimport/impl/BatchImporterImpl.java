@@ -19,19 +19,41 @@
 
 package org.alfresco.extension.bulkimport.impl;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.Serializable;
 import java.math.BigDecimal;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.Semaphore;
 
 import org.alfresco.service.cmr.version.Version;
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import org.alfresco.model.ContentModel;
+import org.alfresco.repo.content.AbstractContentWriter;
+import org.alfresco.repo.content.ContentContext;
+import org.alfresco.repo.content.ContentStore;
 import org.alfresco.repo.policy.BehaviourFilter;
 import org.alfresco.repo.security.authentication.AuthenticationUtil;
 import org.alfresco.repo.security.authentication.AuthenticationUtil.RunAsWork;
@@ -39,22 +61,33 @@ import org.alfresco.repo.transaction.RetryingTransactionHelper;
 import org.alfresco.repo.transaction.RetryingTransactionHelper.RetryingTransactionCallback;
 import org.alfresco.repo.version.VersionModel;
 import org.alfresco.service.ServiceRegistry;
+import org.alfresco.service.cmr.dictionary.DictionaryService;
+import org.alfresco.service.cmr.dictionary.PropertyDefinition;
 import org.alfresco.service.cmr.model.FileInfo;
 import org.alfresco.service.cmr.model.FileNotFoundException;
+import org.alfresco.service.cmr.repository.ChildAssociationRef;
+import org.alfresco.service.cmr.repository.ContentData;
+import org.alfresco.service.cmr.repository.ContentReader;
 import org.alfresco.service.cmr.repository.ContentService;
 import org.alfresco.service.cmr.repository.ContentWriter;
+import org.alfresco.service.cmr.repository.DuplicateChildNodeNameException;
 import org.alfresco.service.cmr.repository.InvalidNodeRefException;
 import org.alfresco.service.cmr.repository.NodeRef;
 import org.alfresco.service.cmr.repository.NodeService;
 import org.alfresco.service.cmr.repository.StoreRef;
+import org.alfresco.service.cmr.repository.datatype.DefaultTypeConverter;
+import org.alfresco.service.cmr.repository.datatype.TypeConversionException;
+import org.alfresco.service.cmr.rule.RuleService;
 import org.alfresco.service.cmr.version.VersionService;
 import org.alfresco.service.cmr.version.VersionType;
 import org.alfresco.service.namespace.NamespaceService;
 import org.alfresco.service.namespace.QName;
 
 import org.alfresco.extension.bulkimport.BulkImportStatus;
+import org.alfresco.extension.bulkimport.impl.PreparedBatch.PreparedVersion;
 import org.alfresco.extension.bulkimport.source.BulkImportItem;
 import org.alfresco.extension.bulkimport.source.BulkImportItemVersion;
+import org.alfresco.extension.bulkimport.source.ReadableBulkImportItemVersion;
 
 import static org.alfresco.extension.bulkimport.util.Utils.*;
 import static org.alfresco.extension.bulkimport.util.LogUtils.*;
@@ -71,64 +104,345 @@ public final class BatchImporterImpl
 {
     private final static Log log = LogFactory.getLog(BatchImporterImpl.class);
 
-    private final static String REGEX_SPLIT_PATH_ELEMENTS = "[\\\\/]+";
+    private final static String REGEX_SPLIT_PATH_ELEMENTS   = "[\\\\/]+";
+    private final static String CHECKSUM_ALGORITHM          = "SHA-256";
+    private final static int    CHECKSUM_BUFFER_SIZE        = 64 * 1024;
+    private final static String PREPARER_THREAD_NAME_PREFIX = "BulkImport-Preparer-";
 
-    private final ServiceRegistry serviceRegistry;
-    private final BehaviourFilter behaviourFilter;
-    private final NodeService     nodeService;
-    private final VersionService  versionService;
-    private final ContentService  contentService;
+    private final ServiceRegistry   serviceRegistry;
+    private final BehaviourFilter   behaviourFilter;
+    private final NodeService       nodeService;
+    private final DictionaryService dictionaryService;
+    private final VersionService    versionService;
+    private final ContentService    contentService;
+    private final RuleService       ruleService;
+    private final NamespaceService  namespaceService;
+    private final ContentStore      contentStore;
     
     
     private final WritableBulkImportStatus importStatus;
+    private final Semaphore                transactionSemaphore;
+    private final ParentNodeRefCache       parentCache;
+    private final boolean                  compareChecksums;
+    private final ExecutorService          preparationThreadPool;
+    private final long                     prefetchContentMaxSize;
+    
+    private final Map<String, BehaviourProfile> behaviourProfiles        = new HashMap<>();
+    private final String                        defaultBehaviourProfile;
+    private volatile BehaviourProfile           behaviourProfile         = null;
+    private volatile List<QName>                disabledBehaviourClasses = Collections.emptyList();
     
     
     public BatchImporterImpl(final ServiceRegistry          serviceRegistry,
                              final BehaviourFilter          behaviourFilter,
+                             final ContentStore             contentStore,
                              final WritableBulkImportStatus importStatus)
+    {
+        this(serviceRegistry, behaviourFilter, contentStore, importStatus, -1, -1, null, null, false, -1, -1);
+    }
+    
+    
+    /**
+     * @param contentStore              The content store that streamed content is written to <i>(must not be null,
+     *                                  and must be the store used by the content service)</i>.
+     * @param maxConcurrentTransactions The maximum number of batches that may be in a transaction at once.  This is
+     *                                  independent of the size of the import thread pool, so that a large pool (e.g.
+     *                                  of virtual threads) doesn't swamp the database connection pool.  &lt;= 0 means
+     *                                  unlimited.
+     * @param parentCacheSize           The maximum number of folder NodeRefs to cache.  &lt;= 0 means the default.
+     * @param behaviourProfiles         The behaviour profiles that imports may select from <i>(may be null)</i>.
+     * @param defaultBehaviourProfile   The name of the behaviour profile to use when an import doesn't select one
+     *                                  <i>(may be null or empty, meaning only <code>cm:auditable</code> behaviours are
+     *                                  disabled)</i>.
+     * @param compareContentChecksums   Flag indicating whether, when replacing a file whose content appears unchanged
+     *                                  (same size and modification date), the checksums of the existing and new
+     *                                  content are also compared before the new content is skipped.
+     * @param prepareThreadPoolSize     The number of threads that prepare batches (load metadata and resolve QNames)
+     *                                  before their transactions start.  &lt;= 0 means each batch is prepared by the
+     *                                  thread that imports it.
+     * @param prefetchContentMaxSize    The size (in bytes) of the largest file whose content is read into memory while
+     *                                  its batch is being prepared, so that the batch's transaction doesn't have to
+     *                                  wait on the source for it.  &lt;= 0 means content is never read in advance.
+     */
+    public BatchImporterImpl(final ServiceRegistry          serviceRegistry,
+                             final BehaviourFilter          behaviourFilter,
+                             final ContentStore             contentStore,
+                             final WritableBulkImportStatus importStatus,
+                             final int                      maxConcurrentTransactions,
+                             final int                      parentCacheSize,
+                             final List<BehaviourProfile>   behaviourProfiles,
+                             final String                   defaultBehaviourProfile,
+                             final boolean                  compareContentChecksums,
+                             final int                      prepareThreadPoolSize,
+                             final long                     prefetchContentMaxSize)
     {
         // PRECONDITIONS
         assert serviceRegistry != null : "serviceRegistry must not be null.";
         assert behaviourFilter != null : "behaviourFilter must not be null.";
+        assert contentStore    != null : "contentStore must not be null.";
         assert importStatus    != null : "importStatus must not be null.";
         
         // Body
         this.serviceRegistry = serviceRegistry;
         this.behaviourFilter = behaviourFilter;
+        this.contentStore    = contentStore;
         this.importStatus    = importStatus;
         
-        this.nodeService    = serviceRegistry.getNodeService();
-        this.versionService = serviceRegistry.getVersionService();
-        this.contentService = serviceRegistry.getContentService();
+        this.transactionSemaphore = maxConcurrentTransactions <= 0 ? null : new Semaphore(maxConcurrentTransactions, true);
+        this.parentCache          = new ParentNodeRefCache(parentCacheSize);
+        this.compareChecksums     = compareContentChecksums;
+        
+        this.preparationThreadPool  = prepareThreadPoolSize <= 0 ? null : Executors.newFixedThreadPool(prepareThreadPoolSize, new BulkImportThreadFactory(PREPARER_THREAD_NAME_PREFIX, false));
+        this.prefetchContentMaxSize = prefetchContentMaxSize;
+        
+        this.defaultBehaviourProfile = defaultBehaviourProfile == null || defaultBehaviourProfile.trim().length() == 0 ? null : defaultBehaviourProfile.trim();
+        
+        if (behaviourProfiles != null)
+        {
+            for (final BehaviourProfile behaviourProfile : behaviourProfiles)
+            {
+                this.behaviourProfiles.put(behaviourProfile.getName(), behaviourProfile);
+            }
+        }
+        
+        if (this.defaultBehaviourProfile != null && !this.behaviourProfiles.containsKey(this.defaultBehaviourProfile))
+        {
+            throw new IllegalArgumentException("The default behaviour profile '" + this.defaultBehaviourProfile + "' has not been configured.  Configured profiles are: " + String.valueOf(this.behaviourProfiles.keySet()));
+        }
+        
+        this.nodeService       = serviceRegistry.getNodeService();
+        this.dictionaryService = serviceRegistry.getDictionaryService();
+        this.versionService    = serviceRegistry.getVersionService();
+        this.contentService    = serviceRegistry.getContentService();
+        this.ruleService       = serviceRegistry.getRuleService();
+        this.namespaceService  = serviceRegistry.getNamespaceService();
     }
     
 
     /**
-     * @see org.alfresco.extension.bulkimport.impl.BatchImporter#importBatch(String, NodeRef, Batch, boolean, boolean)
+     * @see org.alfresco.extension.bulkimport.impl.BatchImporter#importStarted(NodeRef, boolean, String, Map)
      */
     @Override
-    public final void importBatch(final String  userId,
-                                  final NodeRef target,
-                                  final Batch   batch,
-                                  final boolean replaceExisting,
-                                  final boolean dryRun)
+    public void importStarted(final NodeRef target, final boolean targetIsEmpty, final String behaviourProfileName, final Map<String, NodeRef> knownFolders)
+    {
+        final String profileName = behaviourProfileName == null || behaviourProfileName.trim().length() == 0 ? defaultBehaviourProfile : behaviourProfileName.trim();
+        
+        if (profileName == null)
+        {
+            behaviourProfile         = null;
+            disabledBehaviourClasses = Collections.emptyList();
+        }
+        else
+        {
+            final BehaviourProfile profile = behaviourProfiles.get(profileName);
+            
+            if (profile == null)
+            {
+                throw new IllegalArgumentException("Behaviour profile '" + profileName + "' has not been configured.  Configured profiles are: " + String.valueOf(behaviourProfiles.keySet()));
+            }
+            
+            final List<QName> classes = new ArrayList<>(profile.getDisabledClasses().size());
+            
+            for (final String disabledClass : profile.getDisabledClasses())
+            {
+                classes.add(createQName(serviceRegistry, disabledClass));
+            }
+            
+            if (info(log)) info(log, "Using behaviour profile " + String.valueOf(profile) + ".");
+            
+            behaviourProfile         = profile;
+            disabledBehaviourClasses = classes;
+        }
+        
+        parentCache.clear();   // The previous import's folders may since have been moved or deleted
+        
+        // Note: the folders of a previous run of this import aren't known empty, since that run may have committed items the journal didn't record
+        if (knownFolders != null && !knownFolders.isEmpty())
+        {
+            if (debug(log)) debug(log, "Seeding the parent folder cache with " + knownFolders.size() + " folders from a previous run of this import.");
+            parentCache.putAll(knownFolders);
+        }
+        
+        if (targetIsEmpty)
+        {
+            if (debug(log)) debug(log, "Target space " + String.valueOf(target) + " is known to be empty - existence checks will be skipped for items in it.");
+            parentCache.addKnownEmpty(Collections.singleton(target));
+        }
+    }
+    
+    
+    /**
+     * Stops the preparation threads, if any.  Called by Spring when the context is closed, so that the threads don't
+     * outlive this bean (e.g. across context refreshes or redeployments).
+     */
+    public void destroy()
+    {
+        if (preparationThreadPool != null)
+        {
+            preparationThreadPool.shutdownNow();
+        }
+    }
+    
+    
+    /**
+     * @see org.alfresco.extension.bulkimport.impl.BatchImporter#prepareBatch(String, Batch, boolean)
+     */
+    @Override
+    public RunnableFuture<PreparedBatch> prepareBatch(final String userId, final Batch batch, final boolean prefetchContent)
+    {
+        final Callable<PreparedBatch> preparation = new Callable<PreparedBatch>()
+        {
+            @Override
+            public PreparedBatch call()
+                throws Exception
+            {
+                return(AuthenticationUtil.runAs(new RunAsWork<PreparedBatch>()
+                {
+                    @Override
+                    public PreparedBatch doWork()
+                        throws Exception
+                    {
+                        return(prepareBatchImpl(batch, prefetchContent));
+                    }
+                }, userId));
+            }
+        };
+        
+        final RunnableFuture<PreparedBatch> result = new FutureTask<>(preparation);
+        
+        // Note: without a preparation pool, the batch is prepared by whichever thread runs the task first (normally the import thread)
+        if (preparationThreadPool != null)
+        {
+            preparationThreadPool.execute(result);
+        }
+        
+        return(result);
+    }
+    
+    
+    /*
+     * Does everything that doesn't need a transaction: loads and parses metadata (which for some sources also involves
+     * stat'ing files, guessing mimetypes and constructing in-place content properties), resolves QNames and, if
+     * requested, reads small content into memory.  Content is not written to the content store here, since nothing
+     * would clean it up if the batch were never imported.
+     * 
+     * Note: a version that can't be prepared is simply left unprepared, so that the failure is reported against the
+     * item, in the same way as any other failure during import.
+     */
+    private final PreparedBatch prepareBatchImpl(final Batch batch, final boolean prefetchContent)
+        throws InterruptedException
+    {
+        final long                                        start    = System.nanoTime();
+        final Map<BulkImportItemVersion, PreparedVersion> versions = new IdentityHashMap<>();
+        
+        for (final BulkImportItem<BulkImportItemVersion> item : batch)
+        {
+            if (importStatus.isStopping() || Thread.currentThread().isInterrupted()) throw new InterruptedException(Thread.currentThread().getName() + " was interrupted. Terminating early.");
+            
+            for (final BulkImportItemVersion version : item.getVersions())
+            {
+                try
+                {
+                    versions.put(version, prepareVersion(version, prefetchContent && !item.isDirectory() ? item.getName() : null));
+                }
+                catch (final RuntimeException re)
+                {
+                    if (debug(log)) debug(log, "Unable to prepare " + String.valueOf(item) + " - it will be prepared during import instead.", re);
+                }
+            }
+        }
+        
+        if (trace(log)) trace(log, String.valueOf(batch) + " prepared in " + getDurationInSeconds(System.nanoTime() - start) + ".");
+        
+        return(new PreparedBatch(batch, versions));
+    }
+    
+    
+    /*
+     * Note: contentName is the name to guess the mimetype from if the content is read in advance, or null if it mustn't be.
+     */
+    private final PreparedVersion prepareVersion(final BulkImportItemVersion version, final String contentName)
+    {
+        final String             type         = version.getType();
+        final Set<String>        aspects      = version.getAspects();
+        final Set<QName>         aspectQNames = new LinkedHashSet<>();
+        Map<QName, Serializable> properties   = null;
+        
+        if (aspects != null)
+        {
+            for (final String aspect : aspects)
+            {
+                aspectQNames.add(createQName(serviceRegistry, aspect));
+            }
+        }
+        
+        if (version.hasMetadata() && version.getMetadata() != null)
+        {
+            properties = qNameMetadata(version.getMetadata());
+        }
+        
+        final byte[] content = contentName == null ? null : prefetchContent(version);
+        
+        return(new PreparedVersion(type == null ? null : createQName(serviceRegistry, type), aspectQNames, properties, content, contentName));
+    }
+    
+    
+    /*
+     * Reads the content of the given version into memory, provided it's small enough and the source supports reading
+     * it directly.  Returns null otherwise, or if the content can't be read (in which case it's streamed during import
+     * instead, and any failure is reported then).
+     */
+    private final byte[] prefetchContent(final BulkImportItemVersion version)
+    {
+        byte[] result = null;
+        
+        if (prefetchContentMaxSize > 0                        &&
+            version instanceof ReadableBulkImportItemVersion &&
+            version.hasContent()                              &&
+            !version.contentIsInPlace()                       &&
+            version.sizeInBytes() <= prefetchContentMaxSize)
+        {
+            try (final InputStream content = ((ReadableBulkImportItemVersion)version).getContentInputStream())
+            {
+                result = IOUtils.toByteArray(content);
+            }
+            catch (final IOException ioe)
+            {
+                if (debug(log)) debug(log, "Unable to read the content of '" + version.getContentSource() + "' in advance - it will be streamed during import instead.", ioe);
+            }
+        }
+        
+        return(result);
+    }
+    
+    
+    /**
+     * @see org.alfresco.extension.bulkimport.impl.BatchImporter#importBatch(String, NodeRef, PreparedBatch, boolean, boolean, boolean)
+     */
+    @Override
+    public final Map<String, NodeRef> importBatch(final String        userId,
+                                  final NodeRef       target,
+                                  final PreparedBatch preparedBatch,
+                                  final boolean       replaceExisting,
+                                  final boolean       dryRun,
+                                  final boolean       metadataOnly)
         throws InterruptedException,
                OutOfOrderBatchException
     {
         long start = System.nanoTime();
         
+        final Batch  batch     = preparedBatch.getBatch();
         final String batchName = "Batch #" + batch.getNumber() + ", " + batch.size() + " items, " + batch.sizeInBytes() + " bytes.";
         if (debug(log)) debug(log, "Importing " + batchName);
         importStatus.setCurrentlyImporting(batchName);
         
-        AuthenticationUtil.runAs(new RunAsWork<Object>()
+        final Map<String, NodeRef> result = AuthenticationUtil.runAs(new RunAsWork<Map<String, NodeRef>>()
         {
             @Override
-            public Object doWork()
+            public Map<String, NodeRef> doWork()
                 throws Exception
             {
-                importBatchInTxn(target, batch, replaceExisting, dryRun);
-                return(null);
+                return(importBatchInTxn(target, preparedBatch, replaceExisting, dryRun, metadataOnly));
             }
         }, userId);
         
@@ -137,42 +451,178 @@ public final class BatchImporterImpl
             long end = System.nanoTime();
             debug(log, "Batch #" + batch.getNumber() + " (containing " + batch.size() + " nodes) processed in " + getDurationInSeconds(end - start) + ".");
         }
+        
+        return(result);
     }
 
     
-    private final void importBatchInTxn(final NodeRef target,
-                                        final Batch   batch,
-                                        final boolean replaceExisting,
-                                        final boolean dryRun)
+    private final Map<String, NodeRef> importBatchInTxn(final NodeRef       target,
+                                        final PreparedBatch preparedBatch,
+                                        final boolean       replaceExisting,
+                                        final boolean       dryRun,
+                                        final boolean       metadataOnly)
         throws InterruptedException,
                OutOfOrderBatchException
     {
-        RetryingTransactionHelper txnHelper = serviceRegistry.getRetryingTransactionHelper();
+        RetryingTransactionHelper txnHelper  = serviceRegistry.getRetryingTransactionHelper();
+        final Batch               batch      = preparedBatch.getBatch();
+        final BatchState          batchState = new BatchState(preparedBatch);
 
-        txnHelper.doInTransaction(new RetryingTransactionCallback<Object>()
+        if (transactionSemaphore != null)
         {
+            if (trace(log) && transactionSemaphore.availablePermits() <= 0) trace(log, "Maximum number of concurrent transactions reached - Batch #" + batch.getNumber() + " will block.");
+            transactionSemaphore.acquire();
+        }
+        
+        final RetryingTransactionCallback<Object> callback = new RetryingTransactionCallback<Object>()
+        {
+            private int attempts = 0;
+            
             @Override
             public Object execute()
                 throws Exception
             {
+                if (attempts++ > 0)
+                {
+                    if (debug(log)) debug(log, "Retrying Batch #" + batch.getNumber() + " (attempt " + attempts + ").");
+                    importStatus.incrementTargetCounter(BulkImportStatus.TARGET_COUNTER_TRANSACTION_RETRIES);
+                }
+                
                 // Disable the auditable aspect's behaviours for this transaction, to allow creation & modification dates to be set
                 behaviourFilter.disableBehaviour(ContentModel.ASPECT_AUDITABLE);
                 
-                importBatchImpl(target, batch, replaceExisting, dryRun);
+                // Disable whatever else the import's behaviour profile asks for
+                // Note: the behaviour filter is reset at the end of the transaction, but rules are disabled per-thread
+                final boolean disableRules = behaviourProfile != null && behaviourProfile.isDisableRules();
+                
+                for (final QName disabledBehaviourClass : disabledBehaviourClasses)
+                {
+                    behaviourFilter.disableBehaviour(disabledBehaviourClass);
+                }
+                
+                if (disableRules)
+                {
+                    ruleService.disableRules();
+                }
+                
+                try
+                {
+                    batchState.reset();   // In case this is a retry
+                    importBatchImpl(target, batch, replaceExisting, dryRun, metadataOnly, batchState);
+                }
+                finally
+                {
+                    if (disableRules)
+                    {
+                        ruleService.enableRules();
+                    }
+                }
+                
                 return(null);
             }
-        },
-        false,   // read only flag, false=R/W txn
-        false);  // requires new txn flag, false=does not require a new txn if one is already in progress (which should never be the case here)
+        };
+        
+        boolean committed = false;
+        
+        try
+        {
+            try
+            {
+                txnHelper.doInTransaction(callback,
+                                          false,   // read only flag, false=R/W txn
+                                          false);  // requires new txn flag, false=does not require a new txn if one is already in progress (which should never be the case here)
+            }
+            catch (final RuntimeException re)
+            {
+                // A folder that's "known empty" may still contain a node created by an earlier batch whose name only differs in case
+                if (!batchState.trustKnownEmpty || !isDuplicateChildNodeName(re)) throw re;
+                
+                if (debug(log)) debug(log, "Batch #" + batch.getNumber() + " collided with an existing node in a folder that was believed to be empty. Retrying it with existence checks.", re);
+                batchState.trustKnownEmpty = false;
+                
+                txnHelper.doInTransaction(callback,
+                                          false,   // read only flag, false=R/W txn
+                                          false);  // requires new txn flag, false=does not require a new txn if one is already in progress (which should never be the case here)
+            }
+            
+            committed = true;
+        }
+        finally
+        {
+            if (transactionSemaphore != null)
+            {
+                transactionSemaphore.release();
+            }
+            
+            deleteUnreferencedContent(batchState, committed);
+        }
 
-        importStatus.batchCompleted(batch);
+        Map<String, NodeRef> result = Collections.emptyMap();
+        
+        // The transaction has committed, so the folders it created or found can now be safely cached
+        if (!dryRun)
+        {
+            parentCache.putAll(batchState.foldersFound);
+            parentCache.addKnownEmpty(batchState.foldersCreated);
+            result = new HashMap<>(batchState.foldersFound);
+        }
+        
+        return(result);
     }
     
     
-    private final void importBatchImpl(final NodeRef target,
-                                       final Batch   batch,
-                                       final boolean replaceExisting,
-                                       final boolean dryRun)
+    /*
+     * Deletes any content that was written for the given batch, but that isn't referenced by a committed node - that
+     * is, all of it if the batch failed, or whatever only earlier (rolled back) attempts referenced if it committed.
+     */
+    private final void deleteUnreferencedContent(final BatchState batchState, final boolean committed)
+    {
+        for (final Map.Entry<BulkImportItemVersion, ContentData> entry : batchState.contentWritten.entrySet())
+        {
+            if (!committed || !batchState.contentReferenced.contains(entry.getKey()))
+            {
+                final String contentUrl = entry.getValue().getContentUrl();
+                
+                try
+                {
+                    if (trace(log)) trace(log, "Deleting unreferenced content " + contentUrl + " streamed from '" + entry.getKey().getContentSource() + "'.");
+                    contentStore.delete(contentUrl);
+                }
+                catch (final RuntimeException re)
+                {
+                    if (warn(log)) warn(log, "Unable to delete unreferenced content " + contentUrl + ".", re);
+                }
+            }
+        }
+        
+        batchState.contentWritten.clear();
+    }
+    
+    
+    /*
+     * Was the given exception caused by an attempt to create a node with the same name as an existing one?
+     */
+    private final static boolean isDuplicateChildNodeName(final Throwable t)
+    {
+        boolean   result = false;
+        Throwable cause  = t;
+        
+        while (cause != null && !result)
+        {
+            result = cause instanceof DuplicateChildNodeNameException;
+            cause  = cause.getCause() == cause ? null : cause.getCause();
+        }
+        
+        return(result);
+    }
+    
+    
+    private final void importBatchImpl(final NodeRef    target,
+                                       final Batch      batch,
+                                       final boolean    replaceExisting,
+                                       final boolean    dryRun,
+                                       final boolean    metadataOnly,
+                                       final BatchState batchState)
         throws InterruptedException
     {
         if (batch != null)
@@ -181,7 +631,7 @@ public final class BatchImporterImpl
             {
                 if (importStatus.isStopping() || Thread.currentThread().isInterrupted()) throw new InterruptedException(Thread.currentThread().getName() + " was interrupted. Terminating early.");
                 
-                importItem(target, item, replaceExisting, dryRun);
+                importItem(target, item, replaceExisting, dryRun, metadataOnly, batchState);
             }
         }
     }
@@ -190,26 +640,35 @@ public final class BatchImporterImpl
     private final void importItem(final NodeRef                               target,
                                   final BulkImportItem<BulkImportItemVersion> item,
                                   final boolean                               replaceExisting,
-                                  final boolean                               dryRun)
+                                  final boolean                               dryRun,
+                                  final boolean                               metadataOnly,
+                                  final BatchState                            batchState)
         throws InterruptedException
     {
         try
         {
             if (trace(log)) trace(log, "Importing " + (item.isDirectory() ? "directory " : "file ") + String.valueOf(item) + ".");
             
-            NodeRef nodeRef     = findOrCreateNode(target, item, replaceExisting, dryRun);
+            NodeRef nodeRef     = findOrCreateNode(target, item, replaceExisting, dryRun, metadataOnly, batchState);
             boolean isDirectory = item.isDirectory();
             
             if (nodeRef != null)
             {
+                // If the node was just created, its initial metadata was set when it was created
+                final boolean initialMetadataApplied = batchState.nodesCreatedWithMetadata.contains(nodeRef);
+                
                 // We're creating or replacing the item, so import it
-                if (isDirectory)
+                if (metadataOnly)
+                {
+                    importMetadataOnly(nodeRef, item, dryRun, batchState);
+                }
+                else if (isDirectory)
                 {
-                    importDirectory(nodeRef, item, dryRun);
+                    importDirectory(nodeRef, item, dryRun, initialMetadataApplied, batchState);
                 }
                 else
                 {
-                    importFile(nodeRef, item, dryRun);
+                    importFile(nodeRef, item, dryRun, initialMetadataApplied, batchState);
                 }
             }
             
@@ -235,7 +694,10 @@ public final class BatchImporterImpl
     private final NodeRef findOrCreateNode(final NodeRef                               target,
                                            final BulkImportItem<BulkImportItemVersion> item,
                                            final boolean                               replaceExisting,
-                                           final boolean                               dryRun)
+                                           final boolean                               dryRun,
+                                           final boolean                               metadataOnly,
+                                           final BatchState                            batchState)
+        throws InterruptedException
     {
         NodeRef result           = null;
         String  nodeName         = item.getName();
@@ -249,7 +711,7 @@ public final class BatchImporterImpl
         
         try
         {
-            parentNodeRef = getParent(target, item);
+            parentNodeRef = getParent(target, item, batchState);
         
             if (parentNodeRef == null)
             {
@@ -258,7 +720,7 @@ public final class BatchImporterImpl
             
             // Find the node
             if (trace(log)) trace(log, "Searching for node with name '" + nodeName + "' within node '" + String.valueOf(parentNodeRef) + "' with parent association '" + String.valueOf(parentAssocQName) + "'.");
-            result = nodeService.getChildByName(parentNodeRef, parentAssocQName, nodeName);
+            result = batchState.getExistingChild(parentNodeRef, parentAssocQName, item);
         }
         catch (final OutOfOrderBatchException oobe)
         {
@@ -266,16 +728,34 @@ public final class BatchImporterImpl
             {
                 parentNodeRef = new NodeRef(StoreRef.STORE_REF_WORKSPACE_SPACESSTORE, "dry-run-fake-parent-node-ref");
             }
+            else if (metadataOnly)
+            {
+                // Nothing gets created in metadata-only mode, so the parent isn't going to turn up later
+                if (trace(log)) trace(log, "Parent folder '" + oobe.getMissingParentPath() + "' of '" + nodeName + "' does not exist.");
+            }
             else
             {
                 throw oobe;
             }
         }
         
-        if (result == null)    // We didn't find it, so create a new node in the repo. 
+        // Remember folders, so that their children can find them without resolving their paths
+        if (result != null && isDirectory && !dryRun)
         {
-            String itemType      = item.getVersions().first().getType();
-            QName  itemTypeQName = itemType == null ? (isDirectory ? ContentModel.TYPE_FOLDER : ContentModel.TYPE_CONTENT) : createQName(serviceRegistry, itemType);
+            batchState.foldersFound.put(BatchScheduler.pathOf(item), result);
+        }
+        
+        if (result == null && metadataOnly)
+        {
+            if (info(log)) info(log, "Skipping '" + item.getName() + "' as it doesn't exist in the repository and this is a metadata-only import.");
+            importStatus.incrementTargetCounter(BulkImportStatus.TARGET_COUNTER_NODES_SKIPPED);
+        }
+        else if (result == null)    // We didn't find it, so create a new node in the repo. 
+        {
+            // Directories only get their last version's metadata, files start with their first version's metadata
+            BulkImportItemVersion initialVersion = isDirectory ? item.getVersions().last() : item.getVersions().first();
+            QName                 itemType       = batchState.prepared(initialVersion).type;
+            QName                 itemTypeQName  = itemType == null ? (isDirectory ? ContentModel.TYPE_FOLDER : ContentModel.TYPE_CONTENT) : itemType;
 
             if (dryRun)
             {
@@ -285,11 +765,20 @@ public final class BatchImporterImpl
             else
             {
                 if (trace(log)) trace(log, "Creating new node of type '" + String.valueOf(itemTypeQName) + "' with qname '" + String.valueOf(nodeQName) + "' within node '" + String.valueOf(parentNodeRef) + "' with parent association '" + String.valueOf(parentAssocQName) + "'.");
-                Map<QName, Serializable> props = new HashMap<>();
-                props.put(ContentModel.PROP_NAME, nodeName);
-                result = nodeService.createNode(parentNodeRef, parentAssocQName, nodeQName, itemTypeQName, props).getChildRef();
+                result = createNodeWithMetadata(parentNodeRef, parentAssocQName, nodeQName, itemTypeQName, item, initialVersion, batchState);
+                batchState.nodesCreatedWithMetadata.add(result);
+                
+                if (isDirectory)
+                {
+                    batchState.foldersFound.put(BatchScheduler.pathOf(item), result);
+                    batchState.foldersCreated.add(result);
+                }
             }
         }
+        else if (metadataOnly)
+        {
+            if (trace(log)) trace(log, "Found content node '" + String.valueOf(result) + "', updating its metadata.");
+        }
         else if (replaceExisting)
         {
             if (trace(log)) trace(log, "Found content node '" + String.valueOf(result) + "', replacing it.");
@@ -305,16 +794,118 @@ public final class BatchImporterImpl
     }
     
     
-    private NodeRef getParent(final NodeRef target, final BulkImportItem<BulkImportItemVersion> item)
+    /*
+     * Creates a new node with its initial type, aspects and properties all in one go, rather than creating a bare node
+     * and then setting its type, adding each aspect and adding its properties as separate operations.  Properties that
+     * belong to one of the version's aspects are added along with that aspect, and the rest are passed to createNode.
+     */
+    private final NodeRef createNodeWithMetadata(final NodeRef                               parentNodeRef,
+                                                 final QName                                 parentAssocQName,
+                                                 final QName                                 nodeQName,
+                                                 final QName                                 typeQName,
+                                                 final BulkImportItem<BulkImportItemVersion> item,
+                                                 final BulkImportItemVersion                 initialVersion,
+                                                 final BatchState                            batchState)
+        throws InterruptedException
+    {
+        NodeRef                                    result           = null;
+        final PreparedVersion                      prepared         = batchState.prepared(initialVersion);
+        final Map<QName, Serializable>             nodeProperties   = new HashMap<>();
+        final Map<QName, Map<QName, Serializable>> aspectProperties = new HashMap<>();   // Keyed by aspect
+        
+        for (final QName aspect : prepared.aspects)
+        {
+            aspectProperties.put(aspect, new HashMap<QName, Serializable>());
+        }
+        
+        // Multi-version files need to be versionable from the outset
+        if (!item.isDirectory() && item.getVersions().size() > 1 && !aspectProperties.containsKey(ContentModel.ASPECT_VERSIONABLE))
+        {
+            if (debug(log)) debug(log, item.getName() + " has versions but is missing the cm:versionable aspect. Adding it.");
+            aspectProperties.put(ContentModel.ASPECT_VERSIONABLE, new HashMap<QName, Serializable>());
+        }
+        
+        nodeProperties.put(ContentModel.PROP_NAME, item.getName());
+        
+        if (initialVersion.hasMetadata())
+        {
+            if (prepared.properties == null) throw new IllegalStateException("The import source has logic errors - it says it has metadata, but the metadata is null.");
+            
+            // Partition the properties by the aspect (if any) that declares them
+            for (final Map.Entry<QName, Serializable> property : prepared.properties.entrySet())
+            {
+                final PropertyDefinition       propertyDefinition = dictionaryService.getProperty(property.getKey());
+                final Map<QName, Serializable> aspectProps        = propertyDefinition == null ? null : aspectProperties.get(propertyDefinition.getContainerClass().getName());
+                
+                if (aspectProps != null)
+                {
+                    aspectProps.put(property.getKey(), property.getValue());
+                }
+                else
+                {
+                    nodeProperties.put(property.getKey(), property.getValue());
+                }
+            }
+        }
+        
+        try
+        {
+            result = nodeService.createNode(parentNodeRef, parentAssocQName, nodeQName, typeQName, nodeProperties).getChildRef();
+            
+            for (final Map.Entry<QName, Map<QName, Serializable>> aspect : aspectProperties.entrySet())
+            {
+                if (importStatus.isStopping() || Thread.currentThread().isInterrupted()) throw new InterruptedException(Thread.currentThread().getName() + " was interrupted. Terminating early.");
+                
+                // Note: createNode may already have added the aspect, if any of the remaining properties belong to it
+                if (!aspect.getValue().isEmpty() || !nodeService.hasAspect(result, aspect.getKey()))
+                {
+                    if (trace(log)) trace(log, "Adding aspect '" + String.valueOf(aspect.getKey()) + "' to '" + String.valueOf(result) + "' with " + aspect.getValue().size() + " properties.");
+                    nodeService.addAspect(result, aspect.getKey(), aspect.getValue());
+                }
+            }
+        }
+        catch (final InvalidNodeRefException inre)
+        {
+            if (!parentNodeRef.equals(inre.getNodeRef()) && (result == null || !result.equals(inre.getNodeRef())))
+            {
+                // Caused by an invalid NodeRef in the metadata (e.g. in an association)
+                throw new IllegalStateException("Invalid nodeRef found in metadata file '" + initialVersion.getMetadataSource() + "'.  " +
+                                                "Probable cause: an association is being populated via metadata, but the " +
+                                                "NodeRef for the target of that association ('" + inre.getNodeRef() + "') is invalid.  " +
+                                                "Please double check your metadata file and try again.", inre);
+            }
+            else
+            {
+                throw inre;
+            }
+        }
+        
+        return(result);
+    }
+    
+    
+    private NodeRef getParent(final NodeRef target, final BulkImportItem<BulkImportItemVersion> item, final BatchState batchState)
     {
         NodeRef result = null;
         
         final String itemParentPath         = item.getRelativePathOfParent();
         List<String> itemParentPathElements = (itemParentPath == null || itemParentPath.length() == 0) ? null : Arrays.asList(itemParentPath.split(REGEX_SPLIT_PATH_ELEMENTS));
+        final String parentCacheKey         = BatchScheduler.normalisePath(itemParentPath);
         
         if (debug(log)) debug(log, "Finding parent folder '" + itemParentPath + "'.");
         
-        if (itemParentPathElements != null && itemParentPathElements.size() > 0)
+        // Check the folders found by this transaction, then those found by committed transactions
+        if (parentCacheKey.length() > 0)
+        {
+            result = batchState.foldersFound.get(parentCacheKey);
+            
+            if (result == null)
+            {
+                result = parentCache.get(parentCacheKey);
+            }
+        }
+        
+        if (result == null && itemParentPathElements != null && itemParentPathElements.size() > 0)
         {
             FileInfo fileInfo = null;
                 
@@ -335,6 +926,7 @@ public final class BatchImporterImpl
             }
             
             result = fileInfo.getNodeRef();
+            batchState.foldersFound.put(parentCacheKey, result);
         }
         
         return(result);
@@ -344,7 +936,9 @@ public final class BatchImporterImpl
 
     private final void importDirectory(final NodeRef                               nodeRef,
                                        final BulkImportItem<BulkImportItemVersion> item,
-                                       final boolean                               dryRun)
+                                       final boolean                               dryRun,
+                                       final boolean                               metadataApplied,
+                                       final BatchState                            batchState)
         throws InterruptedException
     {
         if (item.getVersions() != null &&
@@ -363,7 +957,14 @@ public final class BatchImporterImpl
             }
             
             // Import the last version's metadata only
-            importVersionMetadata(nodeRef, lastVersion, dryRun);
+            if (metadataApplied)
+            {
+                if (trace(log)) trace(log, "Metadata for directory '" + item.getName() + "' was set when it was created.");
+            }
+            else
+            {
+                importVersionMetadata(nodeRef, lastVersion, dryRun, false, batchState);
+            }
         }
         else
         {
@@ -374,9 +975,36 @@ public final class BatchImporterImpl
     }
 
 
+    /*
+     * Applies the type, aspects and properties of the last version of the given item to an existing node, without
+     * touching its content or version history.
+     */
+    private final void importMetadataOnly(final NodeRef                               nodeRef,
+                                          final BulkImportItem<BulkImportItemVersion> item,
+                                          final boolean                               dryRun,
+                                          final BatchState                            batchState)
+        throws InterruptedException
+    {
+        if (item.getVersions() != null &&
+            item.getVersions().size() > 0)
+        {
+            final BulkImportItemVersion lastVersion = item.getVersions().last();
+            
+            if (trace(log) && item.getVersions().size() > 1) trace(log, "Metadata-only import - ignoring all but the last version of '" + item.getName() + "'.");
+            if (trace(log) && lastVersion.hasContent())      trace(log, "Metadata-only import - ignoring content of '" + item.getName() + "'.");
+            
+            importVersionMetadata(nodeRef, lastVersion, dryRun, true, batchState);
+        }
+
+        if (trace(log)) trace(log, "Finished importing metadata for " + item.getName() + ".");
+    }
+    
+    
     private final void importFile(final NodeRef                               nodeRef,
                                   final BulkImportItem<BulkImportItemVersion> item,
-                                  final boolean                               dryRun)
+                                  final boolean                               dryRun,
+                                  final boolean                               firstVersionMetadataApplied,
+                                  final BatchState                            batchState)
         throws InterruptedException
     {
         final int numberOfVersions = item.getVersions().size();
@@ -387,7 +1015,7 @@ public final class BatchImporterImpl
         }
         else if (numberOfVersions == 1)
         {
-            importVersion(nodeRef, null, item.getVersions().first(), dryRun, true);
+            importVersion(nodeRef, null, item.getVersions().first(), dryRun, true, firstVersionMetadataApplied, batchState);
         }
         else
         {
@@ -395,10 +1023,12 @@ public final class BatchImporterImpl
             BulkImportItemVersion previousVersion = null;
             
             // Add the cm:versionable aspect if it isn't already there
-            if (firstVersion.getAspects() == null ||
-                firstVersion.getAspects().isEmpty() ||
-                (!firstVersion.getAspects().contains(ContentModel.ASPECT_VERSIONABLE.toString()) &&
-                 !firstVersion.getAspects().contains(ContentModel.ASPECT_VERSIONABLE.toPrefixString())))
+            // Note: nodes that were just created were made versionable when they were created
+            if (!firstVersionMetadataApplied &&
+                (firstVersion.getAspects() == null ||
+                 firstVersion.getAspects().isEmpty() ||
+                 (!firstVersion.getAspects().contains(ContentModel.ASPECT_VERSIONABLE.toString()) &&
+                  !firstVersion.getAspects().contains(ContentModel.ASPECT_VERSIONABLE.toPrefixString()))))
             {
                 if (debug(log)) debug(log, item.getName() + " has versions but is missing the cm:versionable aspect. Adding it.");
                 nodeService.addAspect(nodeRef, ContentModel.ASPECT_VERSIONABLE, null);
@@ -408,7 +1038,7 @@ public final class BatchImporterImpl
             {
                 if (importStatus.isStopping() || Thread.currentThread().isInterrupted()) throw new InterruptedException(Thread.currentThread().getName() + " was interrupted. Terminating early.");
                 
-                importVersion(nodeRef, previousVersion, version, dryRun, false);
+                importVersion(nodeRef, previousVersion, version, dryRun, false, firstVersionMetadataApplied && previousVersion == null, batchState);
                 previousVersion = version;
             }
         }
@@ -417,11 +1047,77 @@ public final class BatchImporterImpl
     }
     
     
+    /*
+     * Streams the content of the given version into the content store, without attaching it to any node.  The content
+     * store is written to directly rather than via the content service, so that the content isn't deleted if the
+     * batch's transaction rolls back.  If the batch is retried, the content written by the earlier attempt is reused
+     * rather than being streamed all over again.  Whatever the batch's final attempt doesn't reference is deleted by
+     * deleteUnreferencedContent.
+     */
+    private final ContentData writeContent(final BulkImportItemVersion version, final BatchState batchState)
+    {
+        ContentData result = batchState.contentWritten.get(version);
+        
+        if (result != null)
+        {
+            if (trace(log)) trace(log, "Content from '" + version.getContentSource() + "' was already streamed by an earlier attempt - reusing it.");
+            importStatus.incrementTargetCounter(BulkImportStatus.TARGET_COUNTER_CONTENT_REWRITES_AVOIDED);
+        }
+        else
+        {
+            if (trace(log)) trace(log, "Streaming content from '" + version.getContentSource() + "' into the content store.");
+            
+            final ContentWriter writer = contentStore.getWriter(ContentContext.NULL_CONTEXT);
+            
+            // Note: the content service does this for the writers it hands out - without it, mimetypes and encodings can't be guessed
+            if (writer instanceof AbstractContentWriter)
+            {
+                ((AbstractContentWriter)writer).setMimetypeService(serviceRegistry.getMimetypeService());
+            }
+            
+            final PreparedVersion prepared = batchState.prepared(version);
+            
+            try
+            {
+                if (prepared.content != null)
+                {
+                    // Mirrors FilesystemBulkImportItemVersion.putContent, but writes the copy read while the batch was being prepared
+                    writer.guessMimetype(prepared.contentName);
+                    writer.putContent(new ByteArrayInputStream(prepared.content));
+                    writer.guessEncoding();
+                }
+                else
+                {
+                    version.putContent(writer);
+                }
+            }
+            catch (final RuntimeException re)
+            {
+                // Nothing else knows about this content, so it has to be deleted here
+                if (writer.getContentUrl() != null) contentStore.delete(writer.getContentUrl());
+                throw re;
+            }
+            
+            result = writer.getContentData();
+            batchState.contentWritten.put(version, result);
+            
+            if (trace(log)) trace(log, "Finished streaming content from '" + version.getContentSource() + "' into the content store.");
+        }
+        
+        // Note: every caller references the content from a node in the current attempt
+        batchState.contentReferenced.add(version);
+        
+        return(result);
+    }
+    
+    
     private final void importVersion(final NodeRef               nodeRef,
                                      final BulkImportItemVersion previousVersion,
                                      final BulkImportItemVersion version,
                                      final boolean               dryRun,
-                                     final boolean               onlyOneVersion)
+                                     final boolean               onlyOneVersion,
+                                     final boolean               metadataApplied,
+                                     final BatchState            batchState)
         throws InterruptedException
     {
         Map<String, Serializable> versionProperties = new HashMap<>();
@@ -432,7 +1128,10 @@ public final class BatchImporterImpl
             throw new IllegalStateException("version was null. This is indicative of a bug in the chosen import source.");
         }
         
-        importVersionContentAndMetadata(nodeRef, version, dryRun);
+        // Note: this has to be checked before the new metadata (which may include a new modification date) is applied
+        final boolean contentUnchanged = onlyOneVersion && !dryRun && isContentUnchanged(nodeRef, version);
+        
+        importVersionContentAndMetadata(nodeRef, version, contentUnchanged, dryRun, metadataApplied, batchState);
         
         if (previousVersion != null && version.getVersionNumber() != null)
         {
@@ -475,29 +1174,34 @@ public final class BatchImporterImpl
     
     private final void importVersionContentAndMetadata(final NodeRef               nodeRef,
                                                        final BulkImportItemVersion version,
-                                                       final boolean               dryRun)
+                                                       final boolean               contentUnchanged,
+                                                       final boolean               dryRun,
+                                                       final boolean               metadataApplied,
+                                                       final BatchState            batchState)
         throws InterruptedException
     {
-        if (version.hasMetadata())
+        if (version.hasMetadata() && !metadataApplied)
         {
-            importVersionMetadata(nodeRef, version, dryRun);
+            importVersionMetadata(nodeRef, version, dryRun, false, batchState);
         }
         
         if (version.hasContent())
         {
-            importVersionContent(nodeRef, version, dryRun);
+            importVersionContent(nodeRef, version, contentUnchanged, dryRun, batchState);
         }
     }
     
     
     private final void importVersionMetadata(final NodeRef               nodeRef,
                                              final BulkImportItemVersion version,
-                                             final boolean               dryRun)
+                                             final boolean               dryRun,
+                                             final boolean               excludeContent,
+                                             final BatchState            batchState)
         throws InterruptedException
     {
-        String                    type     = version.getType();
-        Set<String>               aspects  = version.getAspects();
-        Map<String, Serializable> metadata = version.getMetadata();
+        PreparedVersion prepared = batchState.prepared(version);
+        QName           type     = prepared.type;
+        Set<QName>      aspects  = prepared.aspects;
         
         if (type != null)
         {
@@ -508,44 +1212,38 @@ public final class BatchImporterImpl
             else
             {
                 if (trace(log)) trace(log, "Setting type of '" + String.valueOf(nodeRef) + "' to '" + String.valueOf(type) + "'.");
-                nodeService.setType(nodeRef, createQName(serviceRegistry, type));
+                nodeService.setType(nodeRef, type);
             }
         }
         
         if (aspects != null)
         {
-            for (final String aspect : aspects)
+            for (final QName aspect : aspects)
             {
                 if (importStatus.isStopping() || Thread.currentThread().isInterrupted()) throw new InterruptedException(Thread.currentThread().getName() + " was interrupted. Terminating early.");
 
                 if (dryRun)
                 {
-                    if (info(log)) info(log, "[DRY RUN] Would have added aspect '" + aspect + "' to '" + String.valueOf(nodeRef) + "'.");
+                    if (info(log)) info(log, "[DRY RUN] Would have added aspect '" + String.valueOf(aspect) + "' to '" + String.valueOf(nodeRef) + "'.");
                 }
                 else
                 {
-                    if (trace(log)) trace(log, "Adding aspect '" + aspect + "' to '" + String.valueOf(nodeRef) + "'.");
-                    nodeService.addAspect(nodeRef, createQName(serviceRegistry, aspect), null);
+                    if (trace(log)) trace(log, "Adding aspect '" + String.valueOf(aspect) + "' to '" + String.valueOf(nodeRef) + "'.");
+                    nodeService.addAspect(nodeRef, aspect, null);
                 }
             }
         }
         
         if (version.hasMetadata())
         {
-            if (metadata == null) throw new IllegalStateException("The import source has logic errors - it says it has metadata, but the metadata is null.");
+            if (prepared.properties == null) throw new IllegalStateException("The import source has logic errors - it says it has metadata, but the metadata is null.");
 
             
-            // QName all the keys.  It's baffling that NodeService doesn't have a method that accepts a Map<String, Serializable>, when things like VersionService do...
-            Map<QName, Serializable> qNamedMetadata = new HashMap<>(metadata.size());
+            Map<QName, Serializable> qNamedMetadata = new HashMap<>(prepared.properties);
             
-            for (final String key : metadata.keySet())
+            if (excludeContent)
             {
-                if (importStatus.isStopping() || Thread.currentThread().isInterrupted()) throw new InterruptedException(Thread.currentThread().getName() + " was interrupted. Terminating early.");
-                
-                QName        keyQName = createQName(serviceRegistry, key);
-                Serializable value    = metadata.get(key);
-                
-                qNamedMetadata.put(keyQName, value);
+                qNamedMetadata.remove(ContentModel.PROP_CONTENT);
             }
 
             if (dryRun)
@@ -582,9 +1280,133 @@ public final class BatchImporterImpl
     }
     
 
+    /*
+     * Determines whether the given node already has the same content as the given version, so that re-imports don't
+     * have to re-stream content that hasn't changed.  Content is considered unchanged if it has the same size, and the
+     * node's modification date matches the one in the version's metadata (which, for the filesystem source, is the
+     * modification date of the file).  Optionally, the checksums of the two are compared as well.
+     */
+    private final boolean isContentUnchanged(final NodeRef nodeRef, final BulkImportItemVersion version)
+    {
+        boolean result = false;
+        
+        if (version.hasContent() && !version.contentIsInPlace() && version.getMetadata() != null)
+        {
+            final ContentData existingContent = (ContentData)nodeService.getProperty(nodeRef, ContentModel.PROP_CONTENT);
+            
+            if (existingContent != null && existingContent.getSize() == version.sizeInBytes())
+            {
+                Serializable newModified = version.getMetadata().get(ContentModel.PROP_MODIFIED.toPrefixString(namespaceService));
+                
+                if (newModified == null)
+                {
+                    newModified = version.getMetadata().get(ContentModel.PROP_MODIFIED.toString());
+                }
+                
+                if (newModified != null)
+                {
+                    try
+                    {
+                        final Date existingModifiedDate = (Date)nodeService.getProperty(nodeRef, ContentModel.PROP_MODIFIED);
+                        final Date newModifiedDate      = DefaultTypeConverter.INSTANCE.convert(Date.class, newModified);
+                        
+                        result = existingModifiedDate != null && existingModifiedDate.equals(newModifiedDate);
+                    }
+                    catch (final TypeConversionException tce)
+                    {
+                        if (debug(log)) debug(log, "Unable to interpret modification date '" + String.valueOf(newModified) + "' of '" + version.getContentSource() + "'.", tce);
+                        result = false;
+                    }
+                    
+                    if (result && compareChecksums)
+                    {
+                        result = checksumsMatch(nodeRef, version);
+                    }
+                }
+            }
+        }
+        
+        return(result);
+    }
+    
+    
+    private final boolean checksumsMatch(final NodeRef nodeRef, final BulkImportItemVersion version)
+    {
+        boolean result = false;
+        
+        // Only sources that can hand over their content as a stream can be checksummed without copying the content first
+        if (version instanceof ReadableBulkImportItemVersion)
+        {
+            final ContentReader existingReader = contentService.getReader(nodeRef, ContentModel.PROP_CONTENT);
+            
+            if (existingReader != null && existingReader.exists())
+            {
+                try (final InputStream existingContent = existingReader.getContentInputStream();
+                     final InputStream newContent      = ((ReadableBulkImportItemVersion)version).getContentInputStream())
+                {
+                    result = Arrays.equals(checksum(existingContent), checksum(newContent));
+                }
+                catch (final IOException ioe)
+                {
+                    throw new RuntimeException(ioe);  // Checked exceptions == #fail
+                }
+            }
+        }
+        else
+        {
+            if (trace(log)) trace(log, "Unable to checksum the content of '" + version.getContentSource() + "' - the source doesn't support reading it directly.");
+        }
+        
+        return(result);
+    }
+    
+    
+    private final static byte[] checksum(final InputStream in)
+        throws IOException
+    {
+        try
+        {
+            final DigestInputStream digestIn = new DigestInputStream(in, MessageDigest.getInstance(CHECKSUM_ALGORITHM));
+            final byte[]            buffer   = new byte[CHECKSUM_BUFFER_SIZE];
+            
+            while (digestIn.read(buffer) != -1)
+            {
+                // Nothing to do - the digest is updated as the stream is read
+            }
+            
+            return(digestIn.getMessageDigest().digest());
+        }
+        catch (final NoSuchAlgorithmException nsae)
+        {
+            throw new RuntimeException(nsae);  // Checked exceptions == #fail
+        }
+    }
+    
+    
+    /*
+     * QName all the keys.  It's baffling that NodeService doesn't have a method that accepts a Map<String, Serializable>, when things like VersionService do...
+     */
+    private final Map<QName, Serializable> qNameMetadata(final Map<String, Serializable> metadata)
+        throws InterruptedException
+    {
+        final Map<QName, Serializable> result = new HashMap<>(metadata.size());
+        
+        for (final Map.Entry<String, Serializable> entry : metadata.entrySet())
+        {
+            if (importStatus.isStopping() || Thread.currentThread().isInterrupted()) throw new InterruptedException(Thread.currentThread().getName() + " was interrupted. Terminating early.");
+            
+            result.put(createQName(serviceRegistry, entry.getKey()), entry.getValue());
+        }
+        
+        return(result);
+    }
+    
+
     private final void importVersionContent(final NodeRef               nodeRef,
                                             final BulkImportItemVersion version,
-                                            final boolean               dryRun)
+                                            final boolean               contentUnchanged,
+                                            final boolean               dryRun,
+                                            final BatchState            batchState)
         throws InterruptedException
     {
         if (version.hasContent())
@@ -619,14 +1441,18 @@ public final class BatchImporterImpl
                 {
                     if (info(log)) info(log, "[DRY RUN] Would have streamed content from '" + version.getContentSource() + "' into node '" + String.valueOf(nodeRef) + "'.");
                 }
+                else if (contentUnchanged)
+                {
+                    if (trace(log)) trace(log, "Content of node '" + String.valueOf(nodeRef) + "' is unchanged from '" + version.getContentSource() + "' - not streaming it.");
+                    importStatus.incrementTargetCounter(BulkImportStatus.TARGET_COUNTER_CONTENT_UNCHANGED);
+                    return;
+                }
                 else
                 {
-                    if (trace(log)) trace(log, "Streaming content from '" + version.getContentSource() + "' into node '" + String.valueOf(nodeRef) + "'.");
+                    final ContentData contentData = writeContent(version, batchState);
                     
-                    ContentWriter writer = contentService.getWriter(nodeRef, ContentModel.PROP_CONTENT, true);
-                    version.putContent(writer);
-
-                    if (trace(log)) trace(log, "Finished streaming content from '" + version.getContentSource() + "' into node '" + String.valueOf(nodeRef) + "'.");
+                    if (trace(log)) trace(log, "Setting content from '" + version.getContentSource() + "' on node '" + String.valueOf(nodeRef) + "'.");
+                    nodeService.setProperty(nodeRef, ContentModel.PROP_CONTENT, contentData);
                 }
                 
                 importStatus.incrementTargetCounter(BulkImportStatus.TARGET_COUNTER_CONTENT_STREAMED);
@@ -634,4 +1460,153 @@ public final class BatchImporterImpl
         }
     }
     
+    
+    /*
+     * State that's local to a batch.  Most of it is reset for each attempt at importing the batch (i.e. each
+     * transaction), except the content that's been written, which remains valid across retries.
+     */
+    private final class BatchState
+    {
+        private final Batch                                   batch;
+        private final PreparedBatch                           prepared;
+        private final Map<String, NodeRef>                    foldersFound             = new HashMap<>();   // Keyed by normalised source-relative path
+        private final Set<NodeRef>                            foldersCreated           = new HashSet<>();
+        private final Set<NodeRef>                            nodesCreatedWithMetadata = new HashSet<>();
+        private final Map<String, Map<String, NodeRef>>       existingByGroup          = new HashMap<>();   // Keyed by group, then lower-cased name
+        private final Map<NodeRef, Set<String>>               namesLookedUp            = new HashMap<>();   // Lower-cased names, keyed by parent
+        private final Map<BulkImportItemVersion, ContentData> contentWritten           = new IdentityHashMap<>();
+        private final Set<BulkImportItemVersion>              contentReferenced        = Collections.newSetFromMap(new IdentityHashMap<BulkImportItemVersion, Boolean>());   // By the current attempt
+        private Map<String, Set<String>>                      namesByGroup             = null;
+        private boolean                                       trustKnownEmpty          = true;
+        
+        private BatchState(final PreparedBatch prepared)
+        {
+            this.batch    = prepared.getBatch();
+            this.prepared = prepared;
+        }
+        
+        
+        /*
+         * Returns the prepared form of the given version, preparing it now if that wasn't done in advance.
+         */
+        private PreparedVersion prepared(final BulkImportItemVersion version)
+        {
+            PreparedVersion result = prepared.get(version);
+            
+            if (result == null)
+            {
+                result = prepareVersion(version, null);
+            }
+            
+            return(result);
+        }
+        
+        
+        private void reset()
+        {
+            foldersFound.clear();
+            foldersCreated.clear();
+            nodesCreatedWithMetadata.clear();
+            existingByGroup.clear();
+            namesLookedUp.clear();
+            contentReferenced.clear();
+        }
+        
+        
+        /*
+         * Finds the existing child of the given parent with the same name as the given item.  The first time a given
+         * parent is checked, the names of all of the items in the batch that share that parent are looked up in a
+         * single query, so that existence checks cost roughly one query per parent folder rather than one per item.
+         * 
+         * Note: cm:name is unique case-insensitively, so if another item in this batch has the same name (ignoring case)
+         * in the same parent, it may since have been created - in that case the child is looked up directly instead.
+         */
+        private NodeRef getExistingChild(final NodeRef                               parentNodeRef,
+                                         final QName                                 parentAssocQName,
+                                         final BulkImportItem<BulkImportItemVersion> item)
+        {
+            NodeRef     result = null;
+            Set<String> names  = namesLookedUp.get(parentNodeRef);
+            
+            if (names == null)
+            {
+                names = new HashSet<>();
+                namesLookedUp.put(parentNodeRef, names);
+            }
+            
+            // A folder created by this import can't contain anything that this import hasn't added to it, and since each
+            // item is only imported once, there's no need to check for it (unless an earlier item had the same name)
+            if (!names.add(item.getName().toLowerCase()))
+            {
+                if (trace(log)) trace(log, "'" + item.getName() + "' has the same name as an earlier item in this batch, ignoring case. Looking it up directly.");
+                result = nodeService.getChildByName(parentNodeRef, parentAssocQName, item.getName());
+            }
+            else if (!foldersCreated.contains(parentNodeRef) &&
+                     !(trustKnownEmpty && parentCache.isKnownEmpty(parentNodeRef)))
+            {
+                final String         group    = groupOf(item);
+                Map<String, NodeRef> existing = existingByGroup.get(group);
+                
+                if (existing == null)
+                {
+                    final Set<String> names = namesByGroup().get(group);
+                    
+                    existing = new HashMap<>();
+                    
+                    if (trace(log)) trace(log, "Prefetching " + names.size() + " child names within node '" + String.valueOf(parentNodeRef) + "' with parent association '" + String.valueOf(parentAssocQName) + "'.");
+                    
+                    for (final ChildAssociationRef childAssoc : nodeService.getChildrenByName(parentNodeRef, parentAssocQName, names))
+                    {
+                        final String childName = (String)nodeService.getProperty(childAssoc.getChildRef(), ContentModel.PROP_NAME);
+                        
+                        if (childName != null)
+                        {
+                            existing.put(childName.toLowerCase(), childAssoc.getChildRef());   // Note: cm:name is unique case-insensitively
+                        }
+                    }
+                    
+                    existingByGroup.put(group, existing);
+                }
+                
+                result = existing.get(item.getName().toLowerCase());
+            }
+            
+            return(result);
+        }
+        
+        
+        /*
+         * Groups the names of the items in the batch by parent path and parent association.
+         */
+        private Map<String, Set<String>> namesByGroup()
+        {
+            if (namesByGroup == null)
+            {
+                namesByGroup = new HashMap<>();
+                
+                for (final BulkImportItem<BulkImportItemVersion> item : batch)
+                {
+                    final String group = groupOf(item);
+                    Set<String>  names = namesByGroup.get(group);
+                    
+                    if (names == null)
+                    {
+                        names = new HashSet<>();
+                        namesByGroup.put(group, names);
+                    }
+                    
+                    names.add(item.getName());
+                }
+            }
+            
+            return(namesByGroup);
+        }
+        
+        
+        private String groupOf(final BulkImportItem<BulkImportItemVersion> item)
+        {
+            return(BatchScheduler.normalisePath(item.getRelativePathOfParent()) + '\u0000' + String.valueOf(item.getParentAssoc()));
+        }
+    }
+    
 }
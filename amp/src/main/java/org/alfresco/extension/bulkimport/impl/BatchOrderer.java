@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2007 Peter Monks
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * This file is part of an unsupported extension to Alfresco.
+ * 
+ */
+
+package org.alfresco.extension.bulkimport.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.alfresco.extension.bulkimport.source.BulkImportItem;
+import org.alfresco.extension.bulkimport.source.BulkImportItemVersion;
+
+import static org.alfresco.extension.bulkimport.util.LogUtils.*;
+
+
+/**
+ * This class reorders batches before they're handed to the batch scheduler,
+ * to keep the tail of the import short.  Up to <code>windowSize</code>
+ * batches are held back in a look-ahead window; once the window is full the
+ * heaviest batch in it is released (i.e. longest processing time first), so
+ * that very large batches don't end up being imported by a single thread
+ * after every other thread has finished.  Content-heavy and metadata-heavy
+ * batches are released alternately, so that the database and the content
+ * store are both kept busy.
+ * 
+ * Only batches that contain nothing but files are held back - other batches
+ * may have batches waiting on them, so they're scheduled immediately.
+ * 
+ * It is a stateful class that is instantiated once per-import.
+ * 
+ * @author Peter Monks (pmonks@gmail.com)
+ */
+public class BatchOrderer
+{
+    private final static Log log = LogFactory.getLog(BatchOrderer.class);
+    
+    private final static float ONE_MEGABYTE = (float)Math.pow(2, 20);
+    
+    private final int windowSize;
+    
+    private final List<WindowEntry> window = new ArrayList<>();
+    
+    private BatchScheduler batchScheduler           = null;
+    private boolean        lastReleasedContentHeavy  = false;
+    
+    
+    public BatchOrderer(final int windowSize)
+    {
+        this.windowSize = Math.max(0, windowSize);
+        
+        if (debug(log)) debug(log, "Created new batch orderer. Window Size=" + this.windowSize + (this.windowSize == 0 ? " (disabled)" : ""));
+    }
+    
+    
+    /**
+     * @param batchScheduler The scheduler that batches are released to <i>(must not be null)</i>.
+     */
+    public synchronized void init(final BatchScheduler batchScheduler)
+    {
+        this.batchScheduler = batchScheduler;
+        window.clear();
+    }
+    
+    
+    /**
+     * Submits the given batch, which may be held back until the window fills up.  Parameters are as for
+     * {@link BatchScheduler#schedule(BatchScheduler.PendingBatch, Batch, Runnable)}.
+     * 
+     * @throws InterruptedException If the thread is interrupted while blocked.
+     */
+    public void submit(final BatchScheduler.PendingBatch pendingBatch, final Batch batch, final Runnable job)
+        throws InterruptedException
+    {
+        if (windowSize > 0 && containsOnlyFiles(batch))
+        {
+            final WindowEntry entry     = new WindowEntry(pendingBatch, batch, job);
+            WindowEntry       toRelease = null;
+            
+            synchronized(this)
+            {
+                window.add(entry);
+                
+                if (window.size() > windowSize)
+                {
+                    toRelease = selectNext();
+                }
+            }
+            
+            // Note: scheduled outside the lock, since scheduling can block, and may call back into batch assemblers
+            if (toRelease != null)
+            {
+                batchScheduler.schedule(toRelease.pendingBatch, toRelease.batch, toRelease.job);
+            }
+        }
+        else
+        {
+            batchScheduler.schedule(pendingBatch, batch, job);
+        }
+    }
+    
+    
+    /**
+     * Releases every batch still held in the window, in priority order.  Note: only called once all producers have finished.
+     * 
+     * @throws InterruptedException If the thread is interrupted while blocked.
+     */
+    public void drain()
+        throws InterruptedException
+    {
+        WindowEntry toRelease = null;
+        
+        do
+        {
+            synchronized(this)
+            {
+                toRelease = window.isEmpty() ? null : selectNext();
+            }
+            
+            if (toRelease != null)
+            {
+                batchScheduler.schedule(toRelease.pendingBatch, toRelease.batch, toRelease.job);
+            }
+        } while (toRelease != null);
+    }
+    
+    
+    /*
+     * Removes and returns the heaviest batch of the opposite kind to the last one released, or the heaviest batch
+     * overall if the window has none of that kind.  Note: must be called with the lock held, and the window non-empty.
+     */
+    private WindowEntry selectNext()
+    {
+        WindowEntry heaviest          = null;
+        WindowEntry heaviestPreferred = null;
+        
+        for (final WindowEntry entry : window)
+        {
+            if (heaviest == null || entry.cost > heaviest.cost)
+            {
+                heaviest = entry;
+            }
+            
+            if (entry.contentHeavy != lastReleasedContentHeavy &&
+                (heaviestPreferred == null || entry.cost > heaviestPreferred.cost))
+            {
+                heaviestPreferred = entry;
+            }
+        }
+        
+        final WindowEntry result = heaviestPreferred != null ? heaviestPreferred : heaviest;
+        
+        window.remove(result);
+        lastReleasedContentHeavy = result.contentHeavy;
+        
+        if (trace(log)) trace(log, "Releasing " + String.valueOf(result.batch) + " (" + (result.contentHeavy ? "content" : "metadata") + " heavy, cost " + result.cost + ") from the look-ahead window.");
+        
+        return(result);
+    }
+    
+    
+    private final static boolean containsOnlyFiles(final Batch batch)
+    {
+        boolean result = true;
+        
+        for (final BulkImportItem<BulkImportItemVersion> item : batch)
+        {
+            if (item.isDirectory())
+            {
+                result = false;
+                break;
+            }
+        }
+        
+        return(result);
+    }
+    
+    
+    private final static class WindowEntry
+    {
+        private final BatchScheduler.PendingBatch pendingBatch;
+        private final Batch                       batch;
+        private final Runnable                    job;
+        private final float                       cost;
+        private final boolean                     contentHeavy;
+        
+        private WindowEntry(final BatchScheduler.PendingBatch pendingBatch, final Batch batch, final Runnable job)
+        {
+            this.pendingBatch = pendingBatch;
+            this.batch        = batch;
+            this.job          = job;
+            
+            // Rough estimate of processing time: a megabyte of content costs about as much as a node or a version
+            // Note: aspects and properties aren't counted, since that would parse every metadata file on the scanner thread
+            final float contentCost  = batch.sizeInBytes() / ONE_MEGABYTE;
+            final float metadataCost = batch.size() + batch.numberOfVersions();
+            
+            this.cost         = contentCost + metadataCost;
+            this.contentHeavy = contentCost > metadataCost;
+        }
+    }
+    
+}
@@ -0,0 +1,362 @@
+/*
+ * Copyright (C) 2007 Peter Monks
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * This file is part of an unsupported extension to Alfresco.
+ * 
+ */
+
+package org.alfresco.extension.bulkimport.impl;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.alfresco.extension.bulkimport.source.BulkImportItem;
+import org.alfresco.extension.bulkimport.source.BulkImportItemVersion;
+
+import static org.alfresco.extension.bulkimport.util.LogUtils.*;
+
+
+/**
+ * This class schedules batches onto the import thread pool in dependency
+ * order.  Each batch depends on the batches that create the parent folders of
+ * its items, and is only released to the thread pool once all of those
+ * batches have committed.  Batches that have no outstanding dependencies are
+ * released immediately, which allows folders to be created concurrently, and
+ * allows files to be imported into a subtree as soon as that subtree's
+ * folders exist.
+ * 
+ * Batches may be assembled concurrently by several producer threads, so the
+ * folders a batch will create are registered as each item is added to it
+ * (via a <code>PendingBatch</code>), rather than when the batch is scheduled.
+ * A batch that depends on a batch that is still being assembled causes that
+ * batch to be flushed immediately.
+ * 
+ * Batches that are waiting on their dependencies still hold a thread pool
+ * permit, so the usual back-pressure on the scanner continues to apply.  To
+ * avoid deadlock, a batch that other batches are already waiting on bypasses
+ * back-pressure rather than blocking.
+ * 
+ * @author Peter Monks (pmonks@gmail.com)
+ */
+public final class BatchScheduler
+{
+    private final static Log log = LogFactory.getLog(BatchScheduler.class);
+    
+    private final static String REGEX_SPLIT_PATH_ELEMENTS = "[\\\\/]+";
+    private final static String PATH_SEPARATOR            = "/";
+    private final static long   POLL_INTERVAL_IN_MS       = 1000L;
+    
+    private final BulkImportThreadPoolExecutor importThreadPool;
+    
+    // Keyed by source-relative path (normalised); values are the uncommitted batches that will create those paths
+    private final Map<String, PendingBatch>  providers = new HashMap<>();
+    private final Map<Integer, PendingBatch> inFlight  = new HashMap<>();
+    
+    private int waitingBatches = 0;
+    
+    
+    public BatchScheduler(final BulkImportThreadPoolExecutor importThreadPool)
+    {
+        // PRECONDITIONS
+        assert importThreadPool != null : "importThreadPool must not be null.";
+        
+        // Body
+        this.importThreadPool = importThreadPool;
+    }
+    
+    
+    /**
+     * Starts assembling a new batch.
+     * 
+     * @param assembler The object that is assembling the batch <i>(must not be null)</i>.
+     * @return A handle representing the batch while it's being assembled <i>(will not be null)</i>.
+     */
+    public PendingBatch newPendingBatch(final BatchAssembler assembler)
+    {
+        return(new PendingBatch(assembler));
+    }
+    
+    
+    /**
+     * Notifies the scheduler that the given item has been added to the given pending batch.  This must be called as
+     * each item is added, so that batches assembled by other threads can see which folders the batch will create.
+     * 
+     * @param pendingBatch The pending batch the item was added to <i>(must not be null)</i>.
+     * @param item         The item that was added <i>(must not be null)</i>.
+     */
+    public void itemAdded(final PendingBatch pendingBatch, final BulkImportItem<BulkImportItemVersion> item)
+    {
+        if (item.isDirectory())
+        {
+            final String path = pathOf(item);
+            
+            synchronized(this)
+            {
+                providers.put(path, pendingBatch);
+                pendingBatch.providedPaths.add(path);
+            }
+        }
+    }
+    
+    
+    /**
+     * Schedules the given batch.  This method blocks if the import thread pool is saturated, but does not block while
+     * the batch waits on its dependencies.
+     * 
+     * @param pendingBatch The pending batch that was used to assemble the batch <i>(must not be null)</i>.
+     * @param batch        The batch to schedule <i>(must not be null)</i>.
+     * @param job          The job that imports the batch.  It must call {@link #batchCommitted(Batch)} once the batch has committed <i>(must not be null)</i>.
+     * @throws InterruptedException If the thread is interrupted while blocked.
+     */
+    public void schedule(final PendingBatch pendingBatch, final Batch batch, final Runnable job)
+        throws InterruptedException
+    {
+        // PRECONDITIONS
+        assert pendingBatch != null : "pendingBatch must not be null.";
+        assert batch        != null : "batch must not be null.";
+        assert job          != null : "job must not be null.";
+        
+        // Body
+        final List<PendingBatch> unscheduledProviders = new ArrayList<>();
+        boolean                  holdsPermit          = false;
+        
+        // Note: the permit must be acquired outside the lock, so that commits can proceed while we're blocked
+        while (!holdsPermit)
+        {
+            holdsPermit = importThreadPool.tryAcquirePermit(POLL_INTERVAL_IN_MS, TimeUnit.MILLISECONDS);
+            
+            if (!holdsPermit)
+            {
+                if (importThreadPool.isShutdown())
+                {
+                    if (debug(log)) debug(log, String.valueOf(batch) + " submitted during shutdown - ignoring it.");
+                    return;
+                }
+                
+                synchronized(this)
+                {
+                    if (!pendingBatch.dependents.isEmpty())
+                    {
+                        if (debug(log)) debug(log, String.valueOf(batch) + " has other batches waiting on it - bypassing back-pressure.");
+                        break;
+                    }
+                }
+            }
+        }
+        
+        synchronized(this)
+        {
+            pendingBatch.batch       = batch;
+            pendingBatch.job         = job;
+            pendingBatch.holdsPermit = holdsPermit;
+            pendingBatch.scheduled   = true;
+            
+            // Register this batch's dependencies on other, uncommitted batches
+            for (final BulkImportItem<BulkImportItemVersion> item : batch)
+            {
+                final PendingBatch provider = providers.get(normalisePath(item.getRelativePathOfParent()));
+                
+                if (provider != null && provider != pendingBatch && provider.dependents.add(pendingBatch))
+                {
+                    pendingBatch.unresolvedDependencies++;
+                    
+                    if (!provider.scheduled)
+                    {
+                        unscheduledProviders.add(provider);
+                    }
+                }
+            }
+            
+            inFlight.put(batch.getNumber(), pendingBatch);
+            
+            if (pendingBatch.unresolvedDependencies > 0)
+            {
+                if (trace(log)) trace(log, String.valueOf(batch) + " is waiting on " + pendingBatch.unresolvedDependencies + " other batch(es).");
+                waitingBatches++;
+            }
+            else
+            {
+                release(pendingBatch);
+            }
+        }
+        
+        // Ask the assemblers of any batches we're waiting on to submit them now, rather than when they fill up
+        // Note: must be done outside the lock, since assemblers call back into the scheduler
+        for (final PendingBatch provider : unscheduledProviders)
+        {
+            provider.assembler.flush(provider);
+        }
+    }
+    
+    
+    /**
+     * Notifies the scheduler that the given batch has committed, releasing any batches that were waiting on it.
+     * 
+     * @param batch The batch that committed <i>(must not be null)</i>.
+     */
+    public synchronized void batchCommitted(final Batch batch)
+    {
+        final PendingBatch pendingBatch = inFlight.remove(batch.getNumber());
+        
+        if (pendingBatch != null)
+        {
+            for (final String path : pendingBatch.providedPaths)
+            {
+                if (providers.get(path) == pendingBatch)
+                {
+                    providers.remove(path);
+                }
+            }
+            
+            for (final PendingBatch dependent : pendingBatch.dependents)
+            {
+                dependent.unresolvedDependencies--;
+                
+                if (dependent.unresolvedDependencies <= 0)
+                {
+                    waitingBatches--;
+                    release(dependent);
+                }
+            }
+            
+            notifyAll();
+        }
+    }
+    
+    
+    /**
+     * Waits until every scheduled batch has been released to the import thread pool, or the thread pool has been
+     * shut down.
+     * 
+     * @throws InterruptedException If the thread executing the method is interrupted.
+     */
+    public synchronized void awaitRelease()
+        throws InterruptedException
+    {
+        while (waitingBatches > 0 && !importThreadPool.isShutdown())
+        {
+            wait(POLL_INTERVAL_IN_MS);
+        }
+    }
+    
+    
+    /**
+     * @return The number of batches that are waiting on earlier batches to commit.
+     */
+    public synchronized int getWaitingBatchCount()
+    {
+        return(waitingBatches);
+    }
+    
+    
+    private void release(final PendingBatch pendingBatch)
+    {
+        if (trace(log)) trace(log, "Releasing " + String.valueOf(pendingBatch.batch) + " to the import thread pool.");
+        
+        if (pendingBatch.holdsPermit)
+        {
+            importThreadPool.executeWithPermit(pendingBatch.job);
+        }
+        else
+        {
+            importThreadPool.executeWithoutPermit(pendingBatch.job);
+        }
+    }
+    
+    
+    /*
+     * Returns the normalised source-relative path of the given item.  Note: also used by the checkpoint journal.
+     */
+    final static String pathOf(final BulkImportItem<BulkImportItemVersion> item)
+    {
+        final String parentPath = normalisePath(item.getRelativePathOfParent());
+        
+        return(parentPath.length() == 0 ? item.getName() : parentPath + PATH_SEPARATOR + item.getName());
+    }
+    
+    
+    /*
+     * Note: also used by the batch importer.
+     */
+    final static String normalisePath(final String path)
+    {
+        final StringBuilder result = new StringBuilder();
+        
+        if (path != null)
+        {
+            for (final String element : path.split(REGEX_SPLIT_PATH_ELEMENTS))
+            {
+                if (element.length() > 0)
+                {
+                    if (result.length() > 0)
+                    {
+                        result.append(PATH_SEPARATOR);
+                    }
+                    
+                    result.append(element);
+                }
+            }
+        }
+        
+        return(result.toString());
+    }
+    
+    
+    /**
+     * Implemented by whatever assembles batches, so that the scheduler can ask for a batch to be submitted early.
+     */
+    public interface BatchAssembler
+    {
+        /**
+         * Submits the given pending batch as-is, if it hasn't been submitted already.
+         * 
+         * @param pendingBatch The pending batch to submit <i>(will not be null)</i>.
+         * @throws InterruptedException If the thread is interrupted.
+         */
+        void flush(PendingBatch pendingBatch)
+            throws InterruptedException;
+    }
+    
+    
+    /**
+     * Represents a batch from the moment its first item is added until it commits.
+     */
+    public final static class PendingBatch
+    {
+        private final BatchAssembler    assembler;
+        private final Set<String>       providedPaths = new HashSet<>();
+        private final Set<PendingBatch> dependents    = new HashSet<>();
+        
+        private Batch    batch                  = null;
+        private Runnable job                    = null;
+        private boolean  holdsPermit            = false;
+        private boolean  scheduled              = false;
+        private int      unresolvedDependencies = 0;
+        
+        private PendingBatch(final BatchAssembler assembler)
+        {
+            this.assembler = assembler;
+        }
+    }
+    
+}
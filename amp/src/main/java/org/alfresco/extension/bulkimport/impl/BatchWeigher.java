@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2007 Peter Monks
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * This file is part of an unsupported extension to Alfresco.
+ * 
+ */
+
+package org.alfresco.extension.bulkimport.impl;
+
+import org.alfresco.extension.bulkimport.source.BulkImportItem;
+import org.alfresco.extension.bulkimport.source.BulkImportItemVersion;
+
+
+/**
+ * This interface defines a batch weigher.  The "weight" of an item is a
+ * unitless estimate of how expensive it is to import, and batches are closed
+ * once adding another item would exceed the (configured) batch weight.
+ * 
+ * Implementations are shared across imports and called concurrently from
+ * multiple scanner threads, so they must be stateless (or at least thread
+ * safe).
+ * 
+ * @author Peter Monks (pmonks@gmail.com)
+ */
+public interface BatchWeigher
+{
+    /**
+     * Estimates the weight of the given item.
+     * 
+     * @param item The item to weigh <i>(will not be null)</i>.
+     * @return The weight of the item <i>(should be at least 1)</i>.
+     */
+    int weigh(BulkImportItem<BulkImportItemVersion> item);
+    
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2007 Peter Monks
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * This file is part of an unsupported extension to Alfresco.
+ * 
+ */
+
+package org.alfresco.extension.bulkimport.impl;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import static org.alfresco.extension.bulkimport.util.LogUtils.*;
+
+
+/**
+ * This class determines the maximum weight of each batch.  In static mode
+ * this is simply the configured batch weight.  In adaptive mode the weight is
+ * tuned while the import runs, using an AIMD (additive increase,
+ * multiplicative decrease) controller that compares the observed duration
+ * of each batch's transaction against a target latency.
+ * 
+ * Only batches that were assembled using the current weight are considered,
+ * so that batches still in flight from before an adjustment don't trigger a
+ * second adjustment in the same direction.
+ * 
+ * It is a stateful class that is instantiated once per-import.
+ * 
+ * @author Peter Monks (pmonks@gmail.com)
+ */
+public class BatchWeightController
+{
+    private final static Log log = LogFactory.getLog(BatchWeightController.class);
+    
+    private final static int   DEFAULT_BATCH_WEIGHT      = 100;
+    private final static long  DEFAULT_TARGET_LATENCY_MS = 2000L;
+    private final static int   SAMPLES_PER_ADJUSTMENT    = 10;
+    private final static float DECREASE_FACTOR           = 0.5f;
+    private final static float INCREASE_THRESHOLD        = 0.8f;   // Only grow if comfortably under the target, to avoid oscillation
+    private final static int   INCREASE_STEP_DIVISOR     = 10;     // Additive increase is 1/10th of the initial weight
+    
+    private final boolean adaptive;
+    private final long    targetLatencyInNs;
+    private final int     minimumWeight;
+    private final int     maximumWeight;
+    private final int     increaseStep;
+    
+    private WritableBulkImportStatus importStatus = null;
+    private volatile int             batchWeight;
+    private int                      samples      = 0;
+    private long                     totalNs      = 0L;
+    
+    
+    public BatchWeightController(final int     batchWeight,
+                                 final boolean adaptive,
+                                 final long    targetLatencyInMs,
+                                 final int     minimumWeight,
+                                 final int     maximumWeight)
+    {
+        this.batchWeight       = batchWeight <= 0 ? DEFAULT_BATCH_WEIGHT : batchWeight;
+        this.adaptive          = adaptive;
+        this.targetLatencyInNs = (targetLatencyInMs <= 0 ? DEFAULT_TARGET_LATENCY_MS : targetLatencyInMs) * 1000L * 1000L;
+        this.minimumWeight     = Math.max(1, Math.min(minimumWeight <= 0 ? 1 : minimumWeight, this.batchWeight));
+        this.maximumWeight     = Math.max(this.batchWeight, maximumWeight);
+        this.increaseStep      = Math.max(1, this.batchWeight / INCREASE_STEP_DIVISOR);
+        
+        if (debug(log)) debug(log, "Created new batch weight controller." +
+                                   " Initial Weight="   + this.batchWeight +
+                                   ", Adaptive="        + adaptive +
+                                   (adaptive ? ", Target Latency=" + (this.targetLatencyInNs / (1000L * 1000L)) + "ms" +
+                                               ", Minimum Weight=" + this.minimumWeight +
+                                               ", Maximum Weight=" + this.maximumWeight : ""));
+    }
+    
+    
+    /**
+     * @param importStatus The status object to report adjustments to <i>(must not be null)</i>.
+     */
+    public synchronized void init(final WritableBulkImportStatus importStatus)
+    {
+        this.importStatus = importStatus;
+    }
+    
+    
+    /**
+     * @return The maximum weight of new batches.
+     */
+    public int getBatchWeight()
+    {
+        return(batchWeight);
+    }
+    
+    
+    /**
+     * @return True if the batch weight is tuned while the import runs.
+     */
+    public boolean isAdaptive()
+    {
+        return(adaptive);
+    }
+    
+    
+    /**
+     * Notifies the controller that a batch has committed.
+     * 
+     * @param batchWeightUsed The batch weight that was in effect when the batch was assembled.
+     * @param durationInNs    How long the batch took to import, in nanoseconds.
+     */
+    public synchronized void batchCompleted(final int batchWeightUsed, final long durationInNs)
+    {
+        if (adaptive && batchWeightUsed == batchWeight)
+        {
+            samples++;
+            totalNs += durationInNs;
+            
+            if (samples >= SAMPLES_PER_ADJUSTMENT)
+            {
+                final long meanLatencyInNs = totalNs / samples;
+                int        newBatchWeight  = batchWeight;
+                
+                if (meanLatencyInNs > targetLatencyInNs)
+                {
+                    newBatchWeight = Math.max(minimumWeight, (int)(batchWeight * DECREASE_FACTOR));
+                }
+                else if (meanLatencyInNs < targetLatencyInNs * INCREASE_THRESHOLD)
+                {
+                    newBatchWeight = Math.min(maximumWeight, batchWeight + increaseStep);
+                }
+                
+                samples = 0;
+                totalNs = 0L;
+                
+                if (newBatchWeight != batchWeight)
+                {
+                    if (info(log)) info(log, "Mean batch latency was " + (meanLatencyInNs / (1000L * 1000L)) + "ms (target is " + (targetLatencyInNs / (1000L * 1000L)) + "ms) - adjusting batch weight from " + batchWeight + " to " + newBatchWeight + ".");
+                    
+                    batchWeight = newBatchWeight;
+                    
+                    if (importStatus != null)
+                    {
+                        importStatus.batchWeightAdjusted(newBatchWeight);
+                    }
+                }
+            }
+        }
+    }
+    
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2007 Peter Monks
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * This file is part of an unsupported extension to Alfresco.
+ * 
+ */
+
+package org.alfresco.extension.bulkimport.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+
+/**
+ * This class describes a named set of behaviours to disable while each batch
+ * is imported.  Disabling behaviours (e.g. auto-versioning, thumbnailing,
+ * quota tracking) and rules can dramatically increase throughput, at the cost
+ * of the integrity guarantees those behaviours would otherwise provide - it's
+ * typically only appropriate for initial migrations into otherwise unused
+ * areas of the repository.
+ * 
+ * Profiles are configured in <code>public-context.xml</code> and selected per
+ * import via the <code>behaviourProfile</code> parameter.
+ * 
+ * @author Peter Monks (pmonks@gmail.com)
+ */
+public final class BehaviourProfile
+{
+    private final String       name;
+    private final List<String> disabledClasses;
+    private final boolean      disableRules;
+    
+    
+    /**
+     * @param name            The name of the profile <i>(must not be null, empty or blank)</i>.
+     * @param disabledClasses The types and aspects (as QNames, in either full or prefix form) whose behaviours are to
+     *                        be disabled <i>(may be null)</i>.
+     * @param disableRules    Flag indicating whether rules are to be disabled.
+     */
+    public BehaviourProfile(final String       name,
+                            final List<String> disabledClasses,
+                            final boolean      disableRules)
+    {
+        // PRECONDITIONS
+        assert name != null && name.trim().length() > 0 : "name must not be null, empty or blank.";
+        
+        // Body
+        this.name            = name.trim();
+        this.disabledClasses = disabledClasses == null ? Collections.<String>emptyList() : Collections.unmodifiableList(new ArrayList<>(disabledClasses));
+        this.disableRules    = disableRules;
+    }
+    
+    
+    /**
+     * @return The name of the profile <i>(will not be null, empty or blank)</i>.
+     */
+    public String getName()
+    {
+        return(name);
+    }
+    
+    
+    /**
+     * @return The types and aspects whose behaviours are to be disabled <i>(will not be null, but may be empty)</i>.
+     */
+    public List<String> getDisabledClasses()
+    {
+        return(disabledClasses);
+    }
+    
+    
+    /**
+     * @return True if rules are to be disabled.
+     */
+    public boolean isDisableRules()
+    {
+        return(disableRules);
+    }
+    
+    
+    /**
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString()
+    {
+        return(name + " (disables behaviours for " + String.valueOf(disabledClasses) + (disableRules ? ", and rules" : "") + ")");
+    }
+    
+}
@@ -299,6 +299,13 @@ public class BulkImportStatusImpl
         incrementTargetCounter(TARGET_COUNTER_ASPECTS_ASSOCIATED,           batch.numberOfAspects());
     }
     
+    @Override
+    public void batchWeightAdjusted(final long newBatchWeight)
+    {
+        this.batchWeight = newBatchWeight;
+        incrementTargetCounter(TARGET_COUNTER_BATCH_WEIGHT_ADJUSTMENTS);
+    }
+    
     @Override
     public void preregisterSourceCounters(final String[] counterNames)
     {
@@ -19,6 +19,8 @@
 
 package org.alfresco.extension.bulkimport.impl;
 
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
 import java.text.DecimalFormat;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadFactory;
@@ -27,16 +29,89 @@ import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * This ThreadFactory provides human-readable names for threads initiated by the Bulk Filesystem Importer.
+ * 
+ * It can optionally create virtual threads instead of platform threads.  Virtual threads are only available on
+ * JDK 21+, so they're created reflectively (this code has to run on older JVMs too).
  *
  * @author Peter Monks (pmonks@gmail.com)
  */
 public class BulkImportThreadFactory
     implements ThreadFactory
 {
-    private final static String THREAD_NAME_PREFIX = "BulkImport-Importer-";
+    private final static String DEFAULT_THREAD_NAME_PREFIX = "BulkImport-Importer-";
+    
+    // Thread.ofVirtual() and Thread.Builder.unstarted(Runnable) - both null if virtual threads aren't supported
+    private final static Method OF_VIRTUAL;
+    private final static Method UNSTARTED;
+    
+    static
+    {
+        Method ofVirtual = null;
+        Method unstarted = null;
+        
+        try
+        {
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            unstarted = Class.forName("java.lang.Thread$Builder").getMethod("unstarted", Runnable.class);
+        }
+        catch (final ReflectiveOperationException roe)
+        {
+            ofVirtual = null;
+            unstarted = null;
+        }
+        
+        OF_VIRTUAL = ofVirtual;
+        UNSTARTED  = unstarted;
+    }
     
     private final DecimalFormat decimalFormat       = new DecimalFormat("0000");
     private final AtomicLong    currentThreadNumber = new AtomicLong(0);
+    private final String        threadNamePrefix;
+    private final boolean       virtual;
+    
+    
+    public BulkImportThreadFactory()
+    {
+        this(false);
+    }
+    
+    
+    /**
+     * @param virtual Whether to create virtual threads.  Must only be true if {@link #virtualThreadsSupported()} is true.
+     */
+    public BulkImportThreadFactory(final boolean virtual)
+    {
+        this(DEFAULT_THREAD_NAME_PREFIX, virtual);
+    }
+    
+    
+    /**
+     * @param threadNamePrefix The prefix for the names of the threads created by this factory <i>(must not be null)</i>.
+     * @param virtual          Whether to create virtual threads.  Must only be true if {@link #virtualThreadsSupported()} is true.
+     */
+    public BulkImportThreadFactory(final String threadNamePrefix, final boolean virtual)
+    {
+        // PRECONDITIONS
+        assert threadNamePrefix != null : "threadNamePrefix must not be null.";
+        
+        // Body
+        if (virtual && !virtualThreadsSupported())
+        {
+            throw new IllegalArgumentException("Virtual threads are not supported by this JVM.");
+        }
+        
+        this.threadNamePrefix = threadNamePrefix;
+        this.virtual          = virtual;
+    }
+    
+    
+    /**
+     * @return True if this JVM supports virtual threads.
+     */
+    public static boolean virtualThreadsSupported()
+    {
+        return(OF_VIRTUAL != null && UNSTARTED != null);
+    }
     
     
     /**
@@ -45,15 +120,32 @@ public class BulkImportThreadFactory
     @Override
     public Thread newThread(final Runnable runnable)
     {
-        final Thread result = Executors.defaultThreadFactory().newThread(runnable);
+        final Thread result = virtual ? newVirtualThread(runnable) : Executors.defaultThreadFactory().newThread(runnable);
+        
+        result.setName(threadNamePrefix + decimalFormat.format(currentThreadNumber.incrementAndGet()));
         
-        result.setName(THREAD_NAME_PREFIX + decimalFormat.format(currentThreadNumber.incrementAndGet()));
-        result.setDaemon(true);
+        if (!virtual)
+        {
+            result.setDaemon(true);   // Note: virtual threads are always daemon threads
+        }
         
         return(result);
     }
     
     
+    private final static Thread newVirtualThread(final Runnable runnable)
+    {
+        try
+        {
+            return((Thread)UNSTARTED.invoke(OF_VIRTUAL.invoke(null), runnable));
+        }
+        catch (final IllegalAccessException | InvocationTargetException e)
+        {
+            throw new RuntimeException(e);  // Checked exceptions == #fail
+        }
+    }
+    
+    
     /**
      * Resets this thread pool (i.e. sets the thread number counter back to zero).
      */
@@ -22,6 +22,7 @@ package org.alfresco.extension.bulkimport.impl;
 
 import java.util.concurrent.*;
 
+import org.alfresco.extension.bulkimport.BulkImportStatus;
 import org.alfresco.extension.bulkimport.util.ThreadPauser;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -34,6 +35,21 @@ import static org.alfresco.extension.bulkimport.util.LogUtils.*;
  * that uses sensible defaults for the bulk import tool.  Note that calls to
  * <code>execute</code> and <code>submit</code> can block.
  *
+ * If adaptive sizing is enabled, the pool is resized (within the configured
+ * bounds) while the import runs, by hill-climbing on throughput (nodes
+ * imported per second).  Each interval the pool takes a step in the current
+ * direction; if throughput dropped as a result of the previous step the
+ * direction is reversed.  The pool always shrinks if the transaction retry
+ * rate is high, since that indicates database contention, and never grows
+ * unless there's work waiting in the queue.
+ *
+ * On JVMs that support them (JDK 21+), the workers can optionally be virtual
+ * threads.  Since virtual threads are cheap, the pool can then be much larger
+ * than usual, allowing far more blocking I/O to be overlapped (concurrent
+ * database transactions are limited separately, by the batch importer).
+ * Adaptive sizing is not used with virtual threads.  If virtual threads are
+ * requested but not supported, platform threads are used instead.
+ *
  * @author Peter Monks (pmonks@gmail.com)
  */
 public class BulkImportThreadPoolExecutor
@@ -42,13 +58,35 @@ public class BulkImportThreadPoolExecutor
     private final static Log log = LogFactory.getLog(BulkImportThreadPoolExecutor.class);
     
     private final static int      DEFAULT_THREAD_POOL_SIZE     = Runtime.getRuntime().availableProcessors() * 4;
+    private final static int      DEFAULT_MAX_THREAD_POOL_SIZE = DEFAULT_THREAD_POOL_SIZE * 2;
+    private final static int      DEFAULT_VIRTUAL_POOL_SIZE    = 256;
     private final static long     DEFAULT_KEEP_ALIVE_TIME      = 10L;
     private final static TimeUnit DEFAULT_KEEP_ALIVE_TIME_UNIT = TimeUnit.MINUTES;
     private final static int      DEFAULT_QUEUE_CAPACITY       = 100;  // Batches
+    private final static long     DEFAULT_ADJUSTMENT_INTERVAL  = 30000L;  // ms
+    private final static float    MAX_RETRY_RATE               = 0.1f;   // Retries per batch, above which the pool is always shrunk
+    private final static float    THROUGHPUT_TOLERANCE         = 0.05f;  // Throughput changes smaller than this are considered noise
+    private final static int      ADJUSTMENT_STEP_DIVISOR      = 10;     // Each step is 1/10th of the range between the bounds
 
-    private final int          queueCapacity;
-    private final ThreadPauser pauser;
-    private final Semaphore    queueSemaphore;
+    private final int           queueCapacity;
+    private final ThreadPauser  pauser;
+    private final PoolSemaphore queueSemaphore;
+    private final boolean       virtualThreads;
+    private final boolean       adaptive;
+    private final int           minThreadPoolSize;
+    private final int           maxThreadPoolSize;
+    private final long          adjustmentIntervalInNs;
+    private final int           adjustmentStep;
+    
+    // Hill-climbing state - guarded by adjustmentLock
+    private final Object             adjustmentLock         = new Object();
+    private WritableBulkImportStatus importStatus           = null;
+    private volatile long            lastAdjustmentTime     = System.nanoTime();
+    private long                     lastNodesImported      = 0L;
+    private long                     lastBatchesCompleted   = 0L;
+    private long                     lastTransactionRetries = 0L;
+    private float                    lastThroughput         = -1.0f;
+    private int                      direction              = 1;
 
 
     public BulkImportThreadPoolExecutor(final ThreadPauser pauser,
@@ -57,27 +95,69 @@ public class BulkImportThreadPoolExecutor
                                         final long         keepAliveTime,
                                         final TimeUnit     keepAliveTimeUnit)
     {
-        super(threadPoolSize    <= 0    ? DEFAULT_THREAD_POOL_SIZE     : threadPoolSize,      // Core pool size
-              threadPoolSize    <= 0    ? DEFAULT_THREAD_POOL_SIZE     : threadPoolSize,      // Max pool size (same as core pool size)
+        this(pauser, threadPoolSize, queueCapacity, keepAliveTime, keepAliveTimeUnit, false, -1, -1, -1L, false);
+    }
+
+
+    public BulkImportThreadPoolExecutor(final ThreadPauser pauser,
+                                        final int          threadPoolSize,
+                                        final int          queueCapacity,
+                                        final long         keepAliveTime,
+                                        final TimeUnit     keepAliveTimeUnit,
+                                        final boolean      adaptive,
+                                        final int          minThreadPoolSize,
+                                        final int          maxThreadPoolSize,
+                                        final long         adjustmentIntervalInMs,
+                                        final boolean      virtualThreads)
+    {
+        super(initialThreadPoolSize(threadPoolSize, virtualThreads, adaptive, minThreadPoolSize, maxThreadPoolSize),  // Core pool size
+              initialThreadPoolSize(threadPoolSize, virtualThreads, adaptive, minThreadPoolSize, maxThreadPoolSize),  // Max pool size (same as core pool size)
               keepAliveTime     <= 0    ? DEFAULT_KEEP_ALIVE_TIME      : keepAliveTime,       // Keep alive
               keepAliveTimeUnit == null ? DEFAULT_KEEP_ALIVE_TIME_UNIT : keepAliveTimeUnit,   // Keep alive units
               new LinkedBlockingQueue<Runnable>(),                                            // Queue of maximum size
-              new BulkImportThreadFactory(),                                                  // Thread factory
+              new BulkImportThreadFactory(useVirtualThreads(virtualThreads)),                 // Thread factory
               new ThreadPoolExecutor.AbortPolicy());                                          // Rejection handler (shouldn't ever be called, due to the use of a semaphone before task submission)
 
-        this.queueCapacity = queueCapacity;
-        this.pauser        = pauser;
+        if (virtualThreads && !useVirtualThreads(virtualThreads))
+        {
+            if (warn(log)) warn(log, "Virtual threads were requested, but are not supported by this JVM (" + System.getProperty("java.version") + "). Falling back to platform threads.");
+        }
+        
+        this.queueCapacity          = queueCapacity;
+        this.pauser                 = pauser;
+        this.virtualThreads         = useVirtualThreads(virtualThreads);
+        this.adaptive               = adaptive && !this.virtualThreads;
+        this.minThreadPoolSize      = this.adaptive ? minThreadPoolSize(minThreadPoolSize, maxThreadPoolSize) : getCorePoolSize();
+        this.maxThreadPoolSize      = this.adaptive ? maxThreadPoolSize(maxThreadPoolSize)                    : getCorePoolSize();
+        this.adjustmentIntervalInNs = (adjustmentIntervalInMs <= 0 ? DEFAULT_ADJUSTMENT_INTERVAL : adjustmentIntervalInMs) * 1000L * 1000L;
+        this.adjustmentStep         = Math.max(1, (this.maxThreadPoolSize - this.minThreadPoolSize) / ADJUSTMENT_STEP_DIVISOR);
 
-        final int queuePlusPoolSize = (queueCapacity  <= 0 ? DEFAULT_QUEUE_CAPACITY   : queueCapacity) +
-                                      (threadPoolSize <= 0 ? DEFAULT_THREAD_POOL_SIZE : threadPoolSize);
-        this.queueSemaphore = new Semaphore(queuePlusPoolSize);
+        // Note: the semaphore is sized for the current size of the pool, and is adjusted whenever the pool is resized
+        final int queuePlusPoolSize = (queueCapacity <= 0 ? DEFAULT_QUEUE_CAPACITY : queueCapacity) + getCorePoolSize();
+        this.queueSemaphore = new PoolSemaphore(queuePlusPoolSize);
 
         if (debug(log)) debug(log, "Created new bulk import thread pool." +
-                                   " Thread Pool Size="        + (threadPoolSize    <= 0    ? DEFAULT_THREAD_POOL_SIZE     : threadPoolSize) +
+                                   " Thread Pool Size="        + getCorePoolSize() +
+                                   (this.virtualThreads ? " (virtual threads)" : "") +
+                                   (this.adaptive ? ", Adaptive Sizing Between=" + this.minThreadPoolSize + " and " + this.maxThreadPoolSize +
+                                               ", Adjustment Interval="     + (this.adjustmentIntervalInNs / (1000L * 1000L)) + "ms" : "") +
                                    ", Queue Capacity="         + ((queueCapacity    <= 0    ? DEFAULT_QUEUE_CAPACITY       : queueCapacity) + 2) +
                                    ", Keep Alive Time="        + (keepAliveTime     <= 0    ? DEFAULT_KEEP_ALIVE_TIME      : keepAliveTime)  +
                                    " "                         + String.valueOf(keepAliveTimeUnit == null ? DEFAULT_KEEP_ALIVE_TIME_UNIT : keepAliveTimeUnit));
     }
+    
+    
+    /**
+     * @param importStatus The status object that adaptive sizing measures throughput from <i>(must not be null)</i>.
+     */
+    public void init(final WritableBulkImportStatus importStatus)
+    {
+        synchronized(adjustmentLock)
+        {
+            this.importStatus       = importStatus;
+            this.lastAdjustmentTime = System.nanoTime();
+        }
+    }
 
 
     /**
@@ -100,11 +180,38 @@ public class BulkImportThreadPoolExecutor
     }
 
 
+    /**
+     * @see {@link ThreadPoolExecutor#afterExecute(Runnable, Throwable)}
+     */
+    @Override
+    protected void afterExecute(final Runnable runnable, final Throwable throwable)
+    {
+        super.afterExecute(runnable, throwable);
+        
+        if (adaptive && System.nanoTime() - lastAdjustmentTime >= adjustmentIntervalInNs)
+        {
+            adjustPoolSize();
+        }
+    }
+
+
     /**
      * @see {@link ThreadPoolExecutor#execute(Runnable)}
      */
     @Override
     public void execute(final Runnable command)
+    {
+        acquirePermit();
+        executeWithPermit(command);
+    }
+    
+    
+    /**
+     * Acquires one of the permits used to apply back-pressure to the scanner.  This method will block if the worker
+     * threads are saturated.  The permit must subsequently be handed to {@link #executeWithPermit(Runnable)}, which
+     * takes responsibility for releasing it.
+     */
+    public void acquirePermit()
     {
         try
         {
@@ -117,12 +224,57 @@ public class BulkImportThreadPoolExecutor
             Thread.currentThread().interrupt();
             throw new RuntimeException(ie);   // Checked exceptions are the bane of my existence...
         }
-
+    }
+    
+    
+    /**
+     * Attempts to acquire one of the permits used to apply back-pressure to the scanner, waiting at most the given
+     * amount of time for one to become available.
+     * 
+     * @param timeout     The maximum time to wait.
+     * @param timeoutUnit The units of the timeout <i>(must not be null)</i>.
+     * @return True if a permit was acquired (in which case it must be handed to {@link #executeWithPermit(Runnable)}).
+     * @throws InterruptedException If the thread is interrupted while waiting.
+     */
+    public boolean tryAcquirePermit(final long timeout, final TimeUnit timeoutUnit)
+        throws InterruptedException
+    {
+        return(queueSemaphore.tryAcquire(timeout, timeoutUnit));
+    }
+    
+    
+    /**
+     * Executes the given command, using a permit previously acquired via {@link #acquirePermit()}.  Unlike
+     * {@link #execute(Runnable)} this method never blocks, so it may be called by any thread, including worker threads.
+     * 
+     * @param command The command to execute <i>(must not be null)</i>.
+     */
+    public void executeWithPermit(final Runnable command)
+    {
+        executeImpl(command, true);
+    }
+    
+    
+    /**
+     * Executes the given command <u>without</u> a permit, bypassing back-pressure entirely.  This is only intended for
+     * work that other, already-submitted work is waiting on, where blocking would risk a deadlock.
+     * 
+     * @param command The command to execute <i>(must not be null)</i>.
+     */
+    public void executeWithoutPermit(final Runnable command)
+    {
+        executeImpl(command, false);
+    }
+    
+    
+    private void executeImpl(final Runnable command, final boolean holdsPermit)
+    {
         try
         {
             if (super.isTerminating() || super.isShutdown() || super.isTerminated())
             {
                 if (debug(log)) debug(log, "New work submitted during shutdown - ignoring new work.");
+                if (holdsPermit) queueSemaphore.release();
             }
             else
             {
@@ -138,7 +290,7 @@ public class BulkImportThreadPoolExecutor
                         finally
                         {
                             // Note: queueSemaphore must be released by the worker thread, not the scanner thread!
-                            queueSemaphore.release();
+                            if (holdsPermit) queueSemaphore.release();
                         }
                     }
                 });
@@ -147,7 +299,7 @@ public class BulkImportThreadPoolExecutor
         catch (final RejectedExecutionException ree)
         {
             // If this triggers, it's a bug in the back-pressure logic
-            queueSemaphore.release();
+            if (holdsPermit) queueSemaphore.release();
             throw new IllegalStateException("Worker threads were saturated (available permits = " + String.valueOf(queueSemaphore.availablePermits()) + "), " +
                                             "but scanning didn't block, resulting in a RejectedExecutionException. " +
                                             "This is probably a bug in the bulk import tool - please raise an issue at https://github.com/pmonks/alfresco-bulk-import/issues/, including this full stack trace (and all \"caused by\" stack traces).",
@@ -156,6 +308,125 @@ public class BulkImportThreadPoolExecutor
     }
     
     
+    /*
+     * Takes one hill-climbing step, if one is due.
+     */
+    private void adjustPoolSize()
+    {
+        synchronized(adjustmentLock)
+        {
+            final long now = System.nanoTime();
+            
+            if (importStatus == null || now - lastAdjustmentTime < adjustmentIntervalInNs) return;  // Another thread beat us to it
+            
+            final long  nodesImported      = counterValue(BulkImportStatus.TARGET_COUNTER_NODES_IMPORTED);
+            final long  batchesCompleted   = counterValue(BulkImportStatus.TARGET_COUNTER_BATCHES_COMPLETE);
+            final long  transactionRetries = counterValue(BulkImportStatus.TARGET_COUNTER_TRANSACTION_RETRIES);
+            final long  batches            = batchesCompleted - lastBatchesCompleted;
+            final float throughput         = (nodesImported - lastNodesImported) / ((now - lastAdjustmentTime) / (1000.0f * 1000.0f * 1000.0f));
+            final float retryRate          = batches <= 0 ? 0.0f : (transactionRetries - lastTransactionRetries) / (float)batches;
+            final int   currentSize        = getCorePoolSize();
+            
+            if (retryRate > MAX_RETRY_RATE)
+            {
+                direction = -1;
+            }
+            else if (lastThroughput >= 0.0f && throughput < lastThroughput * (1.0f - THROUGHPUT_TOLERANCE))
+            {
+                direction = -direction;   // The last step made things worse, so head back the other way
+            }
+            
+            int newSize = Math.max(minThreadPoolSize, Math.min(maxThreadPoolSize, currentSize + direction * adjustmentStep));
+            
+            if (newSize > currentSize && isQueueEmpty())
+            {
+                newSize = currentSize;    // More threads won't help if they'd have nothing to do
+            }
+            
+            if (debug(log)) debug(log, "Thread pool throughput was " + throughput + " nodes/s (previously " + lastThroughput + " nodes/s), with " + retryRate + " transaction retries per batch.");
+            
+            if (newSize != currentSize)
+            {
+                if (info(log)) info(log, "Resizing thread pool from " + currentSize + " to " + newSize + " threads.");
+                
+                // Note: order matters, as core pool size must never exceed max pool size
+                if (newSize > currentSize)
+                {
+                    setMaximumPoolSize(newSize);
+                    setCorePoolSize(newSize);
+                    queueSemaphore.release(newSize - currentSize);
+                }
+                else
+                {
+                    setCorePoolSize(newSize);
+                    setMaximumPoolSize(newSize);
+                    queueSemaphore.reducePermits(currentSize - newSize);
+                }
+                
+                importStatus.incrementTargetCounter(BulkImportStatus.TARGET_COUNTER_THREAD_POOL_ADJUSTMENTS);
+            }
+            
+            lastAdjustmentTime     = now;
+            lastNodesImported      = nodesImported;
+            lastBatchesCompleted   = batchesCompleted;
+            lastTransactionRetries = transactionRetries;
+            lastThroughput         = throughput;
+        }
+    }
+    
+    
+    private long counterValue(final String counterName)
+    {
+        final Long result = importStatus.getTargetCounter(counterName);
+        
+        return(result == null ? 0L : result.longValue());
+    }
+    
+    
+    private final static int initialThreadPoolSize(final int threadPoolSize, final boolean virtualThreads, final boolean adaptive, final int minThreadPoolSize, final int maxThreadPoolSize)
+    {
+        int result = threadPoolSize <= 0 ? DEFAULT_THREAD_POOL_SIZE : threadPoolSize;
+        
+        if (useVirtualThreads(virtualThreads))
+        {
+            result = threadPoolSize <= 0 ? DEFAULT_VIRTUAL_POOL_SIZE : threadPoolSize;
+        }
+        else if (adaptive)
+        {
+            result = Math.max(minThreadPoolSize(minThreadPoolSize, maxThreadPoolSize), Math.min(maxThreadPoolSize(maxThreadPoolSize), result));
+        }
+        
+        return(result);
+    }
+    
+    
+    private final static boolean useVirtualThreads(final boolean virtualThreads)
+    {
+        return(virtualThreads && BulkImportThreadFactory.virtualThreadsSupported());
+    }
+    
+    
+    private final static int minThreadPoolSize(final int minThreadPoolSize, final int maxThreadPoolSize)
+    {
+        return(Math.min(minThreadPoolSize <= 0 ? 1 : minThreadPoolSize, maxThreadPoolSize(maxThreadPoolSize)));
+    }
+    
+    
+    private final static int maxThreadPoolSize(final int maxThreadPoolSize)
+    {
+        return(maxThreadPoolSize <= 0 ? DEFAULT_MAX_THREAD_POOL_SIZE : maxThreadPoolSize);
+    }
+    
+    
+    /**
+     * @return True if the workers in this thread pool are virtual threads.
+     */
+    public boolean usesVirtualThreads()
+    {
+        return(virtualThreads);
+    }
+    
+    
     /**
      * @return The current size (number of items) on the queue.
      */
@@ -182,4 +453,26 @@ public class BulkImportThreadPoolExecutor
         return(getQueue().isEmpty());
     }
 
+    
+    /*
+     * A semaphore whose number of permits can be reduced (as well as increased, via release) as the pool is resized.
+     * Reducing the permits never blocks - it simply means that fewer permits are handed out until enough are released.
+     */
+    private final static class PoolSemaphore
+        extends Semaphore
+    {
+        private static final long serialVersionUID = -4117212935108736519L;
+        
+        private PoolSemaphore(final int permits)
+        {
+            super(permits);
+        }
+        
+        @Override
+        protected void reducePermits(final int reduction)
+        {
+            super.reducePermits(reduction);
+        }
+    }
+    
 }
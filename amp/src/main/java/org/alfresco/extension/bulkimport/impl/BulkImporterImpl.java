@@ -61,8 +61,7 @@ public abstract class BulkImporterImpl   // Note: this class is only abstract be
 {
     private final static Log log = LogFactory.getLog(BulkImporterImpl.class);
 
-    private final static int    DEFAULT_BATCH_WEIGHT = 100;
-    private final static String SCANNER_THREAD_NAME  = "BulkImport-Scanner";
+    private final static String SCANNER_THREAD_NAME = "BulkImport-Scanner";
 
     private final ServiceRegistry       serviceRegistry;
     private final NodeService           nodeService;
@@ -73,7 +72,7 @@ public abstract class BulkImporterImpl   // Note: this class is only abstract be
     private final WritableBulkImportStatus          importStatus;
     private final ThreadPauser                      pauser;
     private final BatchImporter                     batchImporter;
-    private final int                               batchWeight;
+    private final BatchWeigher                      batchWeigher;
     private final List<BulkImportCompletionHandler> completionHandlers;
     
     private ApplicationContext appContext;
@@ -86,7 +85,7 @@ public abstract class BulkImporterImpl   // Note: this class is only abstract be
                             final WritableBulkImportStatus          importStatus,
                             final ThreadPauser                      pauser,
                             final BatchImporter                     batchImporter,
-                            final int                               batchWeight,
+                            final BatchWeigher                      batchWeigher,
                             final List<BulkImportCompletionHandler> completionHandlers)
     {
         // PRECONDITIONS
@@ -94,6 +93,7 @@ public abstract class BulkImporterImpl   // Note: this class is only abstract be
         assert importStatus    != null : "importStatus must not be null.";
         assert pauser          != null : "pauser must not be null.";
         assert batchImporter   != null : "batchImporter must not be null.";
+        assert batchWeigher    != null : "batchWeigher must not be null.";
 
         // Body
         this.serviceRegistry       = serviceRegistry;
@@ -105,7 +105,7 @@ public abstract class BulkImporterImpl   // Note: this class is only abstract be
         this.importStatus  = importStatus;
         this.pauser        = pauser;
         this.batchImporter = batchImporter;
-        this.batchWeight   = batchWeight <= 0 ? DEFAULT_BATCH_WEIGHT : batchWeight;
+        this.batchWeigher  = batchWeigher;
         
         this.completionHandlers = completionHandlers;
     }
@@ -201,7 +201,7 @@ public abstract class BulkImporterImpl   // Note: this class is only abstract be
         // Create the threads used by the bulk import tool
         scannerThread = new Thread(new Scanner(serviceRegistry,
                                                AuthenticationUtil.getRunAsUser(),
-                                               batchWeight,
+                                               createBatchWeightController(),
                                                importStatus,
                                                pauser,
                                                source,
@@ -209,6 +209,9 @@ public abstract class BulkImporterImpl   // Note: this class is only abstract be
                                                target,
                                                createThreadPool(),
                                                batchImporter,
+                                               batchWeigher,
+                                               createBatchOrderer(),
+                                               createCheckpointJournal(),
                                                completionHandlers));
         
         scannerThread.setName(SCANNER_THREAD_NAME);
@@ -313,4 +316,30 @@ public abstract class BulkImporterImpl   // Note: this class is only abstract be
      */
     protected abstract BulkImportThreadPoolExecutor createThreadPool();
     
+    
+    /**
+     * Creates a new batch weight controller, for use by a single import.  Like the thread pool, the controller is
+     * stateful (in adaptive mode it tracks the latency of the current import's batches), so each import needs its own.
+     * 
+     * @return A new BatchWeightController instance <i>(will not be null, assuming Spring is configured correctly)</i>.
+     */
+    protected abstract BatchWeightController createBatchWeightController();
+    
+    
+    /**
+     * Creates a new batch orderer, for use by a single import.  The orderer holds the current import's batches in its
+     * look-ahead window, so each import needs its own.
+     * 
+     * @return A new BatchOrderer instance <i>(will not be null, assuming Spring is configured correctly)</i>.
+     */
+    protected abstract BatchOrderer createBatchOrderer();
+    
+    
+    /**
+     * Creates a new checkpoint journal, for use by a single import.
+     * 
+     * @return A new CheckpointJournal instance <i>(will not be null, assuming Spring is configured correctly)</i>.
+     */
+    protected abstract CheckpointJournal createCheckpointJournal();
+    
 }
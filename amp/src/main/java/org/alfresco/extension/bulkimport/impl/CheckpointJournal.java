@@ -0,0 +1,654 @@
+/*
+ * Copyright (C) 2007 Peter Monks
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * This file is part of an unsupported extension to Alfresco.
+ * 
+ */
+
+package org.alfresco.extension.bulkimport.impl;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.alfresco.service.cmr.repository.NodeRef;
+
+import org.alfresco.extension.bulkimport.source.BulkImportItem;
+import org.alfresco.extension.bulkimport.source.BulkImportItemVersion;
+import org.alfresco.extension.bulkimport.source.BulkImportSource;
+
+import static org.alfresco.extension.bulkimport.util.LogUtils.*;
+
+
+/**
+ * This class maintains a crash-safe, append-only journal of the items that
+ * have been committed by an import, so that if the import fails or Alfresco
+ * is restarted, re-running the same import (same source, source parameters
+ * and target) resumes where it left off.  Items recorded in the journal are
+ * skipped as they're submitted by the source, without touching the
+ * repository at all.
+ * 
+ * The journal also records each directory once every item beneath it has
+ * committed.  Sources that support it (via
+ * <code>ResumableBulkImportCallback</code>) skip those directories entirely
+ * when the import is resumed, and the individual items beneath them are not
+ * loaded from the journal, so the memory used when resuming grows with the
+ * number of directories rather than the number of items.  A directory is
+ * recorded once the source reports that it has submitted everything beneath
+ * it, or at the end of scanning otherwise, and is never recorded if any item
+ * beneath it failed.
+ * 
+ * Each batch's record also includes the NodeRefs of the folders it created or
+ * found, so that a resumed import can seed its parent NodeRef cache with them
+ * rather than looking up every parent path again.  As with the items it
+ * skips, this assumes those folders haven't been moved or deleted since.
+ * 
+ * The journal is appended to (and forced to disk) once per committed batch.
+ * Since that happens after the batch's transaction commits, a crash can at
+ * worst lose the record of a committed batch, in which case its items are
+ * simply imported again (and treated as existing nodes).  The journal is
+ * deleted once the import completes without failures.
+ * 
+ * It is a stateful class that is instantiated once per-import.
+ * 
+ * @author Peter Monks (pmonks@gmail.com)
+ */
+public class CheckpointJournal
+{
+    private final static Log log = LogFactory.getLog(CheckpointJournal.class);
+    
+    private final static Charset UTF8              = Charset.forName("UTF-8");
+    private final static String  JOURNAL_PREFIX    = "alfresco-bulk-import-";
+    private final static String  JOURNAL_SUFFIX    = ".journal";
+    private final static String  BATCH_RECORD      = "B ";
+    private final static String  ITEM_RECORD       = "I ";
+    private final static String  DIRECTORY_RECORD  = "D ";
+    private final static String  FOLDER_RECORD     = "F ";
+    private final static char    FIELD_SEPARATOR   = ' ';
+    private final static char    RECORD_TERMINATOR = '\n';
+    private final static char    PATH_SEPARATOR    = '/';
+    
+    private final boolean enabled;
+    private final File    directory;
+    
+    private File                        journalFile          = null;
+    private FileOutputStream            journalStream        = null;
+    private Set<String>                 completedItems       = new HashSet<>();
+    private Set<String>                 completedDirectories = new HashSet<>();
+    private Map<String, NodeRef>        folders              = new HashMap<>();
+    private Map<String, DirectoryState> directories          = new HashMap<>();
+    
+    // Note: checked before locking, so that submission doesn't contend on the journal when it's not in use
+    private volatile boolean journaling = false;
+    private volatile boolean resuming   = false;
+    
+    
+    public CheckpointJournal(final boolean enabled, final String directory)
+    {
+        this.enabled   = enabled;
+        this.directory = new File(directory == null || directory.trim().length() == 0 ? System.getProperty("java.io.tmpdir") : directory.trim());
+        
+        if (debug(log)) debug(log, "Created new checkpoint journal. Enabled=" + enabled + (enabled ? ", Directory=" + this.directory.getAbsolutePath() : ""));
+    }
+    
+    
+    /**
+     * Opens the journal for the given import, loading the directories, items and folders recorded by any previous
+     * (incomplete) run of the same import.
+     * 
+     * @param source The source of the import <i>(must not be null, and must have been initialised)</i>.
+     * @param target The target space of the import <i>(must not be null)</i>.
+     * @param dryRun Whether the import is a dry run (dry runs are never journaled).
+     */
+    public synchronized void open(final BulkImportSource source, final NodeRef target, final boolean dryRun)
+    {
+        completedItems       = new HashSet<>();
+        completedDirectories = new HashSet<>();
+        folders              = new HashMap<>();
+        directories          = new HashMap<>();
+        
+        if (enabled && !dryRun)
+        {
+            journalFile = new File(directory, JOURNAL_PREFIX + identify(source, target) + JOURNAL_SUFFIX);
+            
+            try
+            {
+                if (journalFile.exists())
+                {
+                    // Note: directories are loaded first, so that the items and folders beneath them needn't be loaded at all
+                    load(true);
+                    load(false);
+                    
+                    if (info(log)) info(log, "Resuming import from checkpoint journal " + journalFile.getAbsolutePath() + " - " +
+                                             completedDirectories.size() + " previously imported directories and " +
+                                             completedItems.size() + " other previously imported items will be skipped, and " +
+                                             folders.size() + " previously imported folders will not be looked up again.");
+                }
+                
+                journalStream = new FileOutputStream(journalFile, true);
+            }
+            catch (final IOException ioe)
+            {
+                throw new RuntimeException(ioe);  // Checked exceptions == #fail
+            }
+        }
+        
+        journaling = journalStream != null;
+        resuming   = !completedItems.isEmpty() || !completedDirectories.isEmpty();
+    }
+    
+    
+    /**
+     * Hands over the folders recorded by a previous run of this import.  The journal doesn't retain them, so this
+     * should only be called once, after {@link #open(BulkImportSource, NodeRef, boolean)}.
+     * 
+     * @return The NodeRefs of the folders created or found by a previous run of this import that are still needed by
+     *         this run, keyed by normalised source-relative path <i>(will not be null, but may be empty)</i>.
+     */
+    public synchronized Map<String, NodeRef> takeFolders()
+    {
+        final Map<String, NodeRef> result = folders;
+        
+        folders = new HashMap<>();
+        
+        return(result);
+    }
+    
+    
+    /**
+     * @param item The item to check <i>(must not be null)</i>.
+     * @return True if the given item was committed by a previous run of this import.
+     */
+    public boolean isCompleted(final BulkImportItem<BulkImportItemVersion> item)
+    {
+        boolean result = false;
+        
+        if (resuming)
+        {
+            final String path = encode(BatchScheduler.pathOf(item));
+            
+            synchronized(this)
+            {
+                result = completedItems.contains(path) || isBeneathCompletedDirectory(path);
+            }
+        }
+        
+        return(result);
+    }
+    
+    
+    /**
+     * @param relativePath The source-relative path of a directory <i>(must not be null)</i>.
+     * @return True if every item beneath the given directory was committed by a previous run of this import.
+     */
+    public boolean isDirectoryCompleted(final String relativePath)
+    {
+        boolean result = false;
+        
+        if (resuming)
+        {
+            final String path = encode(BatchScheduler.normalisePath(relativePath));
+            
+            synchronized(this)
+            {
+                result = path.length() > 0 && (completedDirectories.contains(path) || isBeneathCompletedDirectory(path));
+            }
+        }
+        
+        return(result);
+    }
+    
+    
+    /**
+     * Records that the given item has been submitted for import, so that the directories above it aren't recorded
+     * as complete until it has committed.
+     * 
+     * @param item The item that was submitted <i>(must not be null)</i>.
+     */
+    public void itemSubmitted(final BulkImportItem<BulkImportItemVersion> item)
+    {
+        if (journaling)
+        {
+            final List<String> ancestors = ancestorsOf(encode(BatchScheduler.pathOf(item)));
+            
+            synchronized(this)
+            {
+                for (final String ancestor : ancestors)
+                {
+                    DirectoryState state = directories.get(ancestor);
+                    
+                    if (state == null)
+                    {
+                        state = new DirectoryState();
+                        directories.put(ancestor, state);
+                    }
+                    
+                    state.outstanding++;
+                }
+            }
+        }
+    }
+    
+    
+    /**
+     * Records that the given item failed to import, so that the directories above it are never recorded as complete.
+     * 
+     * @param item The item that failed <i>(must not be null)</i>.
+     */
+    public synchronized void itemFailed(final BulkImportItem<BulkImportItemVersion> item)
+    {
+        if (journaling)
+        {
+            for (final String ancestor : ancestorsOf(encode(BatchScheduler.pathOf(item))))
+            {
+                final DirectoryState state = directories.get(ancestor);
+                
+                if (state != null)
+                {
+                    state.outstanding--;
+                    state.failed = true;
+                }
+            }
+            
+            write(completeDirectories());
+        }
+    }
+    
+    
+    /**
+     * Records that the source has submitted every item beneath the given directory.  The directory is recorded as
+     * complete as soon as all of those items have committed.
+     * 
+     * @param relativePath The source-relative path of the directory <i>(must not be null)</i>.
+     */
+    public synchronized void directorySubmitted(final String relativePath)
+    {
+        final String path = encode(BatchScheduler.normalisePath(relativePath));
+        
+        if (journaling && path.length() > 0)
+        {
+            DirectoryState state = directories.get(path);
+            
+            if (state == null)
+            {
+                state = new DirectoryState();
+                directories.put(path, state);
+            }
+            
+            state.submitted = true;
+            write(completeDirectories());
+        }
+    }
+    
+    
+    /**
+     * Records that scanning has completed, so every directory that had items submitted beneath it can be recorded as
+     * complete as soon as those items have committed.
+     */
+    public synchronized void scanningComplete()
+    {
+        if (journaling)
+        {
+            for (final DirectoryState state : directories.values())
+            {
+                state.submitted = true;
+            }
+            
+            write(completeDirectories());
+        }
+    }
+    
+    
+    /**
+     * Records that the given batch has committed.  The record is forced to disk before this method returns.
+     * 
+     * @param batch   The batch that committed <i>(must not be null)</i>.
+     * @param folders The folders the batch created or found, keyed by normalised source-relative path <i>(may be null)</i>.
+     */
+    public synchronized void batchCommitted(final Batch batch, final Map<String, NodeRef> folders)
+    {
+        if (journaling)
+        {
+            final StringBuilder records = new StringBuilder();
+            
+            records.append(BATCH_RECORD).append(batch.getNumber()).append(RECORD_TERMINATOR);
+            
+            if (folders != null)
+            {
+                for (final Map.Entry<String, NodeRef> folder : folders.entrySet())
+                {
+                    records.append(FOLDER_RECORD).append(folder.getValue()).append(FIELD_SEPARATOR).append(encode(folder.getKey())).append(RECORD_TERMINATOR);
+                }
+            }
+            
+            for (final BulkImportItem<BulkImportItemVersion> item : batch)
+            {
+                final String path = encode(BatchScheduler.pathOf(item));
+                
+                records.append(ITEM_RECORD).append(path).append(RECORD_TERMINATOR);
+                
+                for (final String ancestor : ancestorsOf(path))
+                {
+                    final DirectoryState state = directories.get(ancestor);
+                    
+                    if (state != null)
+                    {
+                        state.outstanding--;
+                    }
+                }
+            }
+            
+            // Note: the directory records follow the item records, so a directory is never recorded before its contents
+            records.append(completeDirectories());
+            write(records);
+        }
+    }
+    
+    
+    /**
+     * Closes the journal.
+     * 
+     * @param importComplete Whether the import completed without failures, in which case the journal is deleted.
+     */
+    public synchronized void close(final boolean importComplete)
+    {
+        journaling           = false;
+        resuming             = false;
+        completedItems       = new HashSet<>();
+        completedDirectories = new HashSet<>();
+        folders              = new HashMap<>();
+        directories          = new HashMap<>();
+        
+        if (journalStream != null)
+        {
+            try
+            {
+                journalStream.close();
+            }
+            catch (final IOException ioe)
+            {
+                if (warn(log)) warn(log, "Unable to close checkpoint journal " + journalFile.getAbsolutePath() + ".", ioe);
+            }
+            
+            journalStream = null;
+            
+            if (importComplete)
+            {
+                if (!journalFile.delete())
+                {
+                    if (warn(log)) warn(log, "Unable to delete checkpoint journal " + journalFile.getAbsolutePath() + ".");
+                }
+            }
+            else
+            {
+                if (info(log)) info(log, "Import did not complete - checkpoint journal " + journalFile.getAbsolutePath() + " retained. Re-running the same import will resume from it.");
+            }
+        }
+        
+        journalFile = null;
+    }
+    
+    
+    /*
+     * Returns the records for (and stops tracking) the directories that have been fully submitted and have no
+     * outstanding items.  Directories with failed items are dropped without being recorded.
+     */
+    private StringBuilder completeDirectories()
+    {
+        final StringBuilder                               result = new StringBuilder();
+        final Iterator<Map.Entry<String, DirectoryState>> i      = directories.entrySet().iterator();
+        
+        while (i.hasNext())
+        {
+            final Map.Entry<String, DirectoryState> entry = i.next();
+            final DirectoryState                    state = entry.getValue();
+            
+            if (state.submitted && state.outstanding <= 0)
+            {
+                if (!state.failed)
+                {
+                    result.append(DIRECTORY_RECORD).append(entry.getKey()).append(RECORD_TERMINATOR);
+                }
+                
+                i.remove();
+            }
+        }
+        
+        return(result);
+    }
+    
+    
+    private void write(final StringBuilder records)
+    {
+        if (records.length() > 0)
+        {
+            try
+            {
+                journalStream.write(records.toString().getBytes(UTF8));
+                journalStream.getChannel().force(false);
+            }
+            catch (final IOException ioe)
+            {
+                // Not fatal - the worst case is that these items get imported again when the import is resumed
+                if (warn(log)) warn(log, "Unable to write to checkpoint journal " + journalFile.getAbsolutePath() + ".", ioe);
+            }
+        }
+    }
+    
+    
+    /*
+     * Loads either the directory records, or the item and folder records other than those beneath a directory that's
+     * already been loaded.
+     */
+    private void load(final boolean directoryRecords)
+        throws IOException
+    {
+        try (final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(journalFile), UTF8)))
+        {
+            final StringBuilder record = new StringBuilder();
+            int                 c      = -1;
+            
+            // Note: a record that isn't terminated was torn by a crash, and is ignored
+            while ((c = reader.read()) != -1)
+            {
+                if (c == RECORD_TERMINATOR)
+                {
+                    if (directoryRecords)
+                    {
+                        if (record.indexOf(DIRECTORY_RECORD) == 0)
+                        {
+                            final String path = record.substring(DIRECTORY_RECORD.length());
+                            
+                            if (!isBeneathCompletedDirectory(path))
+                            {
+                                completedDirectories.add(path);
+                            }
+                        }
+                    }
+                    else if (record.indexOf(ITEM_RECORD) == 0)
+                    {
+                        final String path = record.substring(ITEM_RECORD.length());
+                        
+                        if (!isBeneathCompletedDirectory(path))
+                        {
+                            completedItems.add(path);
+                        }
+                    }
+                    else if (record.indexOf(FOLDER_RECORD) == 0)
+                    {
+                        final int separator = record.indexOf(String.valueOf(FIELD_SEPARATOR), FOLDER_RECORD.length());
+                        
+                        if (separator > 0)
+                        {
+                            final String nodeRef = record.substring(FOLDER_RECORD.length(), separator);
+                            final String path    = record.substring(separator + 1);
+                            
+                            // Note: nothing beneath a completed directory is imported again, so its folder isn't needed either
+                            if (NodeRef.isNodeRef(nodeRef) && !completedDirectories.contains(path) && !isBeneathCompletedDirectory(path))
+                            {
+                                folders.put(decode(path), new NodeRef(nodeRef));
+                            }
+                        }
+                    }
+                    
+                    record.setLength(0);
+                }
+                else
+                {
+                    record.append((char)c);
+                }
+            }
+        }
+    }
+    
+    
+    private boolean isBeneathCompletedDirectory(final String path)
+    {
+        boolean result = false;
+        
+        if (!completedDirectories.isEmpty())
+        {
+            for (final String ancestor : ancestorsOf(path))
+            {
+                if (completedDirectories.contains(ancestor))
+                {
+                    result = true;
+                    break;
+                }
+            }
+        }
+        
+        return(result);
+    }
+    
+    
+    /*
+     * Returns the (non-root) directories above the given normalised path, e.g. "a" and "a/b" for "a/b/c".
+     */
+    private final static List<String> ancestorsOf(final String path)
+    {
+        final List<String> result    = new ArrayList<>();
+        int                separator = path.indexOf(PATH_SEPARATOR);
+        
+        while (separator > 0)
+        {
+            result.add(path.substring(0, separator));
+            separator = path.indexOf(PATH_SEPARATOR, separator + 1);
+        }
+        
+        return(result);
+    }
+    
+    
+    /*
+     * Identifies an import by its source, source parameters and target, so that re-running the same import finds
+     * the same journal.
+     */
+    private final static String identify(final BulkImportSource source, final NodeRef target)
+    {
+        final StringBuilder identity = new StringBuilder();
+        
+        identity.append(source.getName()).append(RECORD_TERMINATOR);
+        identity.append(String.valueOf(target)).append(RECORD_TERMINATOR);
+        
+        if (source.getParameters() != null)
+        {
+            for (final Map.Entry<String, String> parameter : new TreeMap<>(source.getParameters()).entrySet())
+            {
+                identity.append(parameter.getKey()).append('=').append(parameter.getValue()).append(RECORD_TERMINATOR);
+            }
+        }
+        
+        try
+        {
+            final StringBuilder result = new StringBuilder();
+            
+            for (final byte b : MessageDigest.getInstance("SHA-1").digest(identity.toString().getBytes(UTF8)))
+            {
+                result.append(String.format("%02x", b));
+            }
+            
+            return(result.toString());
+        }
+        catch (final NoSuchAlgorithmException nsae)
+        {
+            throw new IllegalStateException("SHA-1 is not supported by this JVM.", nsae);
+        }
+    }
+    
+    
+    /*
+     * Escapes record terminators (which are legal in some filesystems' filenames).
+     */
+    private final static String encode(final String path)
+    {
+        return(path.replace("\\", "\\\\").replace("\n", "\\n"));
+    }
+    
+    
+    /*
+     * Reverses encode().
+     */
+    private final static String decode(final String path)
+    {
+        final StringBuilder result = new StringBuilder(path.length());
+        
+        for (int i = 0; i < path.length(); i++)
+        {
+            final char c = path.charAt(i);
+            
+            if (c == '\\' && i + 1 < path.length())
+            {
+                i++;
+                result.append(path.charAt(i) == 'n' ? '\n' : path.charAt(i));
+            }
+            else
+            {
+                result.append(c);
+            }
+        }
+        
+        return(result.toString());
+    }
+    
+    
+    /*
+     * Tracks a directory that items have been submitted beneath, until it can be recorded as complete.
+     */
+    private final static class DirectoryState
+    {
+        private int     outstanding = 0;
+        private boolean submitted   = false;
+        private boolean failed      = false;
+    }
+    
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2007 Peter Monks
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * This file is part of an unsupported extension to Alfresco.
+ * 
+ */
+
+package org.alfresco.extension.bulkimport.impl;
+
+import java.io.Serializable;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.alfresco.extension.bulkimport.source.BulkImportItem;
+import org.alfresco.extension.bulkimport.source.BulkImportItemVersion;
+
+import static org.alfresco.extension.bulkimport.util.LogUtils.*;
+
+
+/**
+ * This class is a <code>BatchWeigher</code> that estimates the transactional
+ * cost of importing each item, using a simple linear cost model:
+ * 
+ * <ul>
+ * <li>a fixed cost per version (node or version creation)</li>
+ * <li>a cost per aspect and per metadata property (each of which results in
+ * additional database rows)</li>
+ * <li>a cost per gigabyte of content, which differs for streamed versus
+ * in-place content (in-place content is merely linked, so it's much
+ * cheaper)</li>
+ * </ul>
+ * 
+ * Note that weighing an item this way requires its metadata to be loaded
+ * while scanning, rather than when the item is imported.  For sources that
+ * defer metadata parsing (such as the filesystem source), this means every
+ * metadata file is parsed on the scanning thread(s), which can make scanning
+ * the bottleneck of the import.  The default weigher only uses the cheap
+ * accessors (<code>hasContent</code>, <code>contentIsInPlace</code> and
+ * <code>sizeInBytes</code>) and doesn't have this cost.
+ * 
+ * @author Peter Monks (pmonks@gmail.com)
+ */
+public final class CostModelBatchWeigher
+    implements BatchWeigher
+{
+    private final static Log log = LogFactory.getLog(CostModelBatchWeigher.class);
+    
+    private final static float ONE_GIGABYTE = (float)Math.pow(2, 30);
+    
+    private final float costPerVersion;
+    private final float costPerAspect;
+    private final float costPerProperty;
+    private final float costPerStreamedGigabyte;
+    private final float costPerInPlaceGigabyte;
+    
+    
+    public CostModelBatchWeigher(final float costPerVersion,
+                                 final float costPerAspect,
+                                 final float costPerProperty,
+                                 final float costPerStreamedGigabyte,
+                                 final float costPerInPlaceGigabyte)
+    {
+        this.costPerVersion          = Math.max(0.0f, costPerVersion);
+        this.costPerAspect           = Math.max(0.0f, costPerAspect);
+        this.costPerProperty         = Math.max(0.0f, costPerProperty);
+        this.costPerStreamedGigabyte = Math.max(0.0f, costPerStreamedGigabyte);
+        this.costPerInPlaceGigabyte  = Math.max(0.0f, costPerInPlaceGigabyte);
+        
+        if (debug(log)) debug(log, "Created new cost model batch weigher." +
+                                   " Cost Per Version="            + this.costPerVersion +
+                                   ", Cost Per Aspect="            + this.costPerAspect +
+                                   ", Cost Per Property="          + this.costPerProperty +
+                                   ", Cost Per Streamed Gigabyte=" + this.costPerStreamedGigabyte +
+                                   ", Cost Per In-Place Gigabyte=" + this.costPerInPlaceGigabyte);
+    }
+    
+    
+    /**
+     * @see org.alfresco.extension.bulkimport.impl.BatchWeigher#weigh(org.alfresco.extension.bulkimport.source.BulkImportItem)
+     */
+    @Override
+    public int weigh(final BulkImportItem<BulkImportItemVersion> item)
+    {
+        float result = 0.0f;
+        
+        for (final BulkImportItemVersion version : item.getVersions())
+        {
+            result += costPerVersion;
+            
+            if (version.hasMetadata())
+            {
+                final Set<String>               aspects  = version.getAspects();
+                final Map<String, Serializable> metadata = version.getMetadata();
+                
+                result += (aspects  == null ? 0 : aspects.size())  * costPerAspect;
+                result += (metadata == null ? 0 : metadata.size()) * costPerProperty;
+            }
+            
+            if (version.hasContent())
+            {
+                final float gigabytes = version.sizeInBytes() / ONE_GIGABYTE;
+                
+                result += gigabytes * (version.contentIsInPlace() ? costPerInPlaceGigabyte : costPerStreamedGigabyte);
+            }
+        }
+        
+        return(Math.max(1, Math.round(result)));
+    }
+    
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2007 Peter Monks
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * This file is part of an unsupported extension to Alfresco.
+ * 
+ */
+
+package org.alfresco.extension.bulkimport.impl;
+
+import org.alfresco.extension.bulkimport.source.BulkImportItem;
+import org.alfresco.extension.bulkimport.source.BulkImportItemVersion;
+
+
+/**
+ * This class is the default <code>BatchWeigher</code>.  Each item is counted
+ * as 1 per version, plus 100 per gigabyte of streamed content in that version
+ * (so that files of 1GB or more cause the batch to end).
+ * 
+ * @author Peter Monks (pmonks@gmail.com)
+ */
+public final class DefaultBatchWeigher
+    implements BatchWeigher
+{
+    private final static float ONE_GIGABYTE        = (float)Math.pow(2, 30);
+    private final static int   WEIGHT_PER_GIGABYTE = 100;
+    
+    
+    /**
+     * @see org.alfresco.extension.bulkimport.impl.BatchWeigher#weigh(org.alfresco.extension.bulkimport.source.BulkImportItem)
+     */
+    @Override
+    public int weigh(final BulkImportItem<BulkImportItemVersion> item)
+    {
+        int result = 0;
+        
+        for (final BulkImportItemVersion version : item.getVersions())
+        {
+            result++;
+            
+            // Note: only the size of *this* version counts - item.sizeInBytes() is the total across all versions
+            if (version.hasContent() && !version.contentIsInPlace())
+            {
+                result += (int)(version.sizeInBytes() / ONE_GIGABYTE * WEIGHT_PER_GIGABYTE);
+            }
+        }
+        
+        return(result);
+    }
+    
+}
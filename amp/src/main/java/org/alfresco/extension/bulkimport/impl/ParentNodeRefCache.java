@@ -0,0 +1,242 @@
+/*
+ * Copyright (C) 2007 Peter Monks
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * This file is part of an unsupported extension to Alfresco.
+ * 
+ */
+
+
+package org.alfresco.extension.bulkimport.impl;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.alfresco.service.cmr.repository.NodeRef;
+
+
+/**
+ * This class is a bounded, thread safe cache of the NodeRefs of the folders
+ * an import has created or found, keyed by their source-relative path.  It
+ * allows the parent of most items to be found with a single lookup, rather
+ * than resolving the parent's path one element at a time.
+ * 
+ * Only folders whose transaction has committed may be added to the cache,
+ * since otherwise a rolled back transaction could leave NodeRefs to
+ * non-existent nodes in it.  Once full, entries are evicted using the "CLOCK"
+ * (second chance) approximation of LRU.  This keeps the cache read-mostly:
+ * lookups (which happen once per item, on every import thread) don't take any
+ * locks and merely flag the entry as recently used, while the only lock is
+ * taken by writers (once per committed batch) that need to evict.
+ * 
+ * It also tracks which folders are "known empty" - those that this import
+ * created (or the target space, if the caller asserted that it's empty).
+ * Since such folders contain nothing this import didn't put there, items
+ * imported into them can be created without first checking whether they
+ * already exist.  This set is bounded to the same size, but evicts the
+ * folders that were added first, and an evicted folder simply goes back to
+ * having its children checked.
+ * 
+ * @author Peter Monks (pmonks@gmail.com)
+ */
+public final class ParentNodeRefCache
+{
+    private final static int DEFAULT_MAX_SIZE = 100000;
+    
+    private final int                                  capacity;
+    private final ConcurrentMap<String, CachedNodeRef> cache          = new ConcurrentHashMap<>();
+    private final Queue<String>                        cacheClock     = new ConcurrentLinkedQueue<>();   // Eviction candidates, in "clock hand" order
+    private final AtomicInteger                        cacheSize      = new AtomicInteger(0);
+    private final Set<NodeRef>                         knownEmpty     = Collections.newSetFromMap(new ConcurrentHashMap<NodeRef, Boolean>());
+    private final Queue<NodeRef>                       knownEmptyFifo = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger                        knownEmptySize = new AtomicInteger(0);
+    
+    
+    public ParentNodeRefCache(final int maxSize)
+    {
+        this.capacity = maxSize <= 0 ? DEFAULT_MAX_SIZE : maxSize;
+    }
+    
+    
+    /**
+     * @param path The normalised source-relative path of the folder <i>(must not be null)</i>.
+     * @return The NodeRef of that folder, or null if it isn't cached.
+     */
+    public NodeRef get(final String path)
+    {
+        NodeRef             result = null;
+        final CachedNodeRef entry  = cache.get(path);
+        
+        if (entry != null)
+        {
+            // Note: only written if not already set, so that hot entries don't bounce their cache line between CPUs
+            if (!entry.referenced)
+            {
+                entry.referenced = true;
+            }
+            
+            result = entry.nodeRef;
+        }
+        
+        return(result);
+    }
+    
+    
+    /**
+     * @param folders The folders to add, keyed by normalised source-relative path <i>(must not be null)</i>.
+     *                Their transaction must have committed.
+     */
+    public void putAll(final Map<String, NodeRef> folders)
+    {
+        if (!folders.isEmpty())
+        {
+            for (final Map.Entry<String, NodeRef> folder : folders.entrySet())
+            {
+                if (cache.put(folder.getKey(), new CachedNodeRef(folder.getValue())) == null)
+                {
+                    cacheClock.add(folder.getKey());
+                    cacheSize.incrementAndGet();
+                }
+            }
+            
+            evictIfNecessary();
+        }
+    }
+    
+    
+    /**
+     * @param folderNodeRef The NodeRef of a folder <i>(may be null)</i>.
+     * @return True if the folder is known to contain nothing other than what this import has put in it.
+     */
+    public boolean isKnownEmpty(final NodeRef folderNodeRef)
+    {
+        return(folderNodeRef != null && knownEmpty.contains(folderNodeRef));
+    }
+    
+    
+    /**
+     * @param folders The NodeRefs of folders that were empty when this import first wrote to them <i>(must not be null)</i>.
+     *                If they were created by this import, their transaction must have committed.
+     */
+    public void addKnownEmpty(final Collection<NodeRef> folders)
+    {
+        if (!folders.isEmpty())
+        {
+            for (final NodeRef folder : folders)
+            {
+                if (knownEmpty.add(folder))
+                {
+                    knownEmptyFifo.add(folder);
+                    knownEmptySize.incrementAndGet();
+                }
+            }
+            
+            while (knownEmptySize.get() > capacity)
+            {
+                final NodeRef eldest = knownEmptyFifo.poll();
+                
+                if (eldest == null)
+                {
+                    break;
+                }
+                
+                if (knownEmpty.remove(eldest))
+                {
+                    knownEmptySize.decrementAndGet();
+                }
+            }
+        }
+    }
+    
+    
+    /**
+     * Empties the cache.  Note: must not be called while other threads are using the cache.
+     */
+    public void clear()
+    {
+        synchronized(cacheClock)
+        {
+            cache.clear();
+            cacheClock.clear();
+            cacheSize.set(0);
+        }
+        
+        knownEmpty.clear();
+        knownEmptyFifo.clear();
+        knownEmptySize.set(0);
+    }
+    
+    
+    /*
+     * Evicts folders until the cache is back within its capacity.  Each folder that has been looked up since the
+     * clock hand last passed it gets a second chance (its flag is cleared and it goes to the back of the queue).
+     */
+    private void evictIfNecessary()
+    {
+        if (cacheSize.get() > capacity)
+        {
+            synchronized(cacheClock)
+            {
+                while (cacheSize.get() > capacity)
+                {
+                    final String path = cacheClock.poll();
+                    
+                    if (path == null)
+                    {
+                        break;
+                    }
+                    
+                    final CachedNodeRef entry = cache.get(path);
+                    
+                    if (entry != null)
+                    {
+                        if (entry.referenced)
+                        {
+                            entry.referenced = false;
+                            cacheClock.add(path);
+                        }
+                        else if (cache.remove(path, entry))
+                        {
+                            cacheSize.decrementAndGet();
+                        }
+                        else
+                        {
+                            cacheClock.add(path);   // Replaced concurrently - keep tracking it
+                        }
+                    }
+                }
+            }
+        }
+    }
+    
+    
+    private final static class CachedNodeRef
+    {
+        private final NodeRef    nodeRef;
+        private volatile boolean referenced = false;
+        
+        private CachedNodeRef(final NodeRef nodeRef)
+        {
+            this.nodeRef = nodeRef;
+        }
+    }
+    
+}
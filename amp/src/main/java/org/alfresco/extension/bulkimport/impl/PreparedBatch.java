@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2007 Peter Monks
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * This file is part of an unsupported extension to Alfresco.
+ * 
+ */
+
+package org.alfresco.extension.bulkimport.impl;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.alfresco.service.namespace.QName;
+
+import org.alfresco.extension.bulkimport.source.BulkImportItemVersion;
+
+
+/**
+ * This class represents a batch that has been prepared for import - that is,
+ * everything about it that can be determined without a transaction (loading
+ * and parsing metadata, resolving QNames, and optionally reading small
+ * content into memory) has already been done, so that the transaction that
+ * imports it doesn't have to.
+ * 
+ * Instances are immutable.
+ * 
+ * @author Peter Monks (pmonks@gmail.com)
+ */
+public final class PreparedBatch
+{
+    private final Batch                                       batch;
+    private final Map<BulkImportItemVersion, PreparedVersion> versions;   // Identity map
+    
+    
+    PreparedBatch(final Batch batch, final Map<BulkImportItemVersion, PreparedVersion> versions)
+    {
+        // PRECONDITIONS
+        assert batch    != null : "batch must not be null.";
+        assert versions != null : "versions must not be null.";
+        
+        // Body
+        this.batch    = batch;
+        this.versions = Collections.unmodifiableMap(new IdentityHashMap<>(versions));
+    }
+    
+    
+    private PreparedBatch(final PreparedBatch parent, final Batch subBatch)
+    {
+        this.batch    = subBatch;
+        this.versions = parent.versions;
+    }
+    
+    
+    /**
+     * @param batch The batch <i>(must not be null)</i>.
+     * @return A prepared batch with nothing prepared in advance, so that everything is resolved during import <i>(will not be null)</i>.
+     */
+    public static PreparedBatch unprepared(final Batch batch)
+    {
+        return(new PreparedBatch(batch, Collections.<BulkImportItemVersion, PreparedVersion>emptyMap()));
+    }
+    
+    
+    /**
+     * @return The batch that was prepared <i>(will not be null)</i>.
+     */
+    public Batch getBatch()
+    {
+        return(batch);
+    }
+    
+    
+    /**
+     * @param subBatch A batch containing a subset of the items in this batch <i>(must not be null)</i>.
+     * @return The prepared version of that batch, reusing whatever was prepared for this batch <i>(will not be null)</i>.
+     */
+    public PreparedBatch subBatch(final Batch subBatch)
+    {
+        return(new PreparedBatch(this, subBatch));
+    }
+    
+    
+    /**
+     * @param version The version to look up <i>(may be null)</i>.
+     * @return The prepared form of that version, or null if it wasn't prepared.
+     */
+    PreparedVersion get(final BulkImportItemVersion version)
+    {
+        return(versions.get(version));
+    }
+    
+    
+    /**
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString()
+    {
+        return("Prepared " + String.valueOf(batch));
+    }
+    
+    
+    /**
+     * A single version, with its type, aspects and properties resolved to QNames, and possibly its content.
+     */
+    final static class PreparedVersion
+    {
+        final QName                    type;          // May be null
+        final Set<QName>               aspects;       // Never null, may be empty
+        final Map<QName, Serializable> properties;    // Null if the version has no metadata
+        final byte[]                   content;       // Non-null if the content was read in advance - must not be modified
+        final String                   contentName;   // The name to guess the content's mimetype from, if it was read in advance
+        
+        PreparedVersion(final QName                    type,
+                        final Set<QName>               aspects,
+                        final Map<QName, Serializable> properties,
+                        final byte[]                   content,
+                        final String                   contentName)
+        {
+            this.type        = type;
+            this.aspects     = Collections.unmodifiableSet(aspects);
+            this.properties  = properties == null ? null : Collections.unmodifiableMap(properties);
+            this.content     = content;
+            this.contentName = contentName;
+        }
+    }
+    
+}
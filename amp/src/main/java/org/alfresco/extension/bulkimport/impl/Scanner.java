@@ -20,10 +20,19 @@
 package org.alfresco.extension.bulkimport.impl;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.IllegalFormatException;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RunnableFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.nio.channels.ClosedByInterruptException;
 
 import org.alfresco.extension.bulkimport.util.ThreadPauser;
@@ -33,7 +42,8 @@ import org.apache.commons.logging.LogFactory;
 import org.alfresco.service.ServiceRegistry;
 import org.alfresco.service.cmr.repository.NodeRef;
 
-import org.alfresco.extension.bulkimport.BulkImportCallback;
+import org.alfresco.extension.bulkimport.BatchingBulkImportCallback;
+import org.alfresco.extension.bulkimport.ResumableBulkImportCallback;
 import org.alfresco.extension.bulkimport.BulkImportCompletionHandler;
 import org.alfresco.extension.bulkimport.BulkImportStatus;
 
@@ -55,49 +65,69 @@ import static org.alfresco.extension.bulkimport.util.LogUtils.*;
  */
 public final class Scanner
     implements Runnable,
-               BulkImportCallback
+               BatchingBulkImportCallback,
+               ResumableBulkImportCallback
 {
     private final static Log log = LogFactory.getLog(Scanner.class);
     
     private final static long     SLEEP_TIME = 10L;
     private final static TimeUnit SLEEP_TIME_UNITS = TimeUnit.MINUTES;
     
-    private final static String PARAMETER_REPLACE_EXISTING = "replaceExisting";
-    private final static String PARAMETER_DRY_RUN          = "dryRun";
+    private final static String PARAMETER_REPLACE_EXISTING  = "replaceExisting";
+    private final static String PARAMETER_DRY_RUN           = "dryRun";
+    private final static String PARAMETER_CONTINUE_ON_ERROR = "continueOnError";
+    private final static String PARAMETER_TARGET_IS_EMPTY   = "targetIsEmpty";
+    private final static String PARAMETER_BEHAVIOUR_PROFILE = "behaviourProfile";
+    private final static String PARAMETER_METADATA_ONLY     = "metadataOnly";
     
-    private final static int MULTITHREADING_THRESHOLD = 3;    // The number of batches above which multi-threading kicks in
-
-    private final static int ONE_GIGABYTE = (int)Math.pow(2, 30);
-
     private final static BulkImportCompletionHandler loggingBulkImportCompletionHandler = new LoggingBulkImportCompletionHandler();
 
     private final String                            userId;
-    private final int                               batchWeight;
+    private final BatchWeightController             batchWeightController;
+    private final BatchWeigher                      batchWeigher;
+    private final BatchOrderer                      batchOrderer;
+    private final CheckpointJournal                 checkpointJournal;
     private final WritableBulkImportStatus          importStatus;
     private final ThreadPauser                      pauser;
     private final BulkImportSource                  source;
     private final NodeRef                           target;
     private final String                            targetAsPath;
     private final BatchImporter                     batchImporter;
+    private final BatchScheduler                    batchScheduler;
     private final List<BulkImportCompletionHandler> completionHandlers;
     
     // Parameters
     private final boolean replaceExisting;
     private final boolean dryRun;
+    private final boolean continueOnError;
+    private final boolean targetIsEmpty;
+    private final String  behaviourProfile;
+    private final boolean metadataOnly;
 
     // Stateful unpleasantness
-    private Map<String, List<String>>                   parameters;
-    private BulkImportThreadPoolExecutor                importThreadPool;
-    private int                                         currentBatchNumber;
-    private List<BulkImportItem<BulkImportItemVersion>> currentBatch;
-    private int                                         weightOfCurrentBatch;
-    private boolean                                     filePhase;
-    private boolean                                     multiThreadedImport;
+    private Map<String, List<String>>   parameters;
+    private BulkImportThreadPoolExecutor importThreadPool;
+    
+    // Batch assembly state - each producer thread assembles its own batches, to avoid contention between producers
+    private final AtomicInteger                    currentBatchNumber = new AtomicInteger(0);
+    private final Queue<BatchAssemblyBuffer>       allAssemblyBuffers = new ConcurrentLinkedQueue<>();
+    private final ThreadLocal<BatchAssemblyBuffer> assemblyBuffer     = new ThreadLocal<BatchAssemblyBuffer>()
+    {
+        @Override
+        protected BatchAssemblyBuffer initialValue()
+        {
+            final BatchAssemblyBuffer result = new BatchAssemblyBuffer();
+            
+            allAssemblyBuffers.add(result);
+            
+            return(result);
+        }
+    };
 
     
     public Scanner(final ServiceRegistry                   serviceRegistry,
                    final String                            userId,
-                   final int                               batchWeight,
+                   final BatchWeightController             batchWeightController,
                    final WritableBulkImportStatus          importStatus,
                    final ThreadPauser                      pauser,
                    final BulkImportSource                  source,
@@ -105,41 +135,54 @@ public final class Scanner
                    final NodeRef                           target,
                    final BulkImportThreadPoolExecutor      importThreadPool,
                    final BatchImporter                     batchImporter,
+                   final BatchWeigher                      batchWeigher,
+                   final BatchOrderer                      batchOrderer,
+                   final CheckpointJournal                 checkpointJournal,
                    final List<BulkImportCompletionHandler> completionHandlers)
     {
         // PRECONDITIONS
-        assert serviceRegistry  != null : "serviceRegistry must not be null.";
-        assert userId           != null : "userId must not be null.";
-        assert batchWeight      > 0     : "batchWeight must be > 0.";
-        assert importStatus     != null : "importStatus must not be null.";
-        assert pauser           != null : "pauser must not be null.";
-        assert source           != null : "source must not be null.";
-        assert parameters       != null : "parameters must not be null.";
-        assert target           != null : "target must not be null.";
-        assert importThreadPool != null : "importThreadPool must not be null.";
-        assert batchImporter    != null : "batchImporter must not be null.";
+        assert serviceRegistry       != null : "serviceRegistry must not be null.";
+        assert userId                != null : "userId must not be null.";
+        assert batchWeightController != null : "batchWeightController must not be null.";
+        assert importStatus          != null : "importStatus must not be null.";
+        assert pauser                != null : "pauser must not be null.";
+        assert source                != null : "source must not be null.";
+        assert parameters            != null : "parameters must not be null.";
+        assert target                != null : "target must not be null.";
+        assert importThreadPool      != null : "importThreadPool must not be null.";
+        assert batchImporter         != null : "batchImporter must not be null.";
+        assert batchWeigher          != null : "batchWeigher must not be null.";
+        assert batchOrderer          != null : "batchOrderer must not be null.";
+        assert checkpointJournal     != null : "checkpointJournal must not be null.";
         
         // Body
-        this.userId             = userId;
-        this.batchWeight        = batchWeight;
-        this.importStatus       = importStatus;
-        this.pauser             = pauser;
-        this.source             = source;
-        this.parameters         = parameters;
-        this.target             = target;
-        this.targetAsPath       = convertNodeRefToPath(serviceRegistry, target);
-        this.importThreadPool   = importThreadPool;
-        this.batchImporter      = batchImporter;
-        this.completionHandlers = completionHandlers;
+        this.userId                = userId;
+        this.batchWeightController = batchWeightController;
+        this.importStatus          = importStatus;
+        this.pauser                = pauser;
+        this.source                = source;
+        this.parameters            = parameters;
+        this.target                = target;
+        this.targetAsPath          = convertNodeRefToPath(serviceRegistry, target);
+        this.importThreadPool      = importThreadPool;
+        this.batchImporter         = batchImporter;
+        this.batchWeigher          = batchWeigher;
+        this.batchOrderer          = batchOrderer;
+        this.checkpointJournal     = checkpointJournal;
+        this.batchScheduler        = new BatchScheduler(importThreadPool);
+        this.completionHandlers    = completionHandlers;
+        
+        batchWeightController.init(importStatus);
+        importThreadPool.init(importStatus);
+        batchOrderer.init(batchScheduler);
         
-        this.replaceExisting = parameters.get(PARAMETER_REPLACE_EXISTING) == null ? false : Boolean.parseBoolean(parameters.get(PARAMETER_REPLACE_EXISTING).get(0));
-        this.dryRun          = parameters.get(PARAMETER_DRY_RUN)          == null ? false : Boolean.parseBoolean(parameters.get(PARAMETER_DRY_RUN).get(0));
+        this.replaceExisting  = parameters.get(PARAMETER_REPLACE_EXISTING)  == null ? false : Boolean.parseBoolean(parameters.get(PARAMETER_REPLACE_EXISTING).get(0));
+        this.dryRun           = parameters.get(PARAMETER_DRY_RUN)           == null ? false : Boolean.parseBoolean(parameters.get(PARAMETER_DRY_RUN).get(0));
+        this.continueOnError  = parameters.get(PARAMETER_CONTINUE_ON_ERROR) == null ? false : Boolean.parseBoolean(parameters.get(PARAMETER_CONTINUE_ON_ERROR).get(0));
+        this.targetIsEmpty    = parameters.get(PARAMETER_TARGET_IS_EMPTY)   == null ? false : Boolean.parseBoolean(parameters.get(PARAMETER_TARGET_IS_EMPTY).get(0));
+        this.behaviourProfile = parameters.get(PARAMETER_BEHAVIOUR_PROFILE) == null ? null  : parameters.get(PARAMETER_BEHAVIOUR_PROFILE).get(0);
+        this.metadataOnly     = parameters.get(PARAMETER_METADATA_ONLY)     == null ? false : Boolean.parseBoolean(parameters.get(PARAMETER_METADATA_ONLY).get(0));
 
-        this.currentBatchNumber   = 0;
-        this.currentBatch         = null;
-        this.weightOfCurrentBatch = 0;
-        this.filePhase            = false;
-        this.multiThreadedImport  = false;
     }
     
     
@@ -153,7 +196,7 @@ public final class Scanner
         
         try
         {
-            source.init(importStatus, parameters);
+            source.init(importStatus, sourceParameters());
             inPlacePossible = source.inPlaceImportPossible();
             
             if (info(log)) info(log, "Import (" + (inPlacePossible ? "in-place" : "streaming") + ") started from " + source.getName() + ".");
@@ -162,14 +205,18 @@ public final class Scanner
                                        source,
                                        targetAsPath,
                                        importThreadPool,
-                                       batchWeight,
+                                       batchWeightController.getBatchWeight(),
                                        inPlacePossible,
                                        dryRun);
 
+            checkpointJournal.open(source, target, dryRun);
+            batchImporter.importStarted(target, targetIsEmpty, behaviourProfile, checkpointJournal.takeFolders());
+            
             // ------------------------------------------------------------------
-            // Phase 1 - Folder scanning (single threaded)
+            // Phase 1 - Folder scanning
             // ------------------------------------------------------------------
 
+            // Note: folder batches are imported concurrently - the batch scheduler ensures parents commit before their children are imported
             source.scanFolders(importStatus, this);
             
             if (debug(log)) debug(log, "Folder import complete in " + getHumanReadableDuration(importStatus.getDurationInNs()) + ".");
@@ -178,10 +225,9 @@ public final class Scanner
             // Phase 2 - File scanning
             // ------------------------------------------------------------------
 
-            filePhase = true;
-            
-            // Maximise level of concurrency, since there's no longer any risk of out-of-order batches
+            // Note: file batches may start importing before all folder batches have committed, provided their own parent folders have
             source.scanFiles(importStatus, this);
+            checkpointJournal.scanningComplete();
 
             if (debug(log)) debug(log, "File scan complete in " + getHumanReadableDuration(importStatus.getDurationInNs()) + ".");
             
@@ -191,10 +237,10 @@ public final class Scanner
             // Phase 3 - Wait for multi-threaded import to complete and shutdown
             // ------------------------------------------------------------------
 
-            submitCurrentBatch();  // Submit whatever is left in the final (partial) batch...
+            submitPartialBatches();  // Submit whatever is left in the final (partial) batches...
             awaitCompletion();
             
-            if (debug(log)) debug(log, "Import complete" + (multiThreadedImport ? ", thread pool shutdown" : "") + ".");
+            if (debug(log)) debug(log, "Import complete, thread pool shutdown.");
         }
         catch (final Throwable t)
         {
@@ -240,6 +286,23 @@ public final class Scanner
             // Mark the import complete
             importStatus.importComplete();
             
+            // Keep the checkpoint journal if the import needs to be resumed
+            final Long nodesFailed = importStatus.getTargetCounter(BulkImportStatus.TARGET_COUNTER_NODES_FAILED);
+            checkpointJournal.close(importStatus.succeeded() && (nodesFailed == null || nodesFailed.longValue() == 0));
+            
+            // Let the source know the import is complete, if it's interested
+            if (source instanceof BulkImportCompletionHandler)
+            {
+                try
+                {
+                    ((BulkImportCompletionHandler)source).importComplete(importStatus);
+                }
+                catch (final Exception e)
+                {
+                    if (error(log)) error(log, "Import source threw an unexpected exception on completion. It will be ignored.", e);
+                }
+            }
+            
             // Invoke the completion handlers (if any)
             if (completionHandlers != null)
             {
@@ -262,92 +325,121 @@ public final class Scanner
     }
     
     
+    /*
+     * Returns the parameters to initialise the source with, including the target space of the import.
+     */
+    private Map<String, List<String>> sourceParameters()
+    {
+        final Map<String, List<String>> result = new HashMap<>(parameters);
+        
+        result.put(BulkImportSource.PARAMETER_TARGET, Collections.singletonList(String.valueOf(target)));
+        
+        return(result);
+    }
+    
+    
     /**
      * @see org.alfresco.extension.bulkimport.BulkImportCallback#submit(org.alfresco.extension.bulkimport.source.BulkImportItem)
      */
     @Override
-    @SuppressWarnings({"rawtypes", "unchecked"})
-    public synchronized void submit(final BulkImportItem item)
+    @SuppressWarnings("rawtypes")
+    public void submit(final BulkImportItem item)
+        throws InterruptedException
+    {
+        assemblyBuffer.get().add(item);
+    }
+    
+    
+    /**
+     * @see org.alfresco.extension.bulkimport.BatchingBulkImportCallback#submitAll(java.util.Collection)
+     */
+    @Override
+    @SuppressWarnings("rawtypes")
+    public void submitAll(final Collection<? extends BulkImportItem> items)
         throws InterruptedException
     {
         // PRECONDITIONS
-        if (item == null)
+        if (items == null)
         {
-            throw new IllegalArgumentException("Import source '" + source.getName() + "' has logic errors - a null import item was submitted.");
+            throw new IllegalArgumentException("Import source '" + source.getName() + "' has logic errors - a null collection of import items was submitted.");
         }
         
-        if (item.getVersions() == null ||
-            item.getVersions().size() <= 0)
-        {
-            throw new IllegalArgumentException("Import source '" + source.getName() + "' has logic errors - an empty import item was submitted.");
-        }
-
         // Body
-        if (importStatus.isStopping() || Thread.currentThread().isInterrupted()) throw new InterruptedException(Thread.currentThread().getName() + " was interrupted. Terminating early.");
-        
-        // If the weight of the new item would blow out the current batch, submit the batch as-is (i.e. *before* adding the newly submitted item).
-        // This ensures that heavy items start a new batch (and possibly end up in a batch by themselves).
-        int weight = weight(item);
+        final BatchAssemblyBuffer buffer = assemblyBuffer.get();   // Only looked up once, rather than once per item
         
-        if (weightOfCurrentBatch + weight > batchWeight)
+        for (final BulkImportItem item : items)
         {
-            submitCurrentBatch();
+            buffer.add(item);
         }
-        
-        // Create a new batch, if necessary
-        if (currentBatch == null)
+    }
+    
+    
+    /**
+     * @see org.alfresco.extension.bulkimport.ResumableBulkImportCallback#isDirectoryCompleted(java.lang.String)
+     */
+    @Override
+    public boolean isDirectoryCompleted(final String relativePath)
+    {
+        return(checkpointJournal.isDirectoryCompleted(relativePath));
+    }
+    
+    
+    /**
+     * @see org.alfresco.extension.bulkimport.ResumableBulkImportCallback#directorySubmitted(java.lang.String)
+     */
+    @Override
+    public void directorySubmitted(final String relativePath)
+    {
+        checkpointJournal.directorySubmitted(relativePath);
+    }
+    
+    
+    /*
+     * Submits the partial batches of every producer thread.  Note: only called once all producers have finished.
+     */
+    private void submitPartialBatches()
+        throws InterruptedException
+    {
+        for (final BatchAssemblyBuffer buffer : allAssemblyBuffers)
         {
-            currentBatchNumber++;
-            currentBatch         = new ArrayList<>(batchWeight);
-            weightOfCurrentBatch = 0;
+            buffer.flush();
         }
         
-        // Finally, add the item to the current batch
-        currentBatch.add(item);
-        weightOfCurrentBatch += weight;
+        batchOrderer.drain();  // ...and whatever is still being held in the look-ahead window
     }
-
-
-    private synchronized void submitCurrentBatch()
+    
+    
+    /*
+     * Submits a fully assembled batch.
+     */
+    private void submitBatch(final BatchScheduler.PendingBatch                 pendingBatch,
+                             final List<BulkImportItem<BulkImportItemVersion>> contents,
+                             final int                                         batchWeightUsed)
         throws InterruptedException
     {
         // Implement pauses at batch boundaries only
         pauser.blockIfPaused();
-
-        if (currentBatch != null && currentBatch.size() > 0)
-        {
-            final Batch batch = new Batch(currentBatchNumber, currentBatch);
-            
-            // Prepare for the next batch
-            currentBatch = null;
-            importStatus.incrementTargetCounter(BulkImportStatus.TARGET_COUNTER_BATCHES_SUBMITTED);
-            
-            if (multiThreadedImport)
-            {
-                // Submit the batch to the thread pool
-                submitBatch(batch);
-            }
-            else
-            {
-                // Import the batch directly on this thread
-                batchImporter.importBatch(userId, target, batch, replaceExisting, dryRun);
-                
-                // Check if the multi-threading threshold has been reached
-                multiThreadedImport = filePhase && currentBatchNumber >= MULTITHREADING_THRESHOLD;
-                
-                if (multiThreadedImport && debug(log)) debug(log, "Multi-threading threshold (" + MULTITHREADING_THRESHOLD + " batch" + pluralise(MULTITHREADING_THRESHOLD, "es") + ") reached - switching to multi-threaded import.");
-            }
-        }
+        
+        final Batch batch = new Batch(currentBatchNumber.incrementAndGet(), contents);
+        
+        importStatus.incrementTargetCounter(BulkImportStatus.TARGET_COUNTER_BATCHES_SUBMITTED);
+        
+        // Submit the batch to the thread pool (via the orderer, which may reorder file batches, and the scheduler, which holds it back until its parent folders exist)
+        submitBatch(pendingBatch, batch, batchWeightUsed);
     }
     
     
     /**
      * Used to submit a batch to the import thread pool.  Note that this method
-     * can block (due to the use of a blocking queue in the thread pool).
+     * can block (due to the use of a blocking queue in the thread pool), but
+     * does not block while the batch waits for the batches it depends on.
      * 
-     * @param batch The batch to submit <i>(may be null or empty, although that will result in a no-op)</i>.
+     * @param pendingBatch    The pending batch that was used to assemble the batch <i>(must not be null)</i>.
+     * @param batch           The batch to submit <i>(may be null or empty, although that will result in a no-op)</i>.
+     * @param batchWeightUsed The maximum batch weight that was in effect when the batch was assembled.
      */
-    private void submitBatch(final Batch batch)
+    private void submitBatch(final BatchScheduler.PendingBatch pendingBatch, final Batch batch, final int batchWeightUsed)
+        throws InterruptedException
     {
         if (batch        != null &&
             batch.size() >  0)
@@ -355,7 +447,10 @@ public final class Scanner
             if (importStatus.inProgress() &&
                 !importStatus.isStopping())
             {
-                importThreadPool.execute(new BatchImportJob(batch));
+                // Note: preparation starts straight away (if there are preparer threads), so that it overlaps with any wait for earlier batches
+                final RunnableFuture<PreparedBatch> preparation = batchImporter.prepareBatch(userId, batch, !dryRun && !metadataOnly);
+                
+                batchOrderer.submit(pendingBatch, batch, new BatchImportJob(batch, preparation, batchWeightUsed));
             }
             else
             {
@@ -374,16 +469,14 @@ public final class Scanner
     private final void awaitCompletion()
         throws InterruptedException
     {
-        if (multiThreadedImport)
-        {
-            // Log status then wait for everything to wrap up...
-            if (debug(log)) debug(log, "Scanning complete. Waiting for completion of multithreaded import.");
-            logStatusInfo();
-        }
-
-        importThreadPool.shutdown();  // Orderly shutdown (lets the queue drain)
+        // Log status then wait for everything to wrap up...
+        if (debug(log)) debug(log, "Scanning complete. Waiting for completion of multithreaded import.");
+        logStatusInfo();
+        
+        batchScheduler.awaitRelease();  // Batches still waiting on their dependencies haven't reached the thread pool yet
+        importThreadPool.shutdown();    // Orderly shutdown (lets the queue drain)
 
-        // Log status every hour, then go back to waiting - in single threaded case this won't wait at all
+        // Log status every hour, then go back to waiting
         while (!importThreadPool.awaitTermination(1, TimeUnit.HOURS))
         {
             logStatusInfo();
@@ -400,7 +493,7 @@ public final class Scanner
         {
             try
             {
-                final int   batchesInProgress           = importThreadPool.getQueueSize() + importThreadPool.getActiveCount();
+                final int   batchesInProgress           = importThreadPool.getQueueSize() + importThreadPool.getActiveCount() + batchScheduler.getWaitingBatchCount();
                 final Float batchesPerSecond            = importStatus.getTargetCounterRate(BulkImportStatus.TARGET_COUNTER_BATCHES_COMPLETE, SECONDS);
                 final Long  estimatedCompletionTimeInNs = importStatus.getEstimatedRemainingDurationInNs();
                 String      message                     = null;
@@ -430,37 +523,154 @@ public final class Scanner
     
     
     /*
-     * Estimates the "weight" (a unitless value) of the given item.  This is
-     * counted as 1 per content and metadata file in the item, plus 100 per
-     * gigabyte of streamed data (so that files of 1GB or more cause the batch
-     * to end).
+     * Assembles batches for a single producer thread.  Only the owning thread adds items, so the lock is only ever
+     * contended when the scheduler asks for a partial batch to be flushed early (or at the end of the scan).
      */
-    private final int weight(final BulkImportItem<BulkImportItemVersion> item)
+    private final class BatchAssemblyBuffer
+        implements BatchScheduler.BatchAssembler
     {
-        int result = 0;
+        private List<BulkImportItem<BulkImportItemVersion>> currentBatch         = null;
+        private int                                         weightOfCurrentBatch = 0;
+        private int                                         maxWeightOfBatch     = 0;
+        private BatchScheduler.PendingBatch                 pendingBatch         = null;
+        
+        
+        @SuppressWarnings({"rawtypes", "unchecked"})
+        private void add(final BulkImportItem item)
+            throws InterruptedException
+        {
+            // PRECONDITIONS
+            if (item == null)
+            {
+                throw new IllegalArgumentException("Import source '" + source.getName() + "' has logic errors - a null import item was submitted.");
+            }
+            
+            if (item.getVersions() == null ||
+                item.getVersions().size() <= 0)
+            {
+                throw new IllegalArgumentException("Import source '" + source.getName() + "' has logic errors - an empty import item was submitted.");
+            }
+            
+            // Body
+            if (importStatus.isStopping() || Thread.currentThread().isInterrupted()) throw new InterruptedException(Thread.currentThread().getName() + " was interrupted. Terminating early.");
+            
+            // Skip items that were committed by a previous run of this import
+            if (checkpointJournal.isCompleted(item))
+            {
+                if (trace(log)) trace(log, String.valueOf(item) + " was imported by a previous run of this import - skipping it.");
+                importStatus.incrementTargetCounter(BulkImportStatus.TARGET_COUNTER_NODES_RESUMED);
+                return;
+            }
+            
+            checkpointJournal.itemSubmitted(item);
+            
+            final int                                   weight           = batchWeigher.weigh(item);
+            BatchScheduler.PendingBatch                 fullPendingBatch = null;
+            List<BulkImportItem<BulkImportItemVersion>> fullBatch        = null;
+            int                                         fullBatchWeight  = 0;
+            
+            synchronized(this)
+            {
+                // If the weight of the new item would blow out the current batch, submit the batch as-is (i.e. *before* adding the newly submitted item).
+                // This ensures that heavy items start a new batch (and possibly end up in a batch by themselves).
+                if (currentBatch != null && weightOfCurrentBatch + weight > maxWeightOfBatch)
+                {
+                    fullPendingBatch = pendingBatch;
+                    fullBatchWeight  = maxWeightOfBatch;
+                    fullBatch        = take();
+                }
+                
+                // Create a new batch, if necessary (note: the batch weight may change over time, if it's adaptive)
+                if (currentBatch == null)
+                {
+                    maxWeightOfBatch     = batchWeightController.getBatchWeight();
+                    currentBatch         = new ArrayList<>(maxWeightOfBatch);
+                    weightOfCurrentBatch = 0;
+                    pendingBatch         = batchScheduler.newPendingBatch(this);
+                }
+                
+                // Finally, add the item to the current batch
+                currentBatch.add(item);
+                weightOfCurrentBatch += weight;
+                batchScheduler.itemAdded(pendingBatch, item);
+            }
+            
+            // Note: submitted outside the lock, since submission can block
+            if (fullBatch != null)
+            {
+                submitBatch(fullPendingBatch, fullBatch, fullBatchWeight);
+            }
+        }
         
-        for (final BulkImportItemVersion version : item.getVersions())
+        
+        /**
+         * @see org.alfresco.extension.bulkimport.impl.BatchScheduler.BatchAssembler#flush(org.alfresco.extension.bulkimport.impl.BatchScheduler.PendingBatch)
+         */
+        @Override
+        public void flush(final BatchScheduler.PendingBatch pendingBatchToFlush)
+            throws InterruptedException
         {
-            result++;
+            List<BulkImportItem<BulkImportItemVersion>> batch       = null;
+            int                                         batchWeight = 0;
             
-            if (version.hasContent() && !version.contentIsInPlace())
+            synchronized(this)
             {
-                result += (int)((float)item.sizeInBytes() / ONE_GIGABYTE * 100);
+                if (pendingBatch == pendingBatchToFlush)
+                {
+                    batchWeight = maxWeightOfBatch;
+                    batch       = take();
+                }
+            }
+            
+            if (batch != null)
+            {
+                submitBatch(pendingBatchToFlush, batch, batchWeight);
             }
         }
-
-        return(result);
-    }
         
         
+        private void flush()
+            throws InterruptedException
+        {
+            BatchScheduler.PendingBatch pendingBatchToFlush = null;
+            
+            synchronized(this)
+            {
+                pendingBatchToFlush = pendingBatch;
+            }
+            
+            if (pendingBatchToFlush != null)
+            {
+                flush(pendingBatchToFlush);
+            }
+        }
+        
+        
+        private List<BulkImportItem<BulkImportItemVersion>> take()
+        {
+            final List<BulkImportItem<BulkImportItemVersion>> result = currentBatch;
+            
+            currentBatch         = null;
+            weightOfCurrentBatch = 0;
+            pendingBatch         = null;
+            
+            return(result);
+        }
+    }
+    
+    
     private final class BatchImportJob
         implements Runnable
     {
-        private final Batch  batch;
+        private final Batch                         batch;
+        private final RunnableFuture<PreparedBatch> preparation;
+        private final int                           batchWeightUsed;
         
-        public BatchImportJob(final Batch batch)
+        public BatchImportJob(final Batch batch, final RunnableFuture<PreparedBatch> preparation, final int batchWeightUsed)
         {
-            this.batch = batch;
+            this.batch           = batch;
+            this.preparation     = preparation;
+            this.batchWeightUsed = batchWeightUsed;
         }
         
         
@@ -469,17 +679,45 @@ public final class Scanner
         {
             try
             {
-                batchImporter.importBatch(userId, target, batch, replaceExisting, dryRun);
+                PreparedBatch preparedBatch = null;
+                
+                try
+                {
+                    preparedBatch = awaitPreparation();
+                    
+                    final long start = System.nanoTime();
+                    
+                    final Map<String, NodeRef> folders = batchImporter.importBatch(userId, target, preparedBatch, replaceExisting, dryRun, metadataOnly);
+                    checkpointJournal.batchCommitted(batch, folders);
+                    batchWeightController.batchCompleted(batchWeightUsed, System.nanoTime() - start);
+                    importStatus.batchCompleted(batch);
+                }
+                catch (final Throwable t)
+                {
+                    if (!continueOnError || isStopRequest(t)) throw t;
+                    
+                    if (warn(log)) warn(log, String.valueOf(batch) + " failed - bisecting it to isolate the item(s) that failed.", t);
+                    
+                    final List<BulkImportItem<BulkImportItemVersion>> imported = new ArrayList<>(batch.size());
+                    
+                    importBisecting(batch.getContents(), preparedBatch, t, imported);
+                    
+                    // Note: the batch is reported as completed once, no matter how many sub-batches it was split into
+                    if (imported.isEmpty())
+                    {
+                        importStatus.incrementTargetCounter(BulkImportStatus.TARGET_COUNTER_BATCHES_COMPLETE);
+                    }
+                    else
+                    {
+                        importStatus.batchCompleted(new Batch(batch.getNumber(), imported));
+                    }
+                }
+                
+                batchScheduler.batchCommitted(batch);
             }
             catch (final Throwable t)
             {
-                Throwable rootCause          = getRootCause(t);
-                String    rootCauseClassName = rootCause.getClass().getName();
-                
-                if (importStatus.isStopping() &&
-                    (rootCause instanceof InterruptedException ||
-                     rootCause instanceof ClosedByInterruptException ||
-                     "com.hazelcast.core.RuntimeInterruptedException".equals(rootCauseClassName)))  // For compatibility across 4.x *sigh*
+                if (isStopRequest(t))
                 {
                     // A stop import was requested
                     if (debug(log)) debug(log, Thread.currentThread().getName() + " was interrupted by a stop request.", t);
@@ -496,5 +734,97 @@ public final class Scanner
                 }
             }
         }
+        
+        
+        /*
+         * Prepares this job's batch, or waits for it to be prepared if a preparer thread has already started on it.
+         */
+        private PreparedBatch awaitPreparation()
+            throws InterruptedException
+        {
+            PreparedBatch result = null;
+            
+            preparation.run();  // No-op if preparation has already started
+            
+            try
+            {
+                result = preparation.get();
+            }
+            catch (final ExecutionException ee)
+            {
+                final Throwable cause = ee.getCause();
+                
+                if (cause instanceof InterruptedException) throw (InterruptedException)cause;
+                if (cause instanceof RuntimeException)     throw (RuntimeException)cause;
+                if (cause instanceof Error)                throw (Error)cause;
+                
+                throw new RuntimeException(cause);  // Checked exceptions == #fail
+            }
+            
+            return(result);
+        }
+        
+        
+        /*
+         * Imports the given (failed) items by splitting them in half and importing each half as a separate
+         * transaction, recursively, until the items that fail have been isolated.  Failed items are then recorded
+         * and skipped, rather than killing the import.  Whatever was prepared for the original batch (if anything) is
+         * reused by the sub-batches.  The items that were successfully imported are added to <code>imported</code>.
+         */
+        private void importBisecting(final List<BulkImportItem<BulkImportItemVersion>> items,
+                                     final PreparedBatch                               preparedBatch,
+                                     final Throwable                                   failure,
+                                     final List<BulkImportItem<BulkImportItemVersion>> imported)
+            throws InterruptedException
+        {
+            if (items.size() == 1)
+            {
+                final BulkImportItem<BulkImportItemVersion> item = items.get(0);
+                
+                error(log, "Unable to import " + String.valueOf(item) + " - skipping it.", failure);
+                importStatus.incrementTargetCounter(BulkImportStatus.TARGET_COUNTER_NODES_FAILED);
+                checkpointJournal.itemFailed(item);
+            }
+            else
+            {
+                final int half = items.size() / 2;
+                
+                for (final List<BulkImportItem<BulkImportItemVersion>> subItems : Arrays.asList(items.subList(0, half), items.subList(half, items.size())))
+                {
+                    if (importStatus.isStopping() || Thread.currentThread().isInterrupted()) throw new InterruptedException(Thread.currentThread().getName() + " was interrupted. Terminating early.");
+                    
+                    try
+                    {
+                        // Note: sub-batches keep the number of the batch they came from
+                        final Batch subBatch = new Batch(batch.getNumber(), subItems);
+                        
+                        final Map<String, NodeRef> folders = batchImporter.importBatch(userId, target, preparedBatch == null ? PreparedBatch.unprepared(subBatch) : preparedBatch.subBatch(subBatch), replaceExisting, dryRun, metadataOnly);
+                        checkpointJournal.batchCommitted(subBatch, folders);
+                        imported.addAll(subItems);
+                    }
+                    catch (final Throwable t)
+                    {
+                        if (isStopRequest(t)) throw t;
+                        
+                        importBisecting(subItems, preparedBatch, t, imported);
+                    }
+                }
+            }
+        }
+    }
+    
+    
+    /*
+     * Is the given exception the result of a stop request?
+     */
+    private boolean isStopRequest(final Throwable t)
+    {
+        final Throwable rootCause          = getRootCause(t);
+        final String    rootCauseClassName = rootCause.getClass().getName();
+        
+        return(importStatus.isStopping() &&
+               (rootCause instanceof InterruptedException ||
+                rootCause instanceof ClosedByInterruptException ||
+                "com.hazelcast.core.RuntimeInterruptedException".equals(rootCauseClassName)));  // For compatibility across 4.x *sigh*
     }
 }
@@ -49,6 +49,7 @@ public interface WritableBulkImportStatus
 
     void setCurrentlyImporting(String name);
     void batchCompleted(Batch batch);
+    void batchWeightAdjusted(long newBatchWeight);
     
     void preregisterTargetCounters(String[] counterNames);
     void incrementTargetCounter(String counterName);
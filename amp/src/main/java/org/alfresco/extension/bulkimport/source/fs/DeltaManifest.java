@@ -0,0 +1,559 @@
+/*
+ * Copyright (C) 2007 Peter Monks
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * This file is part of an unsupported extension to Alfresco.
+ * 
+ */
+
+package org.alfresco.extension.bulkimport.source.fs;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import static org.alfresco.extension.bulkimport.util.LogUtils.*;
+
+
+/**
+ * This class maintains a manifest of the state of the source directory as at
+ * the last successful import from it, so that subsequent imports can submit
+ * only those items that are new or have changed.  For each item the manifest
+ * records its source-relative path, the total size and latest modification
+ * time of its content file(s), and the latest modification time of its
+ * metadata file(s).
+ * 
+ * The manifest is stored on disk sorted by path (it's built using an
+ * <code>ExternalSorter</code>, so building it uses a bounded amount of
+ * memory).  The previous manifest is not loaded into memory - instead a
+ * sparse index of it (the path at the start of each block of
+ * <code>INDEX_INTERVAL</code> entries) is held in memory, and the block that
+ * may contain a given path is read from disk on demand.  A small number of
+ * recently read blocks are cached, since items from the same directory are
+ * adjacent in the manifest.
+ * 
+ * Manifests are specific to the combination of source directory, target
+ * space, and the flags that determine what gets written to the target, so
+ * that (for example) a metadata-only import doesn't cause content changes to
+ * be missed by a later full import.  The new manifest only replaces the
+ * previous one once the import has completed successfully, so a failed import
+ * doesn't cause changes to be missed next time.  Directories that aren't
+ * scanned (because a resumed import skips what a previous run completed) have
+ * their entries carried forward from the previous manifest, so that a partial
+ * scan doesn't cause them to be imported all over again next time.
+ * 
+ * Note that items that have been deleted from the source are not detected.
+ * 
+ * @author Peter Monks (pmonks@gmail.com)
+ */
+final class DeltaManifest
+{
+    private final static Log log = LogFactory.getLog(DeltaManifest.class);
+    
+    private final static Charset UTF8             = Charset.forName("UTF-8");
+    private final static String  MANIFEST_PREFIX  = "alfresco-bulk-import-";
+    private final static String  MANIFEST_SUFFIX  = ".manifest";
+    private final static String  NEW_SUFFIX       = ".new";
+    private final static char    FIELD_SEPARATOR  = '\u0000';
+    private final static String  PATH_SEPARATOR   = "/";
+    private final static int     INDEX_INTERVAL   = 128;
+    private final static int     BLOCK_CACHE_SIZE = 16;
+    
+    private final File directory;
+    private final int  chunkSize;
+    
+    private File                              manifestFile = null;
+    private RandomAccessFile                  previous     = null;
+    private List<String>                      indexPaths   = null;
+    private long[]                            indexOffsets = null;
+    private Map<Integer, Map<String, String>> blockCache   = null;
+    private ExternalSorter                    current      = null;
+    private Set<String>                       carried      = null;   // Prefixes of the directories carried forward
+    
+    
+    DeltaManifest(final String directory, final int chunkSize)
+    {
+        this.directory = new File(directory == null || directory.trim().length() == 0 ? System.getProperty("java.io.tmpdir") : directory.trim());
+        this.chunkSize = chunkSize;
+    }
+    
+    
+    /**
+     * Opens the manifest for the given import, indexing the state recorded by the last successful import with the
+     * same source directory, target and flags (if any).
+     * 
+     * @param sourceDirectory The source directory <i>(must not be null)</i>.
+     * @param target          The target space of the import, as a nodeRef string <i>(may be null)</i>.
+     * @param replaceExisting Whether the import replaces existing nodes.
+     * @param metadataOnly    Whether the import only updates the metadata of existing nodes.
+     */
+    synchronized void open(final File sourceDirectory, final String target, final boolean replaceExisting, final boolean metadataOnly)
+    {
+        abort();
+        
+        manifestFile = new File(directory, MANIFEST_PREFIX + identify(sourceDirectory, target, replaceExisting, metadataOnly) + MANIFEST_SUFFIX);
+        current      = new ExternalSorter(chunkSize);
+        carried      = new HashSet<>();
+        
+        if (manifestFile.exists())
+        {
+            try
+            {
+                index();
+                previous = new RandomAccessFile(manifestFile, "r");
+            }
+            catch (final IOException ioe)
+            {
+                throw new RuntimeException(ioe);  // Checked exceptions == #fail
+            }
+            
+            if (info(log)) info(log, "Delta import - indexed " + indexPaths.size() + " blocks of manifest " + manifestFile.getAbsolutePath() + ".");
+        }
+        else
+        {
+            if (info(log)) info(log, "Delta import - no manifest found for " + sourceDirectory.getAbsolutePath() + ", so all items will be imported.");
+        }
+    }
+    
+    
+    /**
+     * Records the current state of the given item in the new manifest, and determines whether it's new or has
+     * changed since the last successful import.
+     * 
+     * @param item The item to check <i>(must not be null)</i>.
+     * @return True if the item is new or has changed.
+     */
+    synchronized boolean isNewOrChanged(final FilesystemBulkImportItem item)
+    {
+        final String path  = pathOf(item);
+        final String state = stateOf(item);
+        
+        try
+        {
+            current.add(path + FIELD_SEPARATOR + state);
+            
+            return(!state.equals(previousStateOf(path)));
+        }
+        catch (final IOException ioe)
+        {
+            throw new RuntimeException(ioe);  // Checked exceptions == #fail
+        }
+    }
+    
+    
+    /**
+     * Copies the entries for everything beneath the given directory from the previous manifest into the new one.
+     * Called for directories that aren't scanned, so that the new manifest still covers them.  Calling it more than
+     * once for the same directory has no further effect.
+     * 
+     * @param relativePath The source-relative path of the directory <i>(must not be null or empty)</i>.
+     */
+    synchronized void carryForward(final String relativePath)
+    {
+        final String prefix = relativePath.replace(File.separator, PATH_SEPARATOR) + PATH_SEPARATOR;
+        
+        if (current != null && previous != null && carried.add(prefix))
+        {
+            int count = 0;
+            
+            try
+            {
+                // Note: paths beneath the directory are contiguous in the manifest, starting in the block that starts with the last path that sorts before the prefix
+                int block = Collections.binarySearch(indexPaths, prefix);
+                
+                if (block < 0)
+                {
+                    block = Math.max(0, -block - 2);
+                }
+                
+                do
+                {
+                    for (final Map.Entry<String, String> entry : readBlock(block).entrySet())
+                    {
+                        if (entry.getKey().startsWith(prefix))
+                        {
+                            current.add(entry.getKey() + FIELD_SEPARATOR + entry.getValue());
+                            count++;
+                        }
+                    }
+                    
+                    block++;
+                } while (block < indexPaths.size() && indexPaths.get(block).startsWith(prefix));
+            }
+            catch (final IOException ioe)
+            {
+                throw new RuntimeException(ioe);  // Checked exceptions == #fail
+            }
+            
+            if (debug(log)) debug(log, "Delta import - carried forward " + count + " entries beneath " + relativePath + ".");
+        }
+    }
+    
+    
+    /**
+     * Replaces the previous manifest with the new one.  Called once the import has completed successfully.
+     */
+    synchronized void commit()
+    {
+        if (current != null)
+        {
+            final File newManifestFile = new File(directory, manifestFile.getName() + NEW_SUFFIX);
+            
+            try
+            {
+                try (final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(newManifestFile))))
+                {
+                    final Iterator<String> entries = current.sorted();
+                    
+                    while (entries.hasNext())
+                    {
+                        final String entry     = entries.next();
+                        final int    separator = entry.indexOf(FIELD_SEPARATOR);
+                        
+                        out.writeUTF(entry.substring(0, separator));
+                        out.writeUTF(entry.substring(separator + 1));
+                    }
+                }
+                
+                closePrevious();
+                
+                if (manifestFile.exists() && !manifestFile.delete())
+                {
+                    throw new IOException("Unable to delete previous manifest " + manifestFile.getAbsolutePath() + ".");
+                }
+                
+                if (!newManifestFile.renameTo(manifestFile))
+                {
+                    throw new IOException("Unable to rename " + newManifestFile.getAbsolutePath() + " to " + manifestFile.getAbsolutePath() + ".");
+                }
+                
+                if (info(log)) info(log, "Delta import - manifest " + manifestFile.getAbsolutePath() + " updated.");
+            }
+            catch (final IOException ioe)
+            {
+                // Not fatal - the worst case is that some unchanged items get imported again next time
+                if (warn(log)) warn(log, "Unable to update manifest " + manifestFile.getAbsolutePath() + ".", ioe);
+            }
+            finally
+            {
+                abort();
+            }
+        }
+    }
+    
+    
+    /**
+     * Discards the new manifest, leaving the previous one (if any) in place.
+     */
+    synchronized void abort()
+    {
+        if (current != null)
+        {
+            current.close();
+            current = null;
+        }
+        
+        carried = null;
+        closePrevious();
+    }
+    
+    
+    /*
+     * Reads through the previous manifest once, recording the path and offset at the start of every block.
+     */
+    private void index()
+        throws IOException
+    {
+        final List<String> paths   = new ArrayList<>();
+        long[]             offsets = new long[16];
+        
+        try (final CountingInputStream counter = new CountingInputStream(new BufferedInputStream(new FileInputStream(manifestFile)));
+             final DataInputStream     in      = new DataInputStream(counter))
+        {
+            int entries = 0;
+            
+            while (true)
+            {
+                final long   offset = counter.getCount();
+                final String path;
+                
+                try
+                {
+                    path = in.readUTF();
+                }
+                catch (final EOFException eofe)
+                {
+                    break;
+                }
+                
+                in.readUTF();  // State - not needed for the index
+                
+                if (entries % INDEX_INTERVAL == 0)
+                {
+                    if (paths.size() == offsets.length) offsets = Arrays.copyOf(offsets, offsets.length * 2);
+                    
+                    offsets[paths.size()] = offset;
+                    paths.add(path);
+                }
+                
+                entries++;
+            }
+        }
+        
+        indexPaths   = paths;
+        indexOffsets = Arrays.copyOf(offsets, paths.size());
+        blockCache   = new LinkedHashMap<Integer, Map<String, String>>(BLOCK_CACHE_SIZE, 0.75f, true)
+        {
+            private final static long serialVersionUID = 1L;
+            
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<Integer, Map<String, String>> eldest)
+            {
+                return(size() > BLOCK_CACHE_SIZE);
+            }
+        };
+    }
+    
+    
+    /*
+     * Looks up the state of the given path in the previous manifest, or returns null if it wasn't in it.
+     */
+    private String previousStateOf(final String path)
+        throws IOException
+    {
+        String result = null;
+        
+        if (previous != null)
+        {
+            // Note: the manifest is sorted by String.compareTo order, which is the order Collections.binarySearch uses
+            int block = Collections.binarySearch(indexPaths, path);
+            
+            if (block < 0)
+            {
+                block = -block - 2;  // The block that starts with the last path that sorts before this one
+            }
+            
+            if (block >= 0)
+            {
+                result = readBlock(block).get(path);
+            }
+        }
+        
+        return(result);
+    }
+    
+    
+    private Map<String, String> readBlock(final int block)
+        throws IOException
+    {
+        Map<String, String> result = blockCache.get(block);
+        
+        if (result == null)
+        {
+            final long   start = indexOffsets[block];
+            final long   end   = block + 1 < indexOffsets.length ? indexOffsets[block + 1] : previous.length();
+            final byte[] bytes = new byte[(int)(end - start)];
+            
+            previous.seek(start);
+            previous.readFully(bytes);
+            
+            result = new HashMap<>(INDEX_INTERVAL * 2);
+            
+            try (final DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes)))
+            {
+                while (in.available() > 0)
+                {
+                    result.put(in.readUTF(), in.readUTF());
+                }
+            }
+            
+            blockCache.put(block, result);
+        }
+        
+        return(result);
+    }
+    
+    
+    private void closePrevious()
+    {
+        if (previous != null)
+        {
+            try
+            {
+                previous.close();
+            }
+            catch (final IOException ioe)
+            {
+                if (debug(log)) debug(log, "Unable to close manifest " + manifestFile.getAbsolutePath() + ".", ioe);
+            }
+        }
+        
+        previous     = null;
+        indexPaths   = null;
+        indexOffsets = null;
+        blockCache   = null;
+    }
+    
+    
+    private final static String pathOf(final FilesystemBulkImportItem item)
+    {
+        final String parentPath = item.getRelativePathOfParent();
+        
+        return(parentPath == null || parentPath.length() == 0 ? item.getName() : parentPath.replace(File.separator, PATH_SEPARATOR) + PATH_SEPARATOR + item.getName());
+    }
+    
+    
+    private final static String stateOf(final FilesystemBulkImportItem item)
+    {
+        long size             = 0L;
+        long lastModified     = 0L;
+        long metadataModified = 0L;
+        
+        for (final FilesystemBulkImportItemVersion version : item.getVersions())
+        {
+            // Note: a directory's modification time changes whenever its contents change, so it's ignored
+            if (version.getContentFile() != null && !version.isDirectory())
+            {
+                size         += version.getContentFile().length();
+                lastModified  = Math.max(lastModified, version.getContentFile().lastModified());
+            }
+            
+            if (version.getMetadataFile() != null)
+            {
+                metadataModified = Math.max(metadataModified, version.getMetadataFile().lastModified());
+            }
+        }
+        
+        return(String.valueOf(item.getVersions().size()) + FIELD_SEPARATOR + size + FIELD_SEPARATOR + lastModified + FIELD_SEPARATOR + metadataModified);
+    }
+    
+    
+    private final static String identify(final File sourceDirectory, final String target, final boolean replaceExisting, final boolean metadataOnly)
+    {
+        final StringBuilder identity = new StringBuilder();
+        
+        identity.append(sourceDirectory.getAbsolutePath()).append(FIELD_SEPARATOR);
+        identity.append(String.valueOf(target)).append(FIELD_SEPARATOR);
+        identity.append("replaceExisting=").append(replaceExisting).append(FIELD_SEPARATOR);
+        identity.append("metadataOnly=").append(metadataOnly);
+        
+        try
+        {
+            final StringBuilder result = new StringBuilder();
+            
+            for (final byte b : MessageDigest.getInstance("SHA-1").digest(identity.toString().getBytes(UTF8)))
+            {
+                result.append(String.format("%02x", b));
+            }
+            
+            return(result.toString());
+        }
+        catch (final NoSuchAlgorithmException nsae)
+        {
+            throw new IllegalStateException("SHA-1 is not supported by this JVM.", nsae);
+        }
+    }
+    
+    
+    /*
+     * Counts the bytes read through it, so that the offsets of entries in the manifest can be recorded.
+     */
+    private final static class CountingInputStream
+        extends FilterInputStream
+    {
+        private long count = 0L;
+        
+        
+        private CountingInputStream(final InputStream in)
+        {
+            super(in);
+        }
+        
+        
+        private long getCount()
+        {
+            return(count);
+        }
+        
+        
+        @Override
+        public int read()
+            throws IOException
+        {
+            final int result = super.read();
+            
+            if (result >= 0) count++;
+            
+            return(result);
+        }
+        
+        
+        @Override
+        public int read(final byte[] b, final int off, final int len)
+            throws IOException
+        {
+            final int result = super.read(b, off, len);
+            
+            if (result > 0) count += result;
+            
+            return(result);
+        }
+        
+        
+        @Override
+        public long skip(final long n)
+            throws IOException
+        {
+            final long result = super.skip(n);
+            
+            count += result;
+            
+            return(result);
+        }
+        
+        
+        @Override
+        public boolean markSupported()
+        {
+            return(false);
+        }
+    }
+    
+}
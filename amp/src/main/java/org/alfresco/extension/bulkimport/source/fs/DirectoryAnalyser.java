@@ -20,11 +20,14 @@
 package org.alfresco.extension.bulkimport.source.fs;
 
 import java.io.File;
+import java.io.IOException;
 import java.math.BigDecimal;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
 import java.util.NavigableSet;
 import java.util.SortedMap;
 import java.util.TreeMap;
@@ -63,10 +66,14 @@ public final class DirectoryAnalyser
                                                     COUNTER_NAME_DIRECTORIES_SCANNED,
                                                     COUNTER_NAME_UNREADABLE_ENTRIES };
     
+    private final static int  DEFAULT_CHUNK_SIZE = 100000;
+    private final static char SORT_KEY_SEPARATOR = '\u0000';  // Can't appear in a file name on any supported OS, and sorts before everything else
+    
 
     private final ServiceRegistry serviceRegistry;
     private final ContentStore    configuredContentStore;
     private final MetadataLoader  metadataLoader;
+    private final int             chunkSize;
     
     private BulkImportSourceStatus importStatus;
     
@@ -75,17 +82,26 @@ public final class DirectoryAnalyser
     public DirectoryAnalyser(final ServiceRegistry serviceRegistry,
                              final ContentStore    configuredContentStore,
                              final MetadataLoader  metadataLoader)
+    {
+        this(serviceRegistry, configuredContentStore, metadataLoader, DEFAULT_CHUNK_SIZE);
+    }
+    
+    
+    public DirectoryAnalyser(final ServiceRegistry serviceRegistry,
+                             final ContentStore    configuredContentStore,
+                             final MetadataLoader  metadataLoader,
+                             final int             chunkSize)
     {
         // PRECONDITIONS
         assert serviceRegistry        != null : "serviceRegistry must not be null.";
         assert configuredContentStore != null : "configuredContentStore must not be null.";
         assert metadataLoader         != null : "metadataLoader must not be null.";
-        assert importStatus           != null : "importStatus must not be null.";
         
         // Body
         this.serviceRegistry        = serviceRegistry;
         this.configuredContentStore = configuredContentStore;
         this.metadataLoader         = metadataLoader;
+        this.chunkSize              = chunkSize <= 0 ? DEFAULT_CHUNK_SIZE : chunkSize;
     }
     
     
@@ -108,106 +124,156 @@ public final class DirectoryAnalyser
     public Pair<List<FilesystemBulkImportItem>, List<FilesystemBulkImportItem>> analyseDirectory(final File sourceDirectory, final File directory)
         throws InterruptedException
     {
-        // PRECONDITIONS
-        if (sourceDirectory == null) throw new IllegalArgumentException("sourceDirectory cannot be null.");
-        if (directory       == null) throw new IllegalArgumentException("directory cannot be null.");
-        
-        // Body
-        if (debug(log)) debug(log, "Analysing directory " + getFileName(directory) + "...");
-        
-        Pair<List<FilesystemBulkImportItem>, List<FilesystemBulkImportItem>> result                        = null;
-        File[]                                                               directoryListing              = null;
-        long                                                                 analysisStart                 = 0L;
-        long                                                                 analysisEnd                   = 0L;
-        long                                                                 start                         = 0L;
-        long                                                                 end                           = 0L;
-        String                                                               sourceRelativeParentDirectory = sourceDirectory.toPath().relativize(directory.toPath()).toString();  // Note: JDK 1.7 specific
+        final List<FilesystemBulkImportItem> directoryItems = new ArrayList<>();
+        final List<FilesystemBulkImportItem> fileItems      = new ArrayList<>();
         
-
-        // List the directory
-        start         = System.nanoTime();
-        analysisStart = start;
-        directoryListing = directory.listFiles();
-        end = System.nanoTime();
-        if (trace(log)) trace(log, "List directory (" + directoryListing.length + " entries) took: " + (float)(end - start) / (1000 * 1000 * 1000) + "s.");
-
-        // Build up the list of items from the directory listing
-        start = System.nanoTime();
-        result = analyseDirectory(sourceRelativeParentDirectory, directoryListing);
-        end = System.nanoTime();
-        if (trace(log)) trace(log, "Convert directory listing to set of filesystem import items took: " + (float)(end - start) / (1000 * 1000 * 1000) + "s.");
+        analyseDirectory(sourceDirectory, directory, new ImportItemHandler()
+        {
+            @Override
+            public void handle(final FilesystemBulkImportItem item)
+            {
+                if (item.isDirectory())
+                {
+                    directoryItems.add(item);
+                }
+                else
+                {
+                    fileItems.add(item);
+                }
+            }
+        });
         
-        analysisEnd = end;
-        if (debug(log)) debug(log, "Finished analysing directory " + getFileName(directory) + ", in " + (float)(analysisEnd - analysisStart) / (1000 * 1000 * 1000) + "s.");
-
-        return(result);
+        return(new Pair<>(directoryItems, fileItems));
     }
     
     
-    private Pair<List<FilesystemBulkImportItem>, List<FilesystemBulkImportItem>> analyseDirectory(final String sourceRelativeParentDirectory, final File[] directoryListing)
+    /**
+     * Analyses the given directory, passing each item to the given handler as soon as it has been constructed.  The
+     * directory is read via a <code>DirectoryStream</code> and its entries are grouped into items using a bounded
+     * external sort, so memory usage does not depend on the number of entries in the directory.
+     * 
+     * @param sourceDirectory The source directory for the entire import (note: <u>must</u> be a directory) <i>(must not be null)</i>.
+     * @param directory The directory to analyse (note: <u>must</u> be a directory) <i>(must not be null)</i>.
+     * @param handler The handler to pass each item to <i>(must not be null)</i>.
+     * @throws InterruptedException If the thread executing the method is interrupted.
+     */
+    public void analyseDirectory(final File sourceDirectory, final File directory, final ImportItemHandler handler)
         throws InterruptedException
     {
-        Pair<List<FilesystemBulkImportItem>, List<FilesystemBulkImportItem>> result = null;
+        // PRECONDITIONS
+        if (sourceDirectory == null) throw new IllegalArgumentException("sourceDirectory cannot be null.");
+        if (directory       == null) throw new IllegalArgumentException("directory cannot be null.");
+        if (handler         == null) throw new IllegalArgumentException("handler cannot be null.");
         
-        if (directoryListing != null)
+        // Body
+        if (debug(log)) debug(log, "Analysing directory " + getFileName(directory) + "...");
+        
+        long   analysisStart                 = 0L;
+        long   analysisEnd                   = 0L;
+        long   start                         = 0L;
+        long   end                           = 0L;
+        long   entryCount                    = 0L;
+        String sourceRelativeParentDirectory = sourceDirectory.toPath().relativize(directory.toPath()).toString();  // Note: JDK 1.7 specific
+        
+        try (final ExternalSorter sorter = new ExternalSorter(chunkSize))
         {
-            // This needs some Clojure, desperately...
-            Map<String, SortedMap<BigDecimal, Pair<File, File>>> categorisedFiles = categoriseFiles(directoryListing);
+            // List the directory, keying each entry by the item it belongs to
+            start         = System.nanoTime();
+            analysisStart = start;
             
-            if (debug(log)) debug(log, "Categorised files: " + String.valueOf(categorisedFiles));
+            try (final DirectoryStream<Path> directoryStream = Files.newDirectoryStream(directory.toPath()))
+            {
+                for (final Path path : directoryStream)
+                {
+                    if (importStatus.isStopping() || Thread.currentThread().isInterrupted()) throw new InterruptedException(Thread.currentThread().getName() + " was interrupted. Terminating early.");
+                    
+                    final String fileName = path.getFileName().toString();
+                    
+                    sorter.add(getParentName(metadataLoader, fileName) + SORT_KEY_SEPARATOR + fileName);
+                    entryCount++;
+                }
+            }
+            catch (final IOException ioe)
+            {
+                if (warn(log)) warn(log, "Unable to list directory '" + getFileName(directory) + "' - skipping it.", ioe);
+                importStatus.incrementSourceCounter(COUNTER_NAME_UNREADABLE_ENTRIES);
+                return;
+            }
+            
+            end = System.nanoTime();
+            if (trace(log)) trace(log, "List directory (" + entryCount + " entries) took: " + (float)(end - start) / (1000 * 1000 * 1000) + "s.");
             
-            result = constructImportItems(sourceRelativeParentDirectory, categorisedFiles);
+            // Walk the sorted entries, emitting each item as soon as all of its files have been seen
+            start = System.nanoTime();
+            
+            final Iterator<String>                  sortedEntries = sorter.sorted();
+            String                                  currentName   = null;
+            SortedMap<BigDecimal, Pair<File, File>> itemVersions  = null;
+            
+            while (sortedEntries.hasNext())
+            {
+                if (importStatus.isStopping() || Thread.currentThread().isInterrupted()) throw new InterruptedException(Thread.currentThread().getName() + " was interrupted. Terminating early.");
+                
+                final String sortKey    = sortedEntries.next();
+                final int    separator  = sortKey.indexOf(SORT_KEY_SEPARATOR);
+                final String parentName = sortKey.substring(0, separator);
+                final String fileName   = sortKey.substring(separator + 1);
+                
+                if (!parentName.equals(currentName))
+                {
+                    emitImportItem(handler, sourceRelativeParentDirectory, currentName, itemVersions);
+                    
+                    currentName  = parentName;
+                    itemVersions = new TreeMap<>();
+                }
+                
+                categoriseFile(itemVersions, new File(directory, fileName));
+            }
+            
+            emitImportItem(handler, sourceRelativeParentDirectory, currentName, itemVersions);
+            
+            end = System.nanoTime();
+            if (trace(log)) trace(log, "Convert directory listing to set of filesystem import items took: " + (float)(end - start) / (1000 * 1000 * 1000) + "s.");
+        }
+        catch (final IOException ioe)
+        {
+            throw new RuntimeException(ioe);  // Checked exceptions == #fail
         }
         
-        return(result);
+        analysisEnd = end;
+        if (debug(log)) debug(log, "Finished analysing directory " + getFileName(directory) + ", in " + (float)(analysisEnd - analysisStart) / (1000 * 1000 * 1000) + "s.");
     }
     
     
-    private Map<String, SortedMap<BigDecimal, Pair<File, File>>> categoriseFiles(final File[] directoryListing)
+    private void emitImportItem(final ImportItemHandler                       handler,
+                                final String                                  sourceRelativeParentDirectory,
+                                final String                                  name,
+                                final SortedMap<BigDecimal, Pair<File, File>> itemVersions)
         throws InterruptedException
     {
-        Map<String, SortedMap<BigDecimal, Pair<File, File>>> result = null;
-        
-        if (directoryListing != null)
+        // Note: itemVersions may be empty if none of the item's files were readable
+        if (name != null && itemVersions != null && itemVersions.size() > 0)
         {
-            result = new HashMap<>();
+            if (debug(log)) debug(log, "Categorised files for " + name + ": " + String.valueOf(itemVersions));
             
-            for (final File file : directoryListing)
-            {
-                if (importStatus.isStopping() || Thread.currentThread().isInterrupted()) throw new InterruptedException(Thread.currentThread().getName() + " was interrupted. Terminating early.");
-                
-                categoriseFile(result, file);
-            }
+            handler.handle(constructImportItem(sourceRelativeParentDirectory, name, itemVersions));
         }
-        
-        return(result);
     }
     
 
     /*
-     * This method does the hard work of figuring out where the file belongs (which parent item, and where in that item's
-     * version history).
+     * This method does the hard work of figuring out where the file belongs in its item's version history.
      */
-    private void categoriseFile(final Map<String, SortedMap<BigDecimal, Pair<File, File>>> categorisedFiles, final File file)
+    private void categoriseFile(final SortedMap<BigDecimal, Pair<File, File>> versions, final File file)
     {
         if (file != null)
         {
             if (file.canRead())
             {
                 final String     fileName       = file.getName();
-                final String     parentName     = getParentName(metadataLoader, fileName);
                 final boolean    isMetadata     = isMetadataFile(metadataLoader, fileName);
                 final BigDecimal versionNumber  = getVersionNumber(fileName);
                 
-                SortedMap<BigDecimal, Pair<File, File>> versions = categorisedFiles.get(parentName);
-                
-                // Find the item
-                if (versions == null)
-                {
-                    versions = new TreeMap<>();
-                    categorisedFiles.put(parentName, versions);
-                }
-                
                 // Find the version within the item
                 Pair<File, File> version = versions.get(versionNumber);
                 
@@ -246,43 +312,25 @@ public final class DirectoryAnalyser
     }
     
     
-    private Pair<List<FilesystemBulkImportItem>, List<FilesystemBulkImportItem>> constructImportItems(final String                                             sourceRelativeParentDirectory,
-                                                                                                      final Map<String, SortedMap<BigDecimal,Pair<File,File>>> categorisedFiles)
+    /**
+     * Constructs a single import item from its (already categorised) content and metadata files.  This is also used
+     * to reconstruct items that were previously identified by this analyser, without re-analysing their directory.
+     * 
+     * @param sourceRelativeParentDirectory The source-relative path of the directory containing the item <i>(must not be null)</i>.
+     * @param name                          The name of the item <i>(must not be null, empty or blank)</i>.
+     * @param itemVersions                  The content and metadata files of each version of the item, keyed by version number <i>(must not be null or empty)</i>.
+     * @return The import item <i>(will not be null)</i>.
+     * @throws InterruptedException If the thread executing the method is interrupted.
+     */
+    public FilesystemBulkImportItem constructImportItem(final String                                 sourceRelativeParentDirectory,
+                                                        final String                                 name,
+                                                        final SortedMap<BigDecimal,Pair<File,File>> itemVersions)
         throws InterruptedException
     {
-        Pair<List<FilesystemBulkImportItem>, List<FilesystemBulkImportItem>> result = null;
-        
-        if (categorisedFiles != null)
-        {
-            final List<FilesystemBulkImportItem> directoryItems = new ArrayList<>();
-            final List<FilesystemBulkImportItem> fileItems      = new ArrayList<>();
-            
-            result = new Pair<>(directoryItems, fileItems);
-            
-            for (final String parentName : categorisedFiles.keySet())
-            {
-                if (importStatus.isStopping() || Thread.currentThread().isInterrupted()) throw new InterruptedException(Thread.currentThread().getName() + " was interrupted. Terminating early.");
-                
-                final SortedMap<BigDecimal,Pair<File,File>>         itemVersions = categorisedFiles.get(parentName);
-                final NavigableSet<FilesystemBulkImportItemVersion> versions     = constructImportItemVersions(itemVersions);
-                final boolean                                       isDirectory  = versions.last().isDirectory();
-                final FilesystemBulkImportItem                      item         = new FilesystemBulkImportItem(parentName,
-                                                                                                                isDirectory,
-                                                                                                                sourceRelativeParentDirectory,
-                                                                                                                versions);
-                
-                if (isDirectory)
-                {
-                    directoryItems.add(item);
-                }
-                else
-                {
-                    fileItems.add(item);
-                }
-            }
-        }
+        final NavigableSet<FilesystemBulkImportItemVersion> versions    = constructImportItemVersions(itemVersions);
+        final boolean                                       isDirectory = versions.last().isDirectory();
         
-        return(result);
+        return(new FilesystemBulkImportItem(name, isDirectory, sourceRelativeParentDirectory, versions));
     }
     
     
@@ -314,4 +362,19 @@ public final class DirectoryAnalyser
         return(result);
     }
 
+    
+    /**
+     * Callback interface used to receive items as they're identified by the streaming form of
+     * {@link DirectoryAnalyser#analyseDirectory(File, File, ImportItemHandler)}.
+     */
+    public interface ImportItemHandler
+    {
+        /**
+         * @param item An item that was found in the directory being analysed <i>(will not be null)</i>.
+         * @throws InterruptedException If the thread executing the method is interrupted.
+         */
+        void handle(FilesystemBulkImportItem item)
+            throws InterruptedException;
+    }
+    
 }
@@ -0,0 +1,296 @@
+/*
+ * Copyright (C) 2007 Peter Monks
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * This file is part of an unsupported extension to Alfresco.
+ * 
+ */
+
+package org.alfresco.extension.bulkimport.source.fs;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import static org.alfresco.extension.bulkimport.util.LogUtils.*;
+
+
+/**
+ * This class sorts an arbitrarily large number of strings using a bounded
+ * amount of memory.  Strings are accumulated in memory until
+ * <code>chunkSize</code> of them have been added, at which point that chunk is
+ * sorted and spilled to a temporary file.  The sorted result is then produced
+ * by merging the chunks.
+ * 
+ * Instances are single use, and must be closed (to remove any temporary files)
+ * once the sorted strings have been consumed.
+ * 
+ * @author Peter Monks (pmonks@gmail.com)
+ */
+final class ExternalSorter
+    implements Closeable
+{
+    private final static Log log = LogFactory.getLog(ExternalSorter.class);
+    
+    private final static String CHUNK_FILE_PREFIX = "alfresco-bulk-import-";
+    private final static String CHUNK_FILE_SUFFIX = ".sort";
+    
+    private final int                   chunkSize;
+    private final List<File>            chunkFiles = new ArrayList<>();
+    private final List<DataInputStream> openChunks = new ArrayList<>();
+    
+    private List<String> chunk = new ArrayList<>();
+    
+    
+    ExternalSorter(final int chunkSize)
+    {
+        // PRECONDITIONS
+        assert chunkSize > 0 : "chunkSize must be > 0.";
+        
+        // Body
+        this.chunkSize = chunkSize;
+    }
+    
+    
+    /**
+     * @param value The value to add <i>(must not be null)</i>.
+     * @throws IOException If a chunk could not be spilled to disk.
+     */
+    void add(final String value)
+        throws IOException
+    {
+        // PRECONDITIONS
+        assert value != null : "value must not be null.";
+        
+        // Body
+        chunk.add(value);
+        
+        if (chunk.size() >= chunkSize)
+        {
+            spillChunk();
+        }
+    }
+    
+    
+    /**
+     * @return An iterator over all of the values that have been added, in ascending order <i>(will not be null)</i>.
+     * Note: the iterator wraps any <code>IOException</code>s encountered while reading spilled chunks in a <code>RuntimeException</code>.
+     * @throws IOException If the final chunk could not be spilled to disk.
+     */
+    Iterator<String> sorted()
+        throws IOException
+    {
+        Iterator<String> result = null;
+        
+        if (chunkFiles.isEmpty())
+        {
+            // Everything fit in memory - no need to touch the disk at all
+            Collections.sort(chunk);
+            result = chunk.iterator();
+        }
+        else
+        {
+            if (!chunk.isEmpty())
+            {
+                spillChunk();
+            }
+            
+            if (debug(log)) debug(log, "Merging " + chunkFiles.size() + " sorted chunks.");
+            
+            result = new MergingIterator();
+        }
+        
+        return(result);
+    }
+    
+    
+    /**
+     * @see java.io.Closeable#close()
+     */
+    @Override
+    public void close()
+    {
+        chunk = new ArrayList<>();
+        
+        for (final DataInputStream in : openChunks)
+        {
+            try
+            {
+                in.close();
+            }
+            catch (final IOException ioe)
+            {
+                if (warn(log)) warn(log, "Unable to close temporary file.", ioe);
+            }
+        }
+        
+        openChunks.clear();
+        
+        for (final File chunkFile : chunkFiles)
+        {
+            if (!chunkFile.delete())
+            {
+                if (warn(log)) warn(log, "Unable to delete temporary file " + chunkFile.getAbsolutePath() + ".");
+            }
+        }
+        
+        chunkFiles.clear();
+    }
+    
+    
+    private void spillChunk()
+        throws IOException
+    {
+        final File chunkFile = File.createTempFile(CHUNK_FILE_PREFIX, CHUNK_FILE_SUFFIX);
+        
+        chunkFile.deleteOnExit();
+        chunkFiles.add(chunkFile);
+        Collections.sort(chunk);
+        
+        if (trace(log)) trace(log, "Spilling sorted chunk of " + chunk.size() + " values to " + chunkFile.getAbsolutePath() + ".");
+        
+        try (final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(chunkFile))))
+        {
+            for (final String value : chunk)
+            {
+                out.writeUTF(value);
+            }
+        }
+        
+        chunk = new ArrayList<>();
+    }
+    
+    
+    private final static String readNext(final DataInputStream in)
+        throws IOException
+    {
+        String result = null;
+        
+        try
+        {
+            result = in.readUTF();
+        }
+        catch (final EOFException eofe)
+        {
+            result = null;
+        }
+        
+        return(result);
+    }
+    
+    
+    /**
+     * K-way merge of the spilled chunks.
+     */
+    private final class MergingIterator
+        implements Iterator<String>
+    {
+        private final PriorityQueue<ChunkHead> heads = new PriorityQueue<>();
+        
+        private MergingIterator()
+            throws IOException
+        {
+            for (final File chunkFile : chunkFiles)
+            {
+                final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(chunkFile)));
+                
+                openChunks.add(in);
+                advance(in);
+            }
+        }
+        
+        
+        @Override
+        public boolean hasNext()
+        {
+            return(!heads.isEmpty());
+        }
+        
+        
+        @Override
+        public String next()
+        {
+            final ChunkHead head = heads.poll();
+            
+            if (head == null) throw new NoSuchElementException();
+            
+            try
+            {
+                advance(head.in);
+            }
+            catch (final IOException ioe)
+            {
+                throw new RuntimeException(ioe);  // Checked exceptions == #fail
+            }
+            
+            return(head.value);
+        }
+        
+        
+        @Override
+        public void remove()
+        {
+            throw new UnsupportedOperationException();
+        }
+        
+        
+        private void advance(final DataInputStream in)
+            throws IOException
+        {
+            final String value = readNext(in);
+            
+            if (value != null)
+            {
+                heads.add(new ChunkHead(value, in));
+            }
+        }
+    }
+    
+    
+    private final static class ChunkHead
+        implements Comparable<ChunkHead>
+    {
+        private final String          value;
+        private final DataInputStream in;
+        
+        private ChunkHead(final String value, final DataInputStream in)
+        {
+            this.value = value;
+            this.in    = in;
+        }
+        
+        @Override
+        public int compareTo(final ChunkHead other)
+        {
+            return(value.compareTo(other.value));
+        }
+    }
+    
+}
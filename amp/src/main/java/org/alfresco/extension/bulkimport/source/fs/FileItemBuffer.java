@@ -0,0 +1,286 @@
+/*
+ * Copyright (C) 2007 Peter Monks
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * This file is part of an unsupported extension to Alfresco.
+ * 
+ */
+
+package org.alfresco.extension.bulkimport.source.fs;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.alfresco.util.Pair;
+
+import org.alfresco.extension.bulkimport.BatchingBulkImportCallback;
+import org.alfresco.extension.bulkimport.BulkImportCallback;
+import org.alfresco.extension.bulkimport.source.BulkImportSourceStatus;
+
+import static org.alfresco.extension.bulkimport.util.LogUtils.*;
+
+
+/**
+ * This class buffers the file items discovered during the folder scanning
+ * phase, so that they can be replayed during the file scanning phase without
+ * the source directory tree having to be listed and analysed a second time.
+ * 
+ * Up to <code>maxItemsInMemory</code> items are held in memory.  Beyond that,
+ * only the names of each item's content and metadata files are spilled to a
+ * temporary file, and the items are reconstructed (without re-listing their
+ * directories) when they're replayed.
+ * 
+ * @author Peter Monks (pmonks@gmail.com)
+ */
+final class FileItemBuffer
+{
+    private final static Log log = LogFactory.getLog(FileItemBuffer.class);
+    
+    private final static String SPILL_FILE_PREFIX = "alfresco-bulk-import-";
+    private final static String SPILL_FILE_SUFFIX = ".items";
+    
+    private final DirectoryAnalyser directoryAnalyser;
+    private final int               maxItemsInMemory;
+    
+    private List<FilesystemBulkImportItem> items       = new ArrayList<>();
+    private File                           spillFile   = null;
+    private DataOutputStream               spillStream = null;
+    private long                           spillCount  = 0;
+    
+    
+    FileItemBuffer(final DirectoryAnalyser directoryAnalyser, final int maxItemsInMemory)
+    {
+        // PRECONDITIONS
+        assert directoryAnalyser != null : "directoryAnalyser must not be null.";
+        
+        // Body
+        this.directoryAnalyser = directoryAnalyser;
+        this.maxItemsInMemory  = maxItemsInMemory;
+    }
+    
+    
+    /**
+     * Adds the given file item to this buffer.
+     * 
+     * @param item The item to buffer <i>(must not be null)</i>.
+     */
+    synchronized void add(final FilesystemBulkImportItem item)
+    {
+        // PRECONDITIONS
+        assert item != null : "item must not be null.";
+        
+        // Body
+        if (items.size() < maxItemsInMemory)
+        {
+            items.add(item);
+        }
+        else
+        {
+            spill(item);
+        }
+    }
+    
+    
+    /**
+     * Submits all of the buffered items to the given callback, in the order they were added, then empties this buffer.
+     * 
+     * @param status   The source status object to use <i>(must not be null)</i>.
+     * @param callback The callback to submit the items to <i>(must not be null)</i>.
+     * @throws InterruptedException If the thread executing the method is interrupted.
+     */
+    synchronized void replay(final BulkImportSourceStatus status, final BulkImportCallback callback)
+        throws InterruptedException
+    {
+        // PRECONDITIONS
+        assert status   != null : "status must not be null.";
+        assert callback != null : "callback must not be null.";
+        
+        // Body
+        try
+        {
+            if (debug(log)) debug(log, "Replaying " + items.size() + " buffered file items from memory and " + spillCount + " from disk.");
+            
+            if (callback instanceof BatchingBulkImportCallback)
+            {
+                if (status.isStopping() || Thread.currentThread().isInterrupted()) throw new InterruptedException(Thread.currentThread().getName() + " was interrupted. Terminating early.");
+                
+                ((BatchingBulkImportCallback)callback).submitAll(items);
+            }
+            else
+            {
+                for (final FilesystemBulkImportItem item : items)
+                {
+                    if (status.isStopping() || Thread.currentThread().isInterrupted()) throw new InterruptedException(Thread.currentThread().getName() + " was interrupted. Terminating early.");
+                    
+                    callback.submit(item);
+                }
+            }
+            
+            items = new ArrayList<>();   // Allow the items to be GCed as soon as they've been imported
+            
+            if (spillFile != null)
+            {
+                replaySpilledItems(status, callback);
+            }
+        }
+        finally
+        {
+            clear();
+        }
+    }
+    
+    
+    /**
+     * Empties this buffer and deletes any temporary file it may have created.
+     */
+    synchronized void clear()
+    {
+        items      = new ArrayList<>();
+        spillCount = 0;
+        
+        if (spillStream != null)
+        {
+            try
+            {
+                spillStream.close();
+            }
+            catch (final IOException ioe)
+            {
+                if (warn(log)) warn(log, "Unable to close temporary file " + spillFile.getAbsolutePath() + ".", ioe);
+            }
+            
+            spillStream = null;
+        }
+        
+        if (spillFile != null)
+        {
+            if (!spillFile.delete())
+            {
+                if (warn(log)) warn(log, "Unable to delete temporary file " + spillFile.getAbsolutePath() + ".");
+            }
+            
+            spillFile = null;
+        }
+    }
+    
+    
+    private void spill(final FilesystemBulkImportItem item)
+    {
+        try
+        {
+            if (spillStream == null)
+            {
+                spillFile = File.createTempFile(SPILL_FILE_PREFIX, SPILL_FILE_SUFFIX);
+                spillFile.deleteOnExit();
+                spillStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(spillFile)));
+                
+                if (debug(log)) debug(log, "More than " + maxItemsInMemory + " file items found - spilling the remainder to " + spillFile.getAbsolutePath() + ".");
+            }
+            
+            spillStream.writeUTF(item.getRelativePathOfParent() == null ? "" : item.getRelativePathOfParent());
+            spillStream.writeUTF(item.getName());
+            spillStream.writeInt(item.getVersions().size());
+            
+            for (final FilesystemBulkImportItemVersion version : item.getVersions())
+            {
+                spillStream.writeUTF(version.getVersionNumber().toPlainString());
+                spillStream.writeUTF(version.getContentFile()  == null ? "" : version.getContentFile().getAbsolutePath());
+                spillStream.writeUTF(version.getMetadataFile() == null ? "" : version.getMetadataFile().getAbsolutePath());
+            }
+            
+            spillCount++;
+        }
+        catch (final IOException ioe)
+        {
+            throw new RuntimeException(ioe);  // Checked exceptions == #fail
+        }
+    }
+    
+    
+    private void replaySpilledItems(final BulkImportSourceStatus status, final BulkImportCallback callback)
+        throws InterruptedException
+    {
+        try
+        {
+            spillStream.close();
+            spillStream = null;
+            
+            try (final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(spillFile))))
+            {
+                while (true)
+                {
+                    if (status.isStopping() || Thread.currentThread().isInterrupted()) throw new InterruptedException(Thread.currentThread().getName() + " was interrupted. Terminating early.");
+                    
+                    final String relativePathOfParent;
+                    
+                    try
+                    {
+                        relativePathOfParent = toRelativePath(in.readUTF());
+                    }
+                    catch (final EOFException eofe)
+                    {
+                        break;
+                    }
+                    
+                    final String                                name         = in.readUTF();
+                    final int                                   versionCount = in.readInt();
+                    final SortedMap<BigDecimal,Pair<File,File>> itemVersions = new TreeMap<>();
+                    
+                    for (int i = 0; i < versionCount; i++)
+                    {
+                        final BigDecimal versionNumber = new BigDecimal(in.readUTF());
+                        final File       contentFile   = toFile(in.readUTF());
+                        final File       metadataFile  = toFile(in.readUTF());
+                        
+                        itemVersions.put(versionNumber, new Pair<>(contentFile, metadataFile));
+                    }
+                    
+                    callback.submit(directoryAnalyser.constructImportItem(relativePathOfParent, name, itemVersions));
+                }
+            }
+        }
+        catch (final IOException ioe)
+        {
+            throw new RuntimeException(ioe);  // Checked exceptions == #fail
+        }
+    }
+    
+    
+    private final static String toRelativePath(final String path)
+    {
+        return(path.length() == 0 ? null : path);   // Items in the root of the source have a null parent path
+    }
+    
+    
+    private final static File toFile(final String path)
+    {
+        return(path.length() == 0 ? null : new File(path));
+    }
+    
+}
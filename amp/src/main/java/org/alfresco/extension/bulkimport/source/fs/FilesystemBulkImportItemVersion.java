@@ -22,6 +22,7 @@ package org.alfresco.extension.bulkimport.source.fs;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.Serializable;
 import java.math.BigDecimal;
 import java.nio.file.Files;
@@ -42,6 +43,7 @@ import org.alfresco.service.cmr.repository.ContentWriter;
 import org.alfresco.service.cmr.repository.MimetypeService;
 import org.alfresco.service.namespace.NamespaceService;
 import org.alfresco.extension.bulkimport.source.AbstractBulkImportItemVersion;
+import org.alfresco.extension.bulkimport.source.ReadableBulkImportItemVersion;
 import org.alfresco.extension.bulkimport.source.fs.MetadataLoader.Metadata;
 
 import static org.alfresco.extension.bulkimport.util.Utils.*;
@@ -54,6 +56,7 @@ import static org.alfresco.extension.bulkimport.source.fs.FilesystemSourceUtils.
  */
 public final class FilesystemBulkImportItemVersion
     extends AbstractBulkImportItemVersion<File, File>
+    implements ReadableBulkImportItemVersion
 {
     @SuppressWarnings("unused")
     private final static Log log = LogFactory.getLog(FilesystemBulkImportItemVersion.class);
@@ -66,10 +69,12 @@ public final class FilesystemBulkImportItemVersion
 
     // Cached file info (to avoid repeated calls to stat syscall on the same file)
     private final boolean isDirectory;
+    private final boolean contentIsDirectory;
     private final long    cachedSizeInBytes;
 
-    private Metadata cachedMetadata   = null;
-    private boolean  contentIsInPlace = false;
+    private Metadata    cachedMetadata = null;
+    private boolean     inPlaceChecked = false;
+    private ContentData inPlaceContent = null;
 
 
     public FilesystemBulkImportItemVersion(final ServiceRegistry serviceRegistry,
@@ -79,11 +84,9 @@ public final class FilesystemBulkImportItemVersion
                                            final File            contentFile,
                                            final File            metadataFile)
     {
-        super(calculateType(metadataLoader,
-                            contentFile,
-                            metadataFile,
-                            ContentModel.TYPE_FOLDER.toPrefixString(serviceRegistry.getNamespaceService()),
-                            ContentModel.TYPE_CONTENT.toPrefixString(serviceRegistry.getNamespaceService())),
+        // Note: this is only the default type - the metadata file (if any) isn't loaded until it's needed
+        super(contentFile != null && contentFile.isDirectory() ? ContentModel.TYPE_FOLDER.toPrefixString(serviceRegistry.getNamespaceService()) :
+                                                                 ContentModel.TYPE_CONTENT.toPrefixString(serviceRegistry.getNamespaceService()),
               versionNumber);
 
         this.mimeTypeService        = serviceRegistry.getMimetypeService();
@@ -94,9 +97,19 @@ public final class FilesystemBulkImportItemVersion
         this.metadataReference      = metadataFile;
 
         // "stat" the content file then cache the results
-        this.isDirectory = serviceRegistry.getDictionaryService().isSubClass(createQName(serviceRegistry, getType()), ContentModel.TYPE_FOLDER);
+        this.contentIsDirectory = contentFile != null && contentFile.isDirectory();
 
-        if (contentFile == null || contentFile.isDirectory())
+        if (contentFile == null)
+        {
+            // Metadata-only versions have nothing on disk to tell us what they are, so the metadata file has to be read now
+            this.isDirectory = serviceRegistry.getDictionaryService().isSubClass(createQName(serviceRegistry, getType()), ContentModel.TYPE_FOLDER);
+        }
+        else
+        {
+            this.isDirectory = contentIsDirectory;
+        }
+
+        if (contentFile == null || contentIsDirectory)
         {
             cachedSizeInBytes = 0L;
         }
@@ -111,11 +124,29 @@ public final class FilesystemBulkImportItemVersion
         return(contentReference);
     }
 
+    public File getMetadataFile()
+    {
+        return(metadataReference);
+    }
+
     public boolean isDirectory()
     {
         return(isDirectory);
     }
 
+    /**
+     * Note: the metadata file is loaded (once) the first time this is called, so that the scanner doesn't have to
+     * parse every metadata file just to determine types.
+     * 
+     * @see org.alfresco.extension.bulkimport.source.BulkImportItemVersion#getType()
+     */
+    @Override
+    public String getType()
+    {
+        loadMetadataIfNecessary();
+        return(cachedMetadata.getType() == null ? type : cachedMetadata.getType());
+    }
+
     /**
      * @see org.alfresco.extension.bulkimport.source.BulkImportItemVersion#getVersionComment()
      */
@@ -172,7 +203,7 @@ public final class FilesystemBulkImportItemVersion
     @Override
     public boolean hasContent()
     {
-        return(contentReference != null && !contentReference.isDirectory());
+        return(contentReference != null && !contentIsDirectory);
     }
 
     /**
@@ -199,8 +230,8 @@ public final class FilesystemBulkImportItemVersion
     @Override
     public boolean contentIsInPlace()
     {
-        loadMetadataIfNecessary();
-        return(contentIsInPlace);
+        checkInPlaceIfNecessary();
+        return(inPlaceContent != null);
     }
 
     /**
@@ -215,39 +246,22 @@ public final class FilesystemBulkImportItemVersion
     }
 
 
-    private final static String calculateType(final MetadataLoader metadataLoader,
-                                              final File           contentFile,
-                                              final File           metadataFile,
-                                              final String         typeFolder,
-                                              final String         typeFile)
+    /**
+     * @see org.alfresco.extension.bulkimport.source.ReadableBulkImportItemVersion#getContentInputStream()
+     */
+    @Override
+    public InputStream getContentInputStream()
+        throws IOException
     {
-        String result = null;
-        final Metadata metadata = metadataLoader.loadMetadata(metadataFile);
-
-        result = metadata.getType();
-
-        if (result == null)
-        {
-            if (contentFile != null)
-            {
-                result = contentFile.isDirectory() ? typeFolder : typeFile;
-            }
-            else
-            {
-                // No type specified in metadata, and no content file, so default to content
-                result = typeFile;
-            }
-        }
-
-        return(result);
+        return(Files.newInputStream(contentReference.toPath()));
     }
 
+
     private final synchronized void loadMetadataIfNecessary()
     {
         if (cachedMetadata == null)
         {
-            cachedMetadata   = metadataLoader.loadMetadata(metadataReference);
-            contentIsInPlace = false;
+            cachedMetadata = metadataLoader.loadMetadata(metadataReference);
 
             if (contentReference != null)
             {
@@ -274,28 +288,42 @@ public final class FilesystemBulkImportItemVersion
                         cachedMetadata.addProperty(ContentModel.PROP_MODIFIED.toString(), modified);
                     }
 
-                    // If an in-place import is possible, attempt to construct a content URL
-                    if (!contentReference.isDirectory() && isInContentStore(configuredContentStore, contentReference))
-                    {
-                        final ContentData contentData = buildContentProperty(mimeTypeService, configuredContentStore, contentReference);
-
-                        if (contentData != null)
-                        {
-                            // We have valid in-place content
-                            contentIsInPlace = true;
-                            cachedMetadata.addProperty(ContentModel.PROP_CONTENT.toString(), contentData);
-                        }
-                        else
-                        {
-                            if (warn(FilesystemBulkImportItem.log)) warn (FilesystemBulkImportItem.log, "Unable to in-place import '" + getFileName(contentReference) + "'. Will stream it instead.");
-                        }
-                    }
                 }
                 catch (final IOException ioe)
                 {
                     // Not much we can do in this case - log it and keep on truckin'
                     if (warn(FilesystemBulkImportItem.log)) warn(FilesystemBulkImportItem.log, "Unable to read file attributes for " + contentReference.getAbsolutePath() + ". Creation and modification timestamps will be system generated.", ioe);
                 }
+
+                checkInPlaceIfNecessary();
+
+                if (inPlaceContent != null)
+                {
+                    cachedMetadata.addProperty(ContentModel.PROP_CONTENT.toString(), inPlaceContent);
+                }
+            }
+        }
+    }
+
+    /*
+     * Note: this doesn't require the metadata file to be loaded, so that batch weighers (which run on the scanning
+     * thread) can find out whether content is in-place without parsing metadata.
+     */
+    private final synchronized void checkInPlaceIfNecessary()
+    {
+        if (!inPlaceChecked)
+        {
+            inPlaceChecked = true;
+
+            // If an in-place import is possible, attempt to construct a content URL
+            if (contentReference != null && !contentIsDirectory && isInContentStore(configuredContentStore, contentReference))
+            {
+                inPlaceContent = buildContentProperty(mimeTypeService, configuredContentStore, contentReference);
+
+                if (inPlaceContent == null)
+                {
+                    if (warn(FilesystemBulkImportItem.log)) warn (FilesystemBulkImportItem.log, "Unable to in-place import '" + getFileName(contentReference) + "'. Will stream it instead.");
+                }
             }
         }
     }
@@ -22,32 +22,54 @@ package org.alfresco.extension.bulkimport.source.fs;
 
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.text.DecimalFormat;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import org.alfresco.repo.content.ContentStore;
-import org.alfresco.util.Pair;
 
 import org.alfresco.extension.bulkimport.BulkImportCallback;
+import org.alfresco.extension.bulkimport.BulkImportCompletionHandler;
+import org.alfresco.extension.bulkimport.BulkImportStatus;
+import org.alfresco.extension.bulkimport.ResumableBulkImportCallback;
 import org.alfresco.extension.bulkimport.source.AbstractBulkImportSource;
 import org.alfresco.extension.bulkimport.source.BulkImportSourceStatus;
 
+import static org.alfresco.extension.bulkimport.util.Utils.*;
 import static org.alfresco.extension.bulkimport.util.LogUtils.*;
 import static org.alfresco.extension.bulkimport.source.fs.FilesystemSourceUtils.*;
 
 
 /**
  * This class is a Filesystem specific version of a <code>BulkImportSource</code>.
+ * 
+ * In delta mode, only items that are new or have changed since the last
+ * successful import from the same source directory are submitted (see
+ * <code>DeltaManifest</code>).  The source is notified when the import
+ * completes (it's a <code>BulkImportCompletionHandler</code>), so that it
+ * knows whether to update the manifest.
+ * 
+ * When an interrupted import is resumed, directories that were completely
+ * imported by the previous run are skipped without being scanned (see
+ * <code>ResumableBulkImportCallback</code>).
  *
  * @author Peter Monks (pmonks@gmail.com)
  *
  */
 public final class FilesystemBulkImportSource
     extends AbstractBulkImportSource
+    implements BulkImportCompletionHandler
 {
     private final static Log log = LogFactory.getLog(FilesystemBulkImportSource.class);
     
@@ -57,10 +79,24 @@ public final class FilesystemBulkImportSource
     private final static String IMPORT_SOURCE_CONFIG_UI_URI = "/bulk/import/fs/config";
     
     private final static String PARAMETER_SOURCE_DIRECTORY = "sourceDirectory";
+    private final static String PARAMETER_REPLACE_EXISTING = "replaceExisting";
+    private final static String PARAMETER_METADATA_ONLY    = "metadataOnly";
+    
+    private final static int    DEFAULT_SCAN_PARALLELISM        = Runtime.getRuntime().availableProcessors();
+    private final static String SCANNER_THREAD_NAME_PREFIX      = "BulkImport-Scanner-";
+    private final static int    DEFAULT_SINGLE_PASS_BUFFER_SIZE = 10000;
+    private final static int    DEFAULT_MANIFEST_CHUNK_SIZE     = 100000;
+    
+    private final static String COUNTER_NAME_UNCHANGED_ITEMS        = "Unchanged items skipped";
+    private final static String COUNTER_NAME_COMPLETED_DIRECTORIES = "Previously imported directories skipped";
     
     private final DirectoryAnalyser  directoryAnalyser;
     private final ContentStore       configuredContentStore;
     private final List<ImportFilter> importFilters;
+    private final int                scanParallelism;
+    private final boolean            singlePass;
+    private final FileItemBuffer     fileItemBuffer;
+    private final DeltaManifest      deltaManifest;
     
     private File sourceDirectory = null;
     
@@ -68,6 +104,20 @@ public final class FilesystemBulkImportSource
                                       final DirectoryAnalyser      directoryAnalyser,
                                       final ContentStore           configuredContentStore,
                                       final List<ImportFilter>     importFilters)
+    {
+        this(importStatus, directoryAnalyser, configuredContentStore, importFilters, 1, false, DEFAULT_SINGLE_PASS_BUFFER_SIZE, false, null);
+    }
+    
+    
+    public FilesystemBulkImportSource(final BulkImportSourceStatus importStatus,
+                                      final DirectoryAnalyser      directoryAnalyser,
+                                      final ContentStore           configuredContentStore,
+                                      final List<ImportFilter>     importFilters,
+                                      final int                    scanParallelism,
+                                      final boolean                singlePass,
+                                      final int                    singlePassBufferSize,
+                                      final boolean                delta,
+                                      final String                 deltaManifestDirectory)
     {
         super(importStatus, IMPORT_SOURCE_NAME, IMPORT_SOURCE_DESCRIPTION, IMPORT_SOURCE_CONFIG_UI_URI, null);
         
@@ -79,6 +129,10 @@ public final class FilesystemBulkImportSource
         this.directoryAnalyser      = directoryAnalyser;
         this.configuredContentStore = configuredContentStore;
         this.importFilters          = importFilters;
+        this.scanParallelism        = scanParallelism <= 0 ? DEFAULT_SCAN_PARALLELISM : scanParallelism;
+        this.singlePass             = singlePass;
+        this.fileItemBuffer         = singlePass ? new FileItemBuffer(directoryAnalyser, singlePassBufferSize <= 0 ? DEFAULT_SINGLE_PASS_BUFFER_SIZE : singlePassBufferSize) : null;
+        this.deltaManifest          = delta      ? new DeltaManifest(deltaManifestDirectory, DEFAULT_MANIFEST_CHUNK_SIZE) : null;
     }
     
     
@@ -138,9 +192,45 @@ public final class FilesystemBulkImportSource
         }
         
         directoryAnalyser.init(importStatus);
+        
+        if (fileItemBuffer != null)
+        {
+            fileItemBuffer.clear();  // In case a previous import was stopped before its file phase completed
+        }
+        
+        if (deltaManifest != null)
+        {
+            deltaManifest.open(sourceDirectory,
+                               parameters.get(PARAMETER_TARGET)           == null ? null  : parameters.get(PARAMETER_TARGET).get(0),
+                               parameters.get(PARAMETER_REPLACE_EXISTING) == null ? false : Boolean.parseBoolean(parameters.get(PARAMETER_REPLACE_EXISTING).get(0)),
+                               parameters.get(PARAMETER_METADATA_ONLY)    == null ? false : Boolean.parseBoolean(parameters.get(PARAMETER_METADATA_ONLY).get(0)));
+        }
     }
 
 
+    /**
+     * @see org.alfresco.extension.bulkimport.BulkImportCompletionHandler#importComplete(org.alfresco.extension.bulkimport.BulkImportStatus)
+     */
+    @Override
+    public void importComplete(final BulkImportStatus status)
+    {
+        if (deltaManifest != null)
+        {
+            final Long nodesFailed = status.getTargetCounter(BulkImportStatus.TARGET_COUNTER_NODES_FAILED);
+            
+            // Only record the new state of the source if every item in it made it into the repository
+            if (status.succeeded() && !status.isDryRun() && (nodesFailed == null || nodesFailed.longValue() == 0))
+            {
+                deltaManifest.commit();
+            }
+            else
+            {
+                deltaManifest.abort();
+            }
+        }
+    }
+    
+    
     /**
      * @see org.alfresco.extension.bulkimport.source.BulkImportSource#inPlaceImportPossible()
      */
@@ -158,7 +248,7 @@ public final class FilesystemBulkImportSource
     public void scanFolders(final BulkImportSourceStatus status, final BulkImportCallback callback)
         throws InterruptedException
     {
-        scanDirectory(status, callback, sourceDirectory, sourceDirectory, false);
+        scan(status, callback, false);
     }
 
 
@@ -169,12 +259,40 @@ public final class FilesystemBulkImportSource
     public void scanFiles(BulkImportSourceStatus status, BulkImportCallback callback)
         throws InterruptedException
     {
-        scanDirectory(status, callback, sourceDirectory, sourceDirectory, true);
+        if (singlePass)
+        {
+            // The file items were all found (and buffered) during the folder phase, so there's no need to scan again
+            fileItemBuffer.replay(status, callback);
+        }
+        else
+        {
+            scan(status, callback, true);
+        }
     }
 
     
     /**
-     * This method actually does the work of scanning.
+     * Scans the entire source directory, either on the calling thread (when scan parallelism is 1), or using a
+     * work-stealing pool of scanner threads.
+     */
+    private void scan(final BulkImportSourceStatus status,
+                      final BulkImportCallback     callback,
+                      final boolean                submitFiles)
+        throws InterruptedException
+    {
+        if (scanParallelism <= 1)
+        {
+            scanDirectory(status, callback, sourceDirectory, sourceDirectory, submitFiles);
+        }
+        else
+        {
+            parallelScan(status, callback, submitFiles);
+        }
+    }
+    
+    
+    /**
+     * This method actually does the work of scanning (single threaded).
      */
     private void scanDirectory(final BulkImportSourceStatus status,
                                final BulkImportCallback     callback,
@@ -182,84 +300,222 @@ public final class FilesystemBulkImportSource
                                final File                   directory,
                                final boolean                submitFiles)
         throws InterruptedException
+    {
+        if (!isCompleted(status, callback, sourceDirectory, directory))
+        {
+            final List<File> subdirectories = analyseAndSubmitDirectory(status, callback, sourceDirectory, directory, submitFiles);
+            
+            for (final File subdirectory : subdirectories)
+            {
+                if (importStatus.isStopping() || Thread.currentThread().isInterrupted()) throw new InterruptedException(Thread.currentThread().getName() + " was interrupted. Terminating early.");
+                
+                scanDirectory(status, callback, sourceDirectory, subdirectory, submitFiles);
+            }
+            
+            directorySubmitted(callback, sourceDirectory, directory, submitFiles);
+        }
+    }
+    
+    
+    /**
+     * This method does the work of scanning using a fork-join (work-stealing) pool.  Each directory is analysed by a
+     * separate task, and the subdirectories of a directory are only forked <u>after</u> that directory's items have
+     * been submitted.  Because a subdirectory's own item is submitted by its parent's task, parents are therefore
+     * always submitted before their children, regardless of which scanner thread ends up doing the work.
+     */
+    private void parallelScan(final BulkImportSourceStatus status,
+                              final BulkImportCallback     callback,
+                              final boolean                submitFiles)
+        throws InterruptedException
+    {
+        final ForkJoinPool       pool   = new ForkJoinPool(scanParallelism, new ScannerThreadFactory(), null, false);
+        final ForkJoinTask<Void> result = pool.submit(new ScanDirectoryTask(status, callback, sourceDirectory, sourceDirectory, submitFiles));
+        
+        if (debug(log)) debug(log, "Scanning " + sourceDirectory.getAbsolutePath() + " with " + scanParallelism + " scanner threads.");
+        
+        try
+        {
+            result.get();
+        }
+        catch (final InterruptedException ie)
+        {
+            pool.shutdownNow();
+            throw ie;
+        }
+        catch (final ExecutionException ee)
+        {
+            final Throwable cause = ee.getCause();
+            
+            if (getRootCause(cause) instanceof InterruptedException)
+            {
+                throw new InterruptedException(Thread.currentThread().getName() + " was interrupted. Terminating early.");
+            }
+            else if (cause instanceof RuntimeException)
+            {
+                throw (RuntimeException)cause;
+            }
+            else if (cause instanceof Error)
+            {
+                throw (Error)cause;
+            }
+            else
+            {
+                throw new RuntimeException(cause);
+            }
+        }
+        finally
+        {
+            pool.shutdown();
+        }
+    }
+    
+    
+    /**
+     * Analyses the given directory and submits the relevant items (folders or files) in it.
+     * 
+     * @return The subdirectories of the given directory that need to be scanned <i>(will not be null)</i>.
+     */
+    private List<File> analyseAndSubmitDirectory(final BulkImportSourceStatus status,
+                                                 final BulkImportCallback     callback,
+                                                 final File                   sourceDirectory,
+                                                 final File                   directory,
+                                                 final boolean                submitFiles)
+        throws InterruptedException
     {
         // PRECONDITIONS
         if (sourceDirectory == null) throw new IllegalArgumentException("sourceDirectory cannot be null.");
         if (directory       == null) throw new IllegalArgumentException("directory cannot be null.");
 
         // Body
+        final List<File> result = new ArrayList<>();
+        
         if (debug(log)) debug(log, "Scanning directory " + directory.getAbsolutePath() + " for " + (submitFiles ? "Files" : "Folders") + "...");
         
         status.setCurrentlyScanning(sourceDirectory.getAbsolutePath());
-                              
-        final Pair<List<FilesystemBulkImportItem>, List<FilesystemBulkImportItem>> analysedDirectory = directoryAnalyser.analyseDirectory(sourceDirectory, directory);
         
-        if (analysedDirectory != null)
+        // Items are submitted as soon as the analyser finds them, rather than once the entire directory has been analysed
+        directoryAnalyser.analyseDirectory(sourceDirectory, directory, new DirectoryAnalyser.ImportItemHandler()
         {
-            final List<FilesystemBulkImportItem> directoryItems = analysedDirectory.getFirst();
-            final List<FilesystemBulkImportItem> fileItems      = analysedDirectory.getSecond();
-            
-            if (!submitFiles && directoryItems != null)
+            @Override
+            public void handle(final FilesystemBulkImportItem item)
+                throws InterruptedException
             {
-                for (final FilesystemBulkImportItem directoryItem : directoryItems)
+                if (!filter(item))
                 {
-                    if (importStatus.isStopping() || Thread.currentThread().isInterrupted()) throw new InterruptedException(Thread.currentThread().getName() + " was interrupted. Terminating early.");
-                    
-                    if (!filter(directoryItem))
+                    if (item.isDirectory())
                     {
-                        callback.submit(directoryItem);
-                    }
-                }
-            }
-
-            if (submitFiles && fileItems != null)
-            {
-                for (final FilesystemBulkImportItem fileItem : fileItems)
-                {
-                    if (importStatus.isStopping() || Thread.currentThread().isInterrupted()) throw new InterruptedException(Thread.currentThread().getName() + " was interrupted. Terminating early.");
-                    
-                    if (!filter(fileItem))
-                    {
-                        callback.submit(fileItem);
-                    }
-                }
-            }
-            
-            if (debug(log)) debug(log, "Finished scanning directory " + directory.getAbsolutePath() + ".");
-            
-            // Recurse into subdirectories and scan them too
-            if (directoryItems != null && directoryItems.size() > 0)
-            {
-                if (debug(log)) debug(log, "Recursing into " + directoryItems.size() + " subdirectories of " + directory.getAbsolutePath());
-                
-                for (final FilesystemBulkImportItem directoryItem : directoryItems)
-                {
-                    if (importStatus.isStopping() || Thread.currentThread().isInterrupted()) throw new InterruptedException(Thread.currentThread().getName() + " was interrupted. Terminating early.");
-                    
-                    if (!filter(directoryItem))
-                    {
-                        final FilesystemBulkImportItemVersion lastVersion = directoryItem.getVersions().last();   // Directories shouldn't have versions, but grab the last one (which will have the directory file pointer) just in case...
+                        if (!submitFiles && isNewOrChanged(status, item))
+                        {
+                            callback.submit(item);
+                        }
+                        
+                        // Determine whether this subdirectory needs to be scanned too
+                        final FilesystemBulkImportItemVersion lastVersion = item.getVersions().last();   // Directories shouldn't have versions, but grab the last one (which will have the directory file pointer) just in case...
                         
                         if (lastVersion.getContentFile() != null)
                         {
-                            scanDirectory(status,
-                                          callback,
-                                          sourceDirectory,
-                                          lastVersion.getContentFile(),
-                                          submitFiles);
+                            result.add(lastVersion.getContentFile());
                         }
                         else
                         {
-                            if (info(log)) info(log, "Directory " + directoryItem.getName() + " is metadata only - scan will be skipped.");
+                            if (info(log)) info(log, "Directory " + item.getName() + " is metadata only - scan will be skipped.");
+                        }
+                    }
+                    else if (submitFiles)
+                    {
+                        if (isNewOrChanged(status, item))
+                        {
+                            callback.submit(item);
                         }
                     }
+                    else if (singlePass && isNewOrChanged(status, item))
+                    {
+                        fileItemBuffer.add(item);  // Single pass mode - hang onto it until the file phase
+                    }
                 }
             }
-            else
+        });
+        
+        if (debug(log)) debug(log, "Finished scanning directory " + directory.getAbsolutePath() + (result.size() > 0 ? ", recursing into " + result.size() + " subdirectories." : " - it has no subdirectories."));
+        
+        return(result);
+    }
+    
+    
+    /*
+     * In delta mode, determines whether the given item is new or has changed since the last successful import (and
+     * must therefore be submitted).  Note: must only be called once per item, since it also records the item's state.
+     */
+    private final boolean isNewOrChanged(final BulkImportSourceStatus status, final FilesystemBulkImportItem item)
+    {
+        boolean result = true;
+        
+        if (deltaManifest != null)
+        {
+            result = deltaManifest.isNewOrChanged(item);
+            
+            if (!result)
             {
-                if (debug(log)) debug(log, directory.getAbsolutePath() + " has no subdirectories.");
+                if (trace(log)) trace(log, String.valueOf(item) + " is unchanged since the last import - skipping it.");
+                status.incrementSourceCounter(COUNTER_NAME_UNCHANGED_ITEMS);
             }
         }
+        
+        return(result);
+    }
+    
+    
+    /*
+     * Determines whether everything beneath the given directory was imported by a previous run of this import, in
+     * which case it needn't be scanned at all.  In delta mode, the manifest entries for everything beneath a skipped
+     * directory are carried forward, since they won't be recorded by scanning it.
+     */
+    private final boolean isCompleted(final BulkImportSourceStatus status,
+                                      final BulkImportCallback     callback,
+                                      final File                   sourceDirectory,
+                                      final File                   directory)
+    {
+        boolean result = false;
+        
+        if (callback instanceof ResumableBulkImportCallback && !directory.equals(sourceDirectory))
+        {
+            result = ((ResumableBulkImportCallback)callback).isDirectoryCompleted(relativePathOf(sourceDirectory, directory));
+            
+            if (result)
+            {
+                if (debug(log)) debug(log, "Directory " + directory.getAbsolutePath() + " was imported by a previous run of this import - skipping it.");
+                status.incrementSourceCounter(COUNTER_NAME_COMPLETED_DIRECTORIES);
+                
+                if (deltaManifest != null)
+                {
+                    deltaManifest.carryForward(relativePathOf(sourceDirectory, directory));
+                }
+            }
+        }
+        
+        return(result);
+    }
+    
+    
+    /*
+     * Reports that everything beneath the given directory has been submitted.  Note: only the file phase reports
+     * this, since the files beneath a directory haven't been submitted until then.
+     */
+    private final void directorySubmitted(final BulkImportCallback callback,
+                                          final File               sourceDirectory,
+                                          final File               directory,
+                                          final boolean            submitFiles)
+    {
+        if (submitFiles && callback instanceof ResumableBulkImportCallback && !directory.equals(sourceDirectory))
+        {
+            ((ResumableBulkImportCallback)callback).directorySubmitted(relativePathOf(sourceDirectory, directory));
+        }
+    }
+    
+    
+    private final static String relativePathOf(final File sourceDirectory, final File directory)
+    {
+        return(sourceDirectory.toPath().relativize(directory.toPath()).toString());
     }
     
     
@@ -282,4 +538,81 @@ public final class FilesystemBulkImportSource
         return(result);
     }
     
+    
+    /**
+     * Fork-join task that scans a single directory, then forks one task per subdirectory.
+     */
+    private final class ScanDirectoryTask
+        extends RecursiveAction
+    {
+        private static final long serialVersionUID = -4437218325405717352L;
+        
+        private final BulkImportSourceStatus status;
+        private final BulkImportCallback     callback;
+        private final File                   sourceDirectory;
+        private final File                   directory;
+        private final boolean                submitFiles;
+        
+        private ScanDirectoryTask(final BulkImportSourceStatus status,
+                                  final BulkImportCallback     callback,
+                                  final File                   sourceDirectory,
+                                  final File                   directory,
+                                  final boolean                submitFiles)
+        {
+            this.status          = status;
+            this.callback        = callback;
+            this.sourceDirectory = sourceDirectory;
+            this.directory       = directory;
+            this.submitFiles     = submitFiles;
+        }
+        
+        
+        @Override
+        protected void compute()
+        {
+            try
+            {
+                if (!isCompleted(status, callback, sourceDirectory, directory))
+                {
+                    final List<File>              subdirectories = analyseAndSubmitDirectory(status, callback, sourceDirectory, directory, submitFiles);
+                    final List<ScanDirectoryTask> subtasks       = new ArrayList<>(subdirectories.size());
+                    
+                    for (final File subdirectory : subdirectories)
+                    {
+                        subtasks.add(new ScanDirectoryTask(status, callback, sourceDirectory, subdirectory, submitFiles));
+                    }
+                    
+                    invokeAll(subtasks);
+                    directorySubmitted(callback, sourceDirectory, directory, submitFiles);
+                }
+            }
+            catch (final InterruptedException ie)
+            {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(ie);   // RecursiveAction doesn't allow checked exceptions...
+            }
+        }
+    }
+    
+    
+    /**
+     * Provides human-readable names for the scanner threads.
+     */
+    private final static class ScannerThreadFactory
+        implements ForkJoinPool.ForkJoinWorkerThreadFactory
+    {
+        private final DecimalFormat decimalFormat       = new DecimalFormat("0000");
+        private final AtomicLong    currentThreadNumber = new AtomicLong(0);
+        
+        @Override
+        public ForkJoinWorkerThread newThread(final ForkJoinPool pool)
+        {
+            final ForkJoinWorkerThread result = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            
+            result.setName(SCANNER_THREAD_NAME_PREFIX + decimalFormat.format(currentThreadNumber.incrementAndGet()));
+            
+            return(result);
+        }
+    }
+    
 }
@@ -27,10 +27,13 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.Serializable;
 import java.util.HashMap;
+import java.util.InvalidPropertiesFormatException;
 import java.util.Map;
-import java.util.Properties;
 
-import org.apache.commons.io.IOUtils;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.alfresco.service.ServiceRegistry;
@@ -81,6 +84,9 @@ import static org.alfresco.extension.bulkimport.source.fs.FilesystemSourceUtils.
  *   <li>associations are not yet supported</li>
  *   <li>dates, times and date times <u>must</u> be stored in ISO8601 format
  *       (although note that Alfresco ignores timezone modifiers)</li>
+ *   <li>the file is read with a streaming (StAX) parser rather than
+ *       <code>Properties.loadFromXML</code>, so the DTD is neither fetched nor
+ *       validated against, and external entities are not resolved</li>
  * </ul>
  *
  * @author Peter Monks (pmonks@gmail.com)
@@ -92,6 +98,12 @@ public final class XmlPropertiesFileMetadataLoader
     private final static Log log = LogFactory.getLog(XmlPropertiesFileMetadataLoader.class);
     
     private final static String METADATA_FILE_EXTENSION = "properties.xml";
+    private final static String ELEMENT_PROPERTIES      = "properties";
+    private final static String ELEMENT_ENTRY           = "entry";
+    private final static String ATTRIBUTE_KEY           = "key";
+    
+    // Note: once configured, factories are safe to share between threads
+    private final static XMLInputFactory XML_INPUT_FACTORY = createXmlInputFactory();
 
     
     public XmlPropertiesFileMetadataLoader(final ServiceRegistry serviceRegistry)
@@ -112,31 +124,86 @@ public final class XmlPropertiesFileMetadataLoader
     @Override
     protected Map<String,Serializable> loadMetadataFromFile(final File metadataFile)
     {
-        Map<String, Serializable> result              = null;
-        InputStream               metadataInputStream = null;
+        Map<String, Serializable> result = null;
+        
+        try (final InputStream metadataInputStream = new BufferedInputStream(new FileInputStream(metadataFile)))
+        {
+            result = parse(metadataInputStream);
+        }
+        catch (final IOException | XMLStreamException e)
+        {
+            if (warn(log)) warn(log, "Metadata file '" + getFileName(metadataFile) + "' could not be read.", e);
+        }
+        
+        return(result);
+    }
+    
+    
+    /*
+     * Streams through a Java properties XML document, putting each entry straight into the result.  This accepts
+     * everything that Properties.loadFromXML accepts: a &lt;properties&gt; root element containing an optional
+     * &lt;comment&gt; and any number of &lt;entry key="..."&gt; elements.  As with Properties.loadFromXML, the last of
+     * several entries with the same key wins.
+     */
+    private final static Map<String, Serializable> parse(final InputStream metadataInputStream)
+        throws IOException,
+               XMLStreamException
+    {
+        final Map<String, Serializable> result = new HashMap<>();
+        final XMLStreamReader           reader = XML_INPUT_FACTORY.createXMLStreamReader(metadataInputStream);
         
         try
         {
-            Properties props = new Properties();
+            // Skip the prolog (XML declaration, DOCTYPE, comments, etc.)
+            int event = reader.next();
             
-            metadataInputStream = new BufferedInputStream(new FileInputStream(metadataFile)); 
-            props.loadFromXML(metadataInputStream);
+            while (event != XMLStreamReader.START_ELEMENT && event != XMLStreamReader.END_DOCUMENT)
+            {
+                event = reader.next();
+            }
             
-            @SuppressWarnings({"rawtypes", "unchecked"})
-            Map<String, Serializable> properties = (Map)props;
-
-            result = new HashMap<>(properties);
-        }
-        catch (final IOException ioe)
-        {
-            if (warn(log)) warn(log, "Metadata file '" + getFileName(metadataFile) + "' could not be read.", ioe);
+            if (event != XMLStreamReader.START_ELEMENT || !ELEMENT_PROPERTIES.equals(reader.getLocalName()))
+            {
+                throw new InvalidPropertiesFormatException("Root element must be <" + ELEMENT_PROPERTIES + ">.");
+            }
+            
+            while (reader.nextTag() == XMLStreamReader.START_ELEMENT)
+            {
+                if (ELEMENT_ENTRY.equals(reader.getLocalName()))
+                {
+                    final String key = reader.getAttributeValue(null, ATTRIBUTE_KEY);
+                    
+                    if (key == null)
+                    {
+                        throw new InvalidPropertiesFormatException("<" + ELEMENT_ENTRY + "> element on line " + reader.getLocation().getLineNumber() + " has no " + ATTRIBUTE_KEY + " attribute.");
+                    }
+                    
+                    result.put(key, reader.getElementText());
+                }
+                else
+                {
+                    reader.getElementText();   // <comment> - ignored
+                }
+            }
         }
         finally
         {
-            IOUtils.closeQuietly(metadataInputStream);   // Note: this shouldn't normally be needed as loadFromXML closes the stream passed to it
+            reader.close();
         }
         
         return(result);
     }
+    
+    
+    private final static XMLInputFactory createXmlInputFactory()
+    {
+        final XMLInputFactory result = XMLInputFactory.newInstance();
+        
+        // The properties DTD is only used for validation, and resolving external entities is a security risk
+        result.setProperty(XMLInputFactory.SUPPORT_DTD,                     false);
+        result.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        
+        return(result);
+    }
 
 }
@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2007 Peter Monks
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * This file is part of an unsupported extension to Alfresco.
+ * 
+ */
+
+package org.alfresco.extension.bulkimport.impl;
+
+import java.util.Arrays;
+
+import org.alfresco.extension.bulkimport.source.BulkImportItem;
+import org.alfresco.extension.bulkimport.source.BulkImportItemVersion;
+
+import static org.mockito.Mockito.*;
+
+
+/**
+ * Mock items and batches, shared by the unit tests in this package.
+ *
+ * @author Peter Monks (pmonks@gmail.com)
+ */
+final class BatchFixtures
+{
+    private BatchFixtures()
+    {
+    }
+    
+    
+    @SafeVarargs
+    static Batch batch(final int number, final BulkImportItem<BulkImportItemVersion>... items)
+    {
+        return(new Batch(number, Arrays.asList(items)));
+    }
+    
+    
+    static BulkImportItem<BulkImportItemVersion> folder(final String relativePathOfParent, final String name)
+    {
+        return(item(relativePathOfParent, name, true));
+    }
+    
+    
+    static BulkImportItem<BulkImportItemVersion> file(final String relativePathOfParent, final String name)
+    {
+        return(item(relativePathOfParent, name, false));
+    }
+    
+    
+    static BulkImportItem<BulkImportItemVersion> file(final String relativePathOfParent, final String name, final long sizeInBytes)
+    {
+        final BulkImportItem<BulkImportItemVersion> result = file(relativePathOfParent, name);
+        
+        when(result.sizeInBytes()).thenReturn(sizeInBytes);
+        
+        return(result);
+    }
+    
+    
+    @SuppressWarnings("unchecked")
+    static BulkImportItem<BulkImportItemVersion> item(final String relativePathOfParent, final String name, final boolean isDirectory)
+    {
+        final BulkImportItem<BulkImportItemVersion> result = mock(BulkImportItem.class);
+        
+        when(result.getName()).thenReturn(name);
+        when(result.getRelativePathOfParent()).thenReturn(relativePathOfParent);
+        when(result.isDirectory()).thenReturn(isDirectory);
+        
+        return(result);
+    }
+    
+}
@@ -0,0 +1,275 @@
+/*
+ * Copyright (C) 2007 Peter Monks
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * This file is part of an unsupported extension to Alfresco.
+ * 
+ */
+
+package org.alfresco.extension.bulkimport.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.alfresco.extension.bulkimport.impl.BatchScheduler.BatchAssembler;
+import org.alfresco.extension.bulkimport.source.BulkImportItem;
+import org.alfresco.extension.bulkimport.source.BulkImportItemVersion;
+import org.alfresco.extension.bulkimport.util.ThreadPauser;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+import static org.alfresco.extension.bulkimport.impl.BatchFixtures.*;
+
+
+/**
+ * Unit tests for <code>BatchOrderer</code>.
+ *
+ * @author Peter Monks (pmonks@gmail.com)
+ */
+public class BatchOrdererTest
+{
+    private final static long ONE_MEGABYTE          = 1024L * 1024L;
+    private final static long RELEASE_TIMEOUT_IN_MS = 5000L;
+    private final static long HELD_TIMEOUT_IN_MS    = 250L;   // How long to wait before concluding that a batch is being held
+    
+    private final BlockingQueue<Integer> executed = new LinkedBlockingQueue<>();
+    
+    private BulkImportThreadPoolExecutor importThreadPool;
+    private BatchScheduler               scheduler;
+    private int                          nextBatchNumber;
+    
+    
+    @Before
+    public void createScheduler()
+    {
+        // A single worker thread, so that batches are executed in the order they're released
+        importThreadPool = new BulkImportThreadPoolExecutor(new ThreadPauser(), 1, 10, 1L, TimeUnit.MINUTES);
+        scheduler        = new BatchScheduler(importThreadPool);
+        nextBatchNumber  = 1;
+    }
+    
+    
+    @After
+    public void shutdownThreadPool()
+    {
+        importThreadPool.shutdownNow();
+    }
+    
+    
+    @Test
+    public void disabledWindowReleasesBatchesImmediately()
+        throws InterruptedException
+    {
+        final BatchOrderer orderer = orderer(0);
+        
+        submit(orderer, metadataHeavyBatch(10));
+        submit(orderer, metadataHeavyBatch(100));
+        submit(orderer, contentHeavyBatch(200));
+        
+        assertReleased(1, 2, 3);
+    }
+    
+    
+    @Test
+    public void disabledWindowDoesNotWeighBatches()
+        throws InterruptedException
+    {
+        final BatchOrderer                          orderer = orderer(0);
+        final BulkImportItem<BulkImportItemVersion> file    = file(null, "file.txt");
+        
+        submit(orderer, batch(nextBatchNumber++, file));
+        assertReleased(1);
+        
+        // Weighing a batch would load every item's metadata on the scanning thread
+        verify(file, never()).sizeInBytes();
+        verify(file, never()).numberOfAspects();
+        verify(file, never()).numberOfMetadataProperties();
+    }
+    
+    
+    @Test
+    public void weighingBatchesDoesNotLoadMetadata()
+        throws InterruptedException
+    {
+        final BatchOrderer                          orderer = orderer(10);
+        final BulkImportItem<BulkImportItemVersion> file    = file(null, "file.txt");
+        
+        submit(orderer, batch(nextBatchNumber++, file));
+        orderer.drain();
+        assertReleased(1);
+        
+        verify(file, never()).numberOfAspects();
+        verify(file, never()).numberOfMetadataProperties();
+    }
+    
+    
+    @Test
+    public void batchesContainingFoldersAreNotHeldBack()
+        throws InterruptedException
+    {
+        final BatchOrderer orderer = orderer(10);
+        
+        submit(orderer, metadataHeavyBatch(10));
+        submit(orderer, batch(nextBatchNumber++, folder(null, "folder")));
+        
+        assertReleased(2);
+        assertHeld();
+    }
+    
+    
+    @Test
+    public void batchesAreHeldUntilTheWindowIsFull()
+        throws InterruptedException
+    {
+        final BatchOrderer orderer = orderer(3);
+        
+        submit(orderer, metadataHeavyBatch(10));
+        submit(orderer, metadataHeavyBatch(100));
+        submit(orderer, metadataHeavyBatch(50));
+        assertHeld();
+        
+        submit(orderer, metadataHeavyBatch(20));
+        assertReleased(2);
+        assertHeld();
+    }
+    
+    
+    @Test
+    public void drainReleasesHeaviestBatchesFirst()
+        throws InterruptedException
+    {
+        final BatchOrderer orderer = orderer(10);
+        
+        submit(orderer, metadataHeavyBatch(10));
+        submit(orderer, metadataHeavyBatch(100));
+        submit(orderer, metadataHeavyBatch(50));
+        assertHeld();
+        
+        orderer.drain();
+        assertReleased(2, 3, 1);
+    }
+    
+    
+    @Test
+    public void contentAndMetadataHeavyBatchesAlternate()
+        throws InterruptedException
+    {
+        final BatchOrderer orderer = orderer(10);
+        
+        submit(orderer, contentHeavyBatch(200));
+        submit(orderer, contentHeavyBatch(150));
+        submit(orderer, metadataHeavyBatch(100));
+        submit(orderer, metadataHeavyBatch(50));
+        
+        orderer.drain();
+        assertReleased(1, 3, 2, 4);   // Heaviest first would be 1, 2, 3, 4
+    }
+    
+    
+    @Test
+    public void theHeaviestBatchIsReleasedWhenThereIsNoneOfTheOtherKind()
+        throws InterruptedException
+    {
+        final BatchOrderer orderer = orderer(10);
+        
+        submit(orderer, contentHeavyBatch(200));
+        submit(orderer, contentHeavyBatch(100));
+        submit(orderer, metadataHeavyBatch(50));
+        
+        orderer.drain();
+        assertReleased(1, 3, 2);
+    }
+    
+    
+    private BatchOrderer orderer(final int windowSize)
+    {
+        final BatchOrderer result = new BatchOrderer(windowSize);
+        
+        result.init(scheduler);
+        
+        return(result);
+    }
+    
+    
+    private void submit(final BatchOrderer orderer, final Batch batch)
+        throws InterruptedException
+    {
+        orderer.submit(scheduler.newPendingBatch(mock(BatchAssembler.class)), batch, new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                executed.add(batch.getNumber());
+            }
+        });
+    }
+    
+    
+    private void assertReleased(final Integer... batchNumbers)
+        throws InterruptedException
+    {
+        final List<Integer> released = new ArrayList<>();
+        
+        for (int i = 0; i < batchNumbers.length; i++)
+        {
+            final Integer batchNumber = executed.poll(RELEASE_TIMEOUT_IN_MS, TimeUnit.MILLISECONDS);
+            
+            assertNotNull("Batch was not released in time.", batchNumber);
+            released.add(batchNumber);
+        }
+        
+        assertEquals(Arrays.asList(batchNumbers), released);
+    }
+    
+    
+    private void assertHeld()
+        throws InterruptedException
+    {
+        assertNull(executed.poll(HELD_TIMEOUT_IN_MS, TimeUnit.MILLISECONDS));
+    }
+    
+    
+    /*
+     * Returns a batch containing the given number of files, with no content.
+     */
+    private Batch metadataHeavyBatch(final int numberOfFiles)
+    {
+        final List<BulkImportItem<BulkImportItemVersion>> files = new ArrayList<>(numberOfFiles);
+        
+        for (int i = 0; i < numberOfFiles; i++)
+        {
+            files.add(file(null, "file-" + i + ".txt"));
+        }
+        
+        return(new Batch(nextBatchNumber++, files));
+    }
+    
+    
+    /*
+     * Returns a batch containing a single file with the given number of megabytes of content.
+     */
+    private Batch contentHeavyBatch(final long megabytes)
+    {
+        return(batch(nextBatchNumber++, file(null, "file.txt", megabytes * ONE_MEGABYTE)));
+    }
+    
+}
@@ -0,0 +1,369 @@
+/*
+ * Copyright (C) 2007 Peter Monks
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * This file is part of an unsupported extension to Alfresco.
+ * 
+ */
+
+package org.alfresco.extension.bulkimport.impl;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.alfresco.extension.bulkimport.impl.BatchScheduler.BatchAssembler;
+import org.alfresco.extension.bulkimport.impl.BatchScheduler.PendingBatch;
+import org.alfresco.extension.bulkimport.source.BulkImportItem;
+import org.alfresco.extension.bulkimport.source.BulkImportItemVersion;
+import org.alfresco.extension.bulkimport.util.ThreadPauser;
+
+import static org.junit.Assert.*;
+import static org.alfresco.extension.bulkimport.impl.BatchFixtures.*;
+
+
+/**
+ * Unit tests for <code>BatchScheduler</code>.
+ *
+ * @author Peter Monks (pmonks@gmail.com)
+ */
+public class BatchSchedulerTest
+{
+    private final static int  THREAD_POOL_SIZE      = 2;
+    private final static int  QUEUE_CAPACITY        = 10;
+    private final static long RELEASE_TIMEOUT_IN_MS = 5000L;
+    private final static long HELD_TIMEOUT_IN_MS    = 250L;   // How long to wait before concluding that a batch is being held
+    
+    private final BlockingQueue<Integer>   executed    = new LinkedBlockingQueue<>();
+    private final Set<Integer>             flushed     = new HashSet<>();
+    private final Map<PendingBatch, Batch> unscheduled = new ConcurrentHashMap<>();
+    
+    private BulkImportThreadPoolExecutor importThreadPool;
+    private BatchScheduler               scheduler;
+    private BatchAssembler               assembler;
+    
+    
+    @Before
+    public void createScheduler()
+    {
+        createScheduler(new BulkImportThreadPoolExecutor(new ThreadPauser(), THREAD_POOL_SIZE, QUEUE_CAPACITY, 1L, TimeUnit.MINUTES));
+    }
+    
+    
+    @After
+    public void shutdownThreadPool()
+    {
+        importThreadPool.shutdownNow();
+    }
+    
+    
+    @Test
+    public void independentBatchesAreReleasedImmediately()
+        throws InterruptedException
+    {
+        schedule(batch(1, file(null, "a.txt")));
+        schedule(batch(2, file(null, "b.txt")));
+        
+        assertReleased(1, 2);
+        assertEquals(0, scheduler.getWaitingBatchCount());
+    }
+    
+    
+    @Test
+    public void dependentBatchesWaitForTheirProvidersToCommit()
+        throws InterruptedException
+    {
+        final Batch provider = batch(1, folder(null, "a"));
+        
+        schedule(provider);
+        assertReleased(1);
+        
+        schedule(batch(2, file("a", "file.txt")));
+        assertHeld();
+        assertEquals(1, scheduler.getWaitingBatchCount());
+        
+        scheduler.batchCommitted(provider);
+        assertReleased(2);
+        assertEquals(0, scheduler.getWaitingBatchCount());
+    }
+    
+    
+    @Test
+    public void dependentBatchesWaitForAllOfTheirProviders()
+        throws InterruptedException
+    {
+        final Batch providerA = batch(1, folder(null, "a"));
+        final Batch providerB = batch(2, folder(null, "b"));
+        
+        schedule(providerA);
+        schedule(providerB);
+        assertReleased(1, 2);
+        
+        schedule(batch(3, file("a", "file.txt"), file("b", "file.txt")));
+        assertHeld();
+        
+        scheduler.batchCommitted(providerA);
+        assertHeld();
+        
+        scheduler.batchCommitted(providerB);
+        assertReleased(3);
+    }
+    
+    
+    @Test
+    public void batchesDoNotWaitOnThemselves()
+        throws InterruptedException
+    {
+        schedule(batch(1, folder(null, "a"), file("a", "file.txt")));
+        
+        assertReleased(1);
+        assertEquals(0, scheduler.getWaitingBatchCount());
+    }
+    
+    
+    @Test
+    public void batchesDoNotWaitOnCommittedProviders()
+        throws InterruptedException
+    {
+        final Batch provider = batch(1, folder(null, "a"));
+        
+        schedule(provider);
+        assertReleased(1);
+        scheduler.batchCommitted(provider);
+        
+        schedule(batch(2, file("a", "file.txt")));
+        assertReleased(2);
+    }
+    
+    
+    @Test
+    public void dependenciesAreMatchedOnNormalisedPaths()
+        throws InterruptedException
+    {
+        final Batch provider = batch(1, folder("x/", "a"));
+        
+        schedule(provider);
+        assertReleased(1);
+        
+        schedule(batch(2, file("\\x\\\\a\\", "file.txt")));
+        assertHeld();
+        
+        scheduler.batchCommitted(provider);
+        assertReleased(2);
+        
+        assertEquals("x/a/b", BatchScheduler.normalisePath("/x//a\\b/"));
+        assertEquals("",      BatchScheduler.normalisePath(null));
+        assertEquals("a",     BatchScheduler.pathOf(folder(null, "a")));
+    }
+    
+    
+    @Test
+    public void unscheduledProvidersAreFlushed()
+        throws InterruptedException
+    {
+        final Batch provider = batch(1, folder(null, "a"));
+        
+        assemble(provider);
+        schedule(batch(2, file("a", "file.txt")));
+        
+        assertTrue(flushed.contains(1));
+        assertReleased(1);
+        assertHeld();
+        
+        scheduler.batchCommitted(provider);
+        assertReleased(2);
+    }
+    
+    
+    @Test(timeout = 30000L)
+    public void providersWithDependentsBypassBackPressure()
+        throws InterruptedException
+    {
+        importThreadPool.shutdownNow();
+        createScheduler(new BulkImportThreadPoolExecutor(new ThreadPauser(), 1, 1, 1L, TimeUnit.MINUTES));   // 2 permits in total
+        
+        final CountDownLatch blocker  = new CountDownLatch(1);
+        final Batch          blocking = batch(1, file(null, "blocking.txt"));
+        final Batch          provider = batch(2, folder(null, "a"));
+        
+        // Occupies the only worker thread and the first permit
+        scheduler.schedule(assemble(blocking), blocking, job(blocking, blocker));
+        assertReleased(1);
+        
+        // Takes the last permit, then flushes the provider it depends on, which can only proceed by bypassing back-pressure
+        assemble(provider);
+        schedule(batch(3, file("a", "file.txt")));
+        assertTrue(flushed.contains(2));
+        
+        blocker.countDown();
+        assertReleased(2);
+        assertHeld();
+        
+        scheduler.batchCommitted(provider);
+        assertReleased(3);
+    }
+    
+    
+    @Test(timeout = 30000L)
+    public void awaitReleaseReturnsOnceWaitingBatchesAreReleased()
+        throws InterruptedException
+    {
+        final Batch provider = batch(1, folder(null, "a"));
+        
+        schedule(provider);
+        schedule(batch(2, file("a", "file.txt")));
+        assertEquals(1, scheduler.getWaitingBatchCount());
+        
+        final Thread committer = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    Thread.sleep(HELD_TIMEOUT_IN_MS);
+                }
+                catch (final InterruptedException ie)
+                {
+                    // Commit early
+                }
+                
+                scheduler.batchCommitted(provider);
+            }
+        };
+        
+        committer.start();
+        scheduler.awaitRelease();
+        assertEquals(0, scheduler.getWaitingBatchCount());
+        committer.join();
+    }
+    
+    
+    private void createScheduler(final BulkImportThreadPoolExecutor threadPool)
+    {
+        importThreadPool = threadPool;
+        scheduler        = new BatchScheduler(importThreadPool);
+        assembler        = new BatchAssembler()
+        {
+            @Override
+            public void flush(final PendingBatch pendingBatch)
+                throws InterruptedException
+            {
+                final Batch batch = unscheduled.remove(pendingBatch);
+                
+                if (batch != null)
+                {
+                    synchronized(flushed)
+                    {
+                        flushed.add(batch.getNumber());
+                    }
+                    
+                    scheduler.schedule(pendingBatch, batch, job(batch, null));
+                }
+            }
+        };
+    }
+    
+    
+    /*
+     * Adds the given batch's items to a new pending batch, without scheduling it.
+     */
+    private PendingBatch assemble(final Batch batch)
+    {
+        final PendingBatch result = scheduler.newPendingBatch(assembler);
+        
+        for (final BulkImportItem<BulkImportItemVersion> item : batch)
+        {
+            scheduler.itemAdded(result, item);
+        }
+        
+        unscheduled.put(result, batch);
+        
+        return(result);
+    }
+    
+    
+    private void schedule(final Batch batch)
+        throws InterruptedException
+    {
+        final PendingBatch pendingBatch = assemble(batch);
+        
+        unscheduled.remove(pendingBatch);
+        scheduler.schedule(pendingBatch, batch, job(batch, null));
+    }
+    
+    
+    /*
+     * Returns a job that records that the batch was released, then optionally blocks until the given latch opens.
+     */
+    private Runnable job(final Batch batch, final CountDownLatch latch)
+    {
+        return(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                executed.add(batch.getNumber());
+                
+                if (latch != null)
+                {
+                    try
+                    {
+                        latch.await();
+                    }
+                    catch (final InterruptedException ie)
+                    {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+        });
+    }
+    
+    
+    private void assertReleased(final Integer... batchNumbers)
+        throws InterruptedException
+    {
+        final Set<Integer> released = new HashSet<>();
+        
+        for (int i = 0; i < batchNumbers.length; i++)
+        {
+            final Integer batchNumber = executed.poll(RELEASE_TIMEOUT_IN_MS, TimeUnit.MILLISECONDS);
+            
+            assertNotNull("Batch was not released in time.", batchNumber);
+            released.add(batchNumber);
+        }
+        
+        assertEquals(new HashSet<>(Arrays.asList(batchNumbers)), released);
+    }
+    
+    
+    private void assertHeld()
+        throws InterruptedException
+    {
+        assertNull(executed.poll(HELD_TIMEOUT_IN_MS, TimeUnit.MILLISECONDS));
+    }
+    
+}
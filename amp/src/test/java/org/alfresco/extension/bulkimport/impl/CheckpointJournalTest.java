@@ -0,0 +1,261 @@
+/*
+ * Copyright (C) 2007 Peter Monks
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * This file is part of an unsupported extension to Alfresco.
+ * 
+ */
+
+package org.alfresco.extension.bulkimport.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import org.alfresco.service.cmr.repository.NodeRef;
+
+import org.alfresco.extension.bulkimport.source.BulkImportItem;
+import org.alfresco.extension.bulkimport.source.BulkImportItemVersion;
+import org.alfresco.extension.bulkimport.source.BulkImportSource;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+import static org.alfresco.extension.bulkimport.impl.BatchFixtures.*;
+
+
+/**
+ * Unit tests for <code>CheckpointJournal</code>.
+ *
+ * @author Peter Monks (pmonks@gmail.com)
+ */
+public class CheckpointJournalTest
+{
+    private final static NodeRef              TARGET     = new NodeRef("workspace://SpacesStore/target");
+    private final static Map<String, NodeRef> NO_FOLDERS = Collections.emptyMap();
+    
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+    
+    private File             journalDirectory;
+    private BulkImportSource source;
+    
+    
+    @Before
+    public void createSource()
+        throws IOException
+    {
+        journalDirectory = temporaryFolder.newFolder("journals");
+        source           = mock(BulkImportSource.class);
+        
+        when(source.getName()).thenReturn("Test source");
+    }
+    
+    
+    @Test
+    public void committedItemsAreSkippedOnResume()
+    {
+        final BulkImportItem<BulkImportItemVersion> committed   = item("a", "committed.txt", false);
+        final BulkImportItem<BulkImportItemVersion> uncommitted = item("a", "uncommitted.txt", false);
+        
+        CheckpointJournal journal = openJournal();
+        journal.itemSubmitted(committed);
+        journal.itemSubmitted(uncommitted);
+        journal.batchCommitted(new Batch(1, Arrays.asList(committed)), NO_FOLDERS);
+        journal.close(false);
+        
+        journal = openJournal();
+        assertTrue(journal.isCompleted(committed));
+        assertFalse(journal.isCompleted(uncommitted));
+        journal.close(false);
+    }
+    
+    
+    @Test
+    public void directoriesAreRecordedOnceSubmittedAndCommitted()
+    {
+        final List<BulkImportItem<BulkImportItemVersion>> files = files("a/b", 5);
+        
+        CheckpointJournal journal = openJournal();
+        submit(journal, files);
+        journal.directorySubmitted("a/b");
+        journal.batchCommitted(new Batch(1, files.subList(0, 3)), NO_FOLDERS);
+        journal.close(false);
+        
+        journal = openJournal();
+        assertFalse("Directory recorded before all of its items committed.", journal.isDirectoryCompleted("a/b"));
+        submit(journal, files.subList(3, 5));
+        journal.directorySubmitted("a/b");
+        journal.batchCommitted(new Batch(1, files.subList(3, 5)), NO_FOLDERS);
+        journal.close(false);
+        
+        journal = openJournal();
+        assertTrue(journal.isDirectoryCompleted("a/b"));
+        assertTrue("Subdirectories of completed directories are complete too.", journal.isDirectoryCompleted("a/b/c"));
+        assertTrue("Paths are normalised.", journal.isDirectoryCompleted("a\\b"));
+        assertFalse(journal.isDirectoryCompleted("a"));
+        
+        for (final BulkImportItem<BulkImportItemVersion> file : files)
+        {
+            assertTrue(journal.isCompleted(file));
+        }
+        
+        journal.close(false);
+    }
+    
+    
+    @Test
+    public void directoriesWithFailedItemsAreNeverRecorded()
+    {
+        final List<BulkImportItem<BulkImportItemVersion>> files  = files("a", 3);
+        final BulkImportItem<BulkImportItemVersion>       failed = files.get(1);
+        
+        CheckpointJournal journal = openJournal();
+        submit(journal, files);
+        journal.directorySubmitted("a");
+        journal.batchCommitted(new Batch(1, Arrays.asList(files.get(0), files.get(2))), NO_FOLDERS);
+        journal.itemFailed(failed);
+        journal.close(false);
+        
+        journal = openJournal();
+        assertFalse(journal.isDirectoryCompleted("a"));
+        assertFalse(journal.isCompleted(failed));
+        assertTrue(journal.isCompleted(files.get(0)));
+        journal.close(false);
+    }
+    
+    
+    @Test
+    public void directoriesAreRecordedWhenScanningCompletes()
+    {
+        final List<BulkImportItem<BulkImportItemVersion>> files = files("a", 3);
+        
+        CheckpointJournal journal = openJournal();
+        submit(journal, files);
+        journal.scanningComplete();
+        journal.batchCommitted(new Batch(1, files), NO_FOLDERS);
+        journal.close(false);
+        
+        journal = openJournal();
+        assertTrue(journal.isDirectoryCompleted("a"));
+        journal.close(false);
+    }
+    
+    
+    @Test
+    public void foldersAreSeededOnResume()
+    {
+        final BulkImportItem<BulkImportItemVersion> completedFile = item("done", "file.txt", false);
+        final BulkImportItem<BulkImportItemVersion> pendingFile   = item("todo/sub dir", "file.txt", false);
+        final Map<String, NodeRef>                  folders       = new HashMap<>();
+        
+        folders.put("done",         new NodeRef("workspace://SpacesStore/done"));
+        folders.put("todo",         new NodeRef("workspace://SpacesStore/todo"));
+        folders.put("todo/sub dir", new NodeRef("workspace://SpacesStore/subdir"));
+        
+        CheckpointJournal journal = openJournal();
+        journal.itemSubmitted(completedFile);
+        journal.itemSubmitted(pendingFile);
+        journal.directorySubmitted("done");
+        journal.batchCommitted(new Batch(1, Arrays.asList(completedFile)), folders);
+        journal.close(false);
+        
+        journal = openJournal();
+        
+        final Map<String, NodeRef> resumedFolders = journal.takeFolders();
+        
+        assertEquals(2, resumedFolders.size());
+        assertEquals(new NodeRef("workspace://SpacesStore/todo"),   resumedFolders.get("todo"));
+        assertEquals(new NodeRef("workspace://SpacesStore/subdir"), resumedFolders.get("todo/sub dir"));
+        assertFalse("Folders of completed directories are not needed.", resumedFolders.containsKey("done"));
+        assertTrue("Folders are only handed over once.", journal.takeFolders().isEmpty());
+        journal.close(false);
+    }
+    
+    
+    @Test
+    public void journalIsDeletedOnceTheImportCompletes()
+    {
+        final BulkImportItem<BulkImportItemVersion> file = item("a", "file.txt", false);
+        
+        CheckpointJournal journal = openJournal();
+        journal.itemSubmitted(file);
+        journal.batchCommitted(new Batch(1, Arrays.asList(file)), NO_FOLDERS);
+        journal.close(true);
+        
+        assertEquals(0, journalDirectory.list().length);
+        
+        journal = openJournal();
+        assertFalse(journal.isCompleted(file));
+        journal.close(true);
+    }
+    
+    
+    @Test
+    public void dryRunsAreNotJournaled()
+    {
+        final BulkImportItem<BulkImportItemVersion> file    = item("a", "file.txt", false);
+        final CheckpointJournal                     journal = new CheckpointJournal(true, journalDirectory.getAbsolutePath());
+        
+        journal.open(source, TARGET, true);
+        journal.itemSubmitted(file);
+        journal.batchCommitted(new Batch(1, Arrays.asList(file)), NO_FOLDERS);
+        journal.directorySubmitted("a");
+        journal.close(false);
+        
+        assertEquals(0, journalDirectory.list().length);
+    }
+    
+    
+    private CheckpointJournal openJournal()
+    {
+        final CheckpointJournal result = new CheckpointJournal(true, journalDirectory.getAbsolutePath());
+        
+        result.open(source, TARGET, false);
+        
+        return(result);
+    }
+    
+    
+    private void submit(final CheckpointJournal journal, final List<BulkImportItem<BulkImportItemVersion>> items)
+    {
+        for (final BulkImportItem<BulkImportItemVersion> item : items)
+        {
+            journal.itemSubmitted(item);
+        }
+    }
+    
+    
+    private List<BulkImportItem<BulkImportItemVersion>> files(final String relativePathOfParent, final int count)
+    {
+        final List<BulkImportItem<BulkImportItemVersion>> result = new ArrayList<>(count);
+        
+        for (int i = 0; i < count; i++)
+        {
+            result.add(item(relativePathOfParent, "file-" + i + ".txt", false));
+        }
+        
+        return(result);
+    }
+    
+}
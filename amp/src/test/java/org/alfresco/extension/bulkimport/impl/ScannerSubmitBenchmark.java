@@ -0,0 +1,319 @@
+/*
+ * Copyright (C) 2007 Peter Monks
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * This file is part of an unsupported extension to Alfresco.
+ * 
+ */
+
+package org.alfresco.extension.bulkimport.impl;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import org.alfresco.service.ServiceRegistry;
+import org.alfresco.service.cmr.model.FileFolderService;
+import org.alfresco.service.cmr.repository.ContentWriter;
+import org.alfresco.service.cmr.repository.NodeRef;
+
+import org.alfresco.extension.bulkimport.BatchingBulkImportCallback;
+import org.alfresco.extension.bulkimport.BulkImportCallback;
+import org.alfresco.extension.bulkimport.source.AbstractBulkImportItem;
+import org.alfresco.extension.bulkimport.source.AbstractBulkImportItemVersion;
+import org.alfresco.extension.bulkimport.source.BulkImportItem;
+import org.alfresco.extension.bulkimport.source.BulkImportSource;
+import org.alfresco.extension.bulkimport.source.BulkImportSourceStatus;
+import org.alfresco.extension.bulkimport.util.ThreadPauser;
+
+import static org.mockito.Mockito.*;
+
+
+/**
+ * This class benchmarks the throughput of <code>Scanner.submit</code> (and
+ * <code>Scanner.submitAll</code>) as the number of producer threads grows.
+ * Each invocation runs an entire (no-op) import of the same number of items,
+ * split evenly across the producer threads, so a lower time per invocation
+ * means a higher submit throughput.
+ * 
+ * Run it via:
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=org.alfresco.extension.bulkimport.impl.ScannerSubmitBenchmark
+ * </pre>
+ *
+ * @author Peter Monks (pmonks@gmail.com)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(value = 1, jvmArgsAppend = "-Dorg.apache.commons.logging.Log=org.apache.commons.logging.impl.NoOpLog")
+public class ScannerSubmitBenchmark
+{
+    private final static int     TOTAL_ITEMS      = 100000;
+    private final static int     THREAD_POOL_SIZE = 4;
+    private final static int     QUEUE_CAPACITY   = 100;
+    private final static int     BATCH_WEIGHT     = 100;
+    private final static String  USER_ID          = "admin";
+    private final static NodeRef TARGET           = new NodeRef("workspace://SpacesStore/bulk-import-benchmark");
+    
+    @Param({"1", "2", "4", "8"})
+    public int producerThreads;
+    
+    @Param({"false", "true"})
+    public boolean submitAll;
+    
+    private ServiceRegistry               serviceRegistry;
+    private List<BulkImportItem<?>>       folders;
+    private List<List<BulkImportItem<?>>> filesByProducer;
+    private Scanner                       scanner;
+    
+    
+    @Setup(Level.Trial)
+    public void createItems()
+    {
+        final int itemsPerProducer = TOTAL_ITEMS / producerThreads;
+        
+        serviceRegistry = mock(ServiceRegistry.class);
+        when(serviceRegistry.getFileFolderService()).thenReturn(mock(FileFolderService.class));
+        
+        folders         = new ArrayList<>(producerThreads);
+        filesByProducer = new ArrayList<>(producerThreads);
+        
+        for (int i = 0; i < producerThreads; i++)
+        {
+            final String                  folderName = "producer-" + i;
+            final List<BulkImportItem<?>> files      = new ArrayList<>(itemsPerProducer);
+            
+            folders.add(new BenchmarkItem(folderName, true, null));
+            
+            for (int j = 0; j < itemsPerProducer; j++)
+            {
+                files.add(new BenchmarkItem("file-" + j + ".txt", false, folderName));
+            }
+            
+            filesByProducer.add(files);
+        }
+    }
+    
+    
+    @Setup(Level.Invocation)
+    public void createScanner()
+    {
+        final WritableBulkImportStatus     importStatus     = new BulkImportStatusImpl();
+        final ThreadPauser                 pauser           = new ThreadPauser();
+        final BulkImportThreadPoolExecutor importThreadPool = new BulkImportThreadPoolExecutor(pauser, THREAD_POOL_SIZE, QUEUE_CAPACITY, 1L, TimeUnit.MINUTES);
+        
+        scanner = new Scanner(serviceRegistry,
+                              USER_ID,
+                              new BatchWeightController(BATCH_WEIGHT, false, -1L, -1, -1),
+                              importStatus,
+                              pauser,
+                              new BenchmarkSource(),
+                              Collections.<String, List<String>>emptyMap(),
+                              TARGET,
+                              importThreadPool,
+                              new NoOpBatchImporter(),
+                              new DefaultBatchWeigher(),
+                              new BatchOrderer(0),
+                              new CheckpointJournal(false, null),
+                              null);
+    }
+    
+    
+    @Benchmark
+    public void submit()
+    {
+        scanner.run();
+    }
+    
+    
+    public static void main(final String[] args)
+        throws RunnerException
+    {
+        new Runner(new OptionsBuilder().include(ScannerSubmitBenchmark.class.getSimpleName()).build()).run();
+    }
+    
+    
+    /*
+     * Submits one folder per producer, then submits each producer's files from its own thread.
+     */
+    private final class BenchmarkSource
+        implements BulkImportSource
+    {
+        @Override public String              getName()                                                         { return("Scanner submit benchmark"); }
+        @Override public String              getDescription()                                                  { return(null); }
+        @Override public Map<String, String> getParameters()                                                   { return(null); }
+        @Override public String              getConfigWebScriptURI()                                           { return(null); }
+        @Override public void                init(BulkImportSourceStatus status, Map<String, List<String>> p) { }
+        @Override public boolean             inPlaceImportPossible()                                           { return(false); }
+        
+        
+        @Override
+        public void scanFolders(final BulkImportSourceStatus status, final BulkImportCallback callback)
+            throws InterruptedException
+        {
+            for (final BulkImportItem<?> folder : folders)
+            {
+                callback.submit(folder);
+            }
+        }
+        
+        
+        @Override
+        public void scanFiles(final BulkImportSourceStatus status, final BulkImportCallback callback)
+            throws InterruptedException
+        {
+            final List<Thread> producers = new ArrayList<>(producerThreads);
+            
+            for (final List<BulkImportItem<?>> files : filesByProducer)
+            {
+                final Thread producer = new Thread(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        try
+                        {
+                            if (submitAll && callback instanceof BatchingBulkImportCallback)
+                            {
+                                ((BatchingBulkImportCallback)callback).submitAll(files);
+                            }
+                            else
+                            {
+                                for (final BulkImportItem<?> file : files)
+                                {
+                                    callback.submit(file);
+                                }
+                            }
+                        }
+                        catch (final InterruptedException ie)
+                        {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                });
+                
+                producers.add(producer);
+                producer.start();
+            }
+            
+            for (final Thread producer : producers)
+            {
+                producer.join();
+            }
+        }
+    }
+    
+    
+    /*
+     * Doesn't prepare or import anything, so that the benchmark measures the scanner rather than the repository.
+     */
+    private final static class NoOpBatchImporter
+        implements BatchImporter
+    {
+        @Override
+        public void importStarted(final NodeRef target, final boolean targetIsEmpty, final String behaviourProfile, final Map<String, NodeRef> knownFolders)
+        {
+        }
+        
+        
+        @Override
+        public RunnableFuture<PreparedBatch> prepareBatch(final String userId, final Batch batch, final boolean prefetchContent)
+        {
+            return(new FutureTask<>(new Runnable() { @Override public void run() { } }, PreparedBatch.unprepared(batch)));
+        }
+        
+        
+        @Override
+        public Map<String, NodeRef> importBatch(final String        userId,
+                                                final NodeRef       target,
+                                                final PreparedBatch preparedBatch,
+                                                final boolean       replaceExisting,
+                                                final boolean       dryRun,
+                                                final boolean       metadataOnly)
+        {
+            return(Collections.<String, NodeRef>emptyMap());
+        }
+    }
+    
+    
+    private final static class BenchmarkItem
+        extends AbstractBulkImportItem<BenchmarkItemVersion>
+    {
+        private BenchmarkItem(final String name, final boolean isDirectory, final String relativePathOfParent)
+        {
+            super(name, isDirectory, relativePathOfParent, singleVersion(isDirectory));
+        }
+        
+        
+        private static NavigableSet<BenchmarkItemVersion> singleVersion(final boolean isDirectory)
+        {
+            final NavigableSet<BenchmarkItemVersion> result = new TreeSet<>();
+            
+            result.add(new BenchmarkItemVersion(isDirectory ? "cm:folder" : "cm:content"));
+            
+            return(result);
+        }
+    }
+    
+    
+    private final static class BenchmarkItemVersion
+        extends AbstractBulkImportItemVersion<Object, Object>
+    {
+        private BenchmarkItemVersion(final String type)
+        {
+            super(type, BigDecimal.ONE);
+        }
+        
+        
+        @Override
+        public long sizeInBytes()
+        {
+            return(0L);
+        }
+        
+        
+        @Override
+        public void putContent(final ContentWriter writer)
+        {
+            // Benchmark items have no content
+        }
+    }
+    
+}
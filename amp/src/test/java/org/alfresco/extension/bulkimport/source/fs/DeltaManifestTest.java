@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) 2007 Peter Monks
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * This file is part of an unsupported extension to Alfresco.
+ * 
+ */
+
+package org.alfresco.extension.bulkimport.source.fs;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import org.alfresco.service.ServiceRegistry;
+import org.alfresco.service.namespace.NamespaceService;
+
+import org.alfresco.extension.bulkimport.source.BulkImportItemVersion;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+
+/**
+ * Unit tests for <code>DeltaManifest</code>.
+ *
+ * @author Peter Monks (pmonks@gmail.com)
+ */
+public class DeltaManifestTest
+{
+    private final static String TARGET         = "workspace://SpacesStore/target";
+    private final static String OTHER_TARGET   = "workspace://SpacesStore/other-target";
+    private final static int    NUMBER_OF_DIRS = 5;
+    private final static int    FILES_PER_DIR  = 100;  // Enough that the manifest spans several index blocks
+    private final static int    CHUNK_SIZE     = 64;   // Small enough that building the manifest spills to disk
+    
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+    
+    private ServiceRegistry                serviceRegistry;
+    private File                           sourceDirectory;
+    private File                           manifestDirectory;
+    private List<FilesystemBulkImportItem> items;
+    
+    
+    @Before
+    public void createSource()
+        throws IOException
+    {
+        final NamespaceService namespaceService = mock(NamespaceService.class);
+        
+        when(namespaceService.getPrefixes(anyString())).thenReturn(Arrays.asList(NamespaceService.CONTENT_MODEL_PREFIX));
+        
+        serviceRegistry = mock(ServiceRegistry.class);
+        when(serviceRegistry.getNamespaceService()).thenReturn(namespaceService);
+        
+        sourceDirectory   = temporaryFolder.newFolder("source");
+        manifestDirectory = temporaryFolder.newFolder("manifests");
+        items             = new ArrayList<>();
+        
+        for (int i = 0; i < NUMBER_OF_DIRS; i++)
+        {
+            final File directory = new File(sourceDirectory, "directory-" + i);
+            
+            assertTrue(directory.mkdir());
+            items.add(item(directory, null));
+            
+            for (int j = 0; j < FILES_PER_DIR; j++)
+            {
+                final File file = new File(directory, "file-" + j + ".txt");
+                
+                Files.write(file.toPath(), new byte[j]);
+                items.add(item(file, directory.getName()));
+            }
+        }
+    }
+    
+    
+    @Test
+    public void allItemsAreNewWithoutAManifest()
+    {
+        final DeltaManifest manifest = new DeltaManifest(manifestDirectory.getAbsolutePath(), CHUNK_SIZE);
+        
+        manifest.open(sourceDirectory, TARGET, false, false);
+        assertEquals(items.size(), countNewOrChanged(manifest));
+        manifest.abort();
+    }
+    
+    
+    @Test
+    public void unchangedItemsAreSkippedAfterCommit()
+    {
+        final DeltaManifest manifest = new DeltaManifest(manifestDirectory.getAbsolutePath(), CHUNK_SIZE);
+        
+        importAndCommit(manifest, TARGET, false, false);
+        
+        manifest.open(sourceDirectory, TARGET, false, false);
+        assertEquals(0, countNewOrChanged(manifest));
+        manifest.abort();
+    }
+    
+    
+    @Test
+    public void changedItemsAreDetected()
+        throws IOException
+    {
+        final DeltaManifest manifest = new DeltaManifest(manifestDirectory.getAbsolutePath(), CHUNK_SIZE);
+        
+        importAndCommit(manifest, TARGET, false, false);
+        
+        final FilesystemBulkImportItem changedItem = items.get(items.size() / 2);
+        final File                     changedFile = changedItem.getVersions().first().getContentFile();
+        
+        Files.write(changedFile.toPath(), new byte[FILES_PER_DIR * 2]);
+        items.set(items.size() / 2, item(changedFile, changedItem.getRelativePathOfParent()));
+        
+        manifest.open(sourceDirectory, TARGET, false, false);
+        
+        for (final FilesystemBulkImportItem item : items)
+        {
+            assertEquals(item.getName(), item.getVersions().first().getContentFile().equals(changedFile), manifest.isNewOrChanged(item));
+        }
+        
+        manifest.abort();
+    }
+    
+    
+    @Test
+    public void abortLeavesThePreviousManifestInPlace()
+    {
+        final DeltaManifest manifest = new DeltaManifest(manifestDirectory.getAbsolutePath(), CHUNK_SIZE);
+        
+        manifest.open(sourceDirectory, TARGET, false, false);
+        countNewOrChanged(manifest);
+        manifest.abort();
+        
+        manifest.open(sourceDirectory, TARGET, false, false);
+        assertEquals(items.size(), countNewOrChanged(manifest));
+        manifest.abort();
+    }
+    
+    
+    @Test
+    public void directoriesSkippedOnResumeAreCarriedForward()
+    {
+        final DeltaManifest manifest         = new DeltaManifest(manifestDirectory.getAbsolutePath(), CHUNK_SIZE);
+        final String        skippedDirectory = "directory-" + NUMBER_OF_DIRS / 2;   // Spans more than one index block
+        
+        importAndCommit(manifest, TARGET, false, false);
+        
+        // A resumed import that skips a directory a previous run completed (once in each scanning phase)
+        manifest.open(sourceDirectory, TARGET, false, false);
+        manifest.carryForward(skippedDirectory);
+        
+        for (final FilesystemBulkImportItem item : items)
+        {
+            if (!skippedDirectory.equals(item.getRelativePathOfParent()))
+            {
+                manifest.isNewOrChanged(item);
+            }
+        }
+        
+        manifest.carryForward(skippedDirectory);
+        manifest.commit();
+        
+        // The next delta import mustn't re-import the skipped directory's contents
+        manifest.open(sourceDirectory, TARGET, false, false);
+        assertEquals(0, countNewOrChanged(manifest));
+        manifest.abort();
+    }
+    
+    
+    @Test
+    public void manifestsAreSpecificToTargetAndFlags()
+    {
+        final DeltaManifest manifest = new DeltaManifest(manifestDirectory.getAbsolutePath(), CHUNK_SIZE);
+        
+        importAndCommit(manifest, TARGET, false, false);
+        
+        manifest.open(sourceDirectory, OTHER_TARGET, false, false);
+        assertEquals(items.size(), countNewOrChanged(manifest));
+        manifest.abort();
+        
+        manifest.open(sourceDirectory, TARGET, true, false);
+        assertEquals(items.size(), countNewOrChanged(manifest));
+        manifest.abort();
+        
+        manifest.open(sourceDirectory, TARGET, false, true);
+        assertEquals(items.size(), countNewOrChanged(manifest));
+        manifest.abort();
+    }
+    
+    
+    private void importAndCommit(final DeltaManifest manifest, final String target, final boolean replaceExisting, final boolean metadataOnly)
+    {
+        manifest.open(sourceDirectory, target, replaceExisting, metadataOnly);
+        countNewOrChanged(manifest);
+        manifest.commit();
+    }
+    
+    
+    private int countNewOrChanged(final DeltaManifest manifest)
+    {
+        int result = 0;
+        
+        for (final FilesystemBulkImportItem item : items)
+        {
+            if (manifest.isNewOrChanged(item)) result++;
+        }
+        
+        return(result);
+    }
+    
+    
+    private FilesystemBulkImportItem item(final File contentFile, final String relativePathOfParent)
+    {
+        final NavigableSet<FilesystemBulkImportItemVersion> versions = new TreeSet<>();
+        
+        versions.add(new FilesystemBulkImportItemVersion(serviceRegistry, null, null, BulkImportItemVersion.VERSION_HEAD, contentFile, null));
+        
+        return(new FilesystemBulkImportItem(contentFile.getName(), contentFile.isDirectory(), relativePathOfParent, versions));
+    }
+    
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2007 Peter Monks
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * This file is part of an unsupported extension to Alfresco.
+ * 
+ */
+
+package org.alfresco.extension.bulkimport.source.fs;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+/**
+ * Unit tests for <code>ExternalSorter</code>.
+ *
+ * @author Peter Monks (pmonks@gmail.com)
+ */
+public class ExternalSorterTest
+{
+    private final static long RANDOM_SEED = 42L;
+    
+    
+    @Test
+    public void emptySorterProducesNothing()
+        throws IOException
+    {
+        try (final ExternalSorter sorter = new ExternalSorter(10))
+        {
+            assertFalse(sorter.sorted().hasNext());
+        }
+    }
+    
+    
+    @Test
+    public void sortsInMemoryWhenEverythingFits()
+        throws IOException
+    {
+        assertSorts(randomStrings(99), 100);
+    }
+    
+    
+    @Test
+    public void spillsAndMergesWhenChunkSizeIsExceeded()
+        throws IOException
+    {
+        assertSorts(randomStrings(1000), 64);
+    }
+    
+    
+    @Test
+    public void mergesWhenLastChunkIsExactlyFull()
+        throws IOException
+    {
+        assertSorts(randomStrings(640), 64);
+    }
+    
+    
+    @Test
+    public void mergesSingleValueChunks()
+        throws IOException
+    {
+        assertSorts(randomStrings(50), 1);
+    }
+    
+    
+    @Test
+    public void preservesDuplicatesAndUnicode()
+        throws IOException
+    {
+        final List<String> values = new ArrayList<>();
+        
+        for (int i = 0; i < 10; i++)
+        {
+            values.add("duplicate");
+            values.add("\u00e9t\u00e9 " + i);
+            values.add("\u65e5\u672c\u8a9e " + i);
+            values.add("\ud83d\ude00 " + i);   // Supplementary character
+            values.add("");
+        }
+        
+        assertSorts(values, 7);
+    }
+    
+    
+    @Test(expected = NoSuchElementException.class)
+    public void mergingIteratorIsExhausted()
+        throws IOException
+    {
+        try (final ExternalSorter sorter = new ExternalSorter(1))
+        {
+            sorter.add("a");
+            sorter.add("b");
+            
+            final Iterator<String> sorted = sorter.sorted();
+            
+            sorted.next();
+            sorted.next();
+            sorted.next();
+        }
+    }
+    
+    
+    private void assertSorts(final List<String> values, final int chunkSize)
+        throws IOException
+    {
+        final List<String> expected = new ArrayList<>(values);
+        final List<String> actual   = new ArrayList<>(values.size());
+        
+        Collections.sort(expected);
+        
+        try (final ExternalSorter sorter = new ExternalSorter(chunkSize))
+        {
+            for (final String value : values)
+            {
+                sorter.add(value);
+            }
+            
+            final Iterator<String> sorted = sorter.sorted();
+            
+            while (sorted.hasNext())
+            {
+                actual.add(sorted.next());
+            }
+        }
+        
+        assertEquals(expected, actual);
+    }
+    
+    
+    private List<String> randomStrings(final int count)
+    {
+        final Random       random = new Random(RANDOM_SEED);
+        final List<String> result = new ArrayList<>(count);
+        
+        for (int i = 0; i < count; i++)
+        {
+            result.add("directory-" + random.nextInt(count / 2 + 1) + "/file-" + random.nextInt(count) + ".txt");
+        }
+        
+        return(result);
+    }
+    
+}
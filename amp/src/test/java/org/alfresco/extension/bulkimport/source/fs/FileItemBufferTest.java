@@ -0,0 +1,254 @@
+/*
+ * Copyright (C) 2007 Peter Monks
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * This file is part of an unsupported extension to Alfresco.
+ * 
+ */
+
+package org.alfresco.extension.bulkimport.source.fs;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import org.alfresco.repo.content.ContentStore;
+import org.alfresco.service.ServiceRegistry;
+import org.alfresco.service.namespace.NamespaceService;
+
+import org.alfresco.extension.bulkimport.BatchingBulkImportCallback;
+import org.alfresco.extension.bulkimport.BulkImportCallback;
+import org.alfresco.extension.bulkimport.source.BulkImportItem;
+import org.alfresco.extension.bulkimport.source.BulkImportSourceStatus;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+
+/**
+ * Unit tests for <code>FileItemBuffer</code>.
+ *
+ * @author Peter Monks (pmonks@gmail.com)
+ */
+public class FileItemBufferTest
+{
+    private final static int NUMBER_OF_FILES     = 20;
+    private final static int MAX_ITEMS_IN_MEMORY = 5;   // Small enough that most of the files are spilled to disk
+    
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+    
+    private ServiceRegistry                serviceRegistry;
+    private BulkImportSourceStatus         status;
+    private DirectoryAnalyser              directoryAnalyser;
+    private List<FilesystemBulkImportItem> items;
+    
+    
+    @Before
+    public void createSource()
+        throws IOException
+    {
+        final NamespaceService namespaceService = mock(NamespaceService.class);
+        
+        when(namespaceService.getPrefixes(anyString())).thenReturn(Arrays.asList(NamespaceService.CONTENT_MODEL_PREFIX));
+        
+        serviceRegistry = mock(ServiceRegistry.class);
+        when(serviceRegistry.getNamespaceService()).thenReturn(namespaceService);
+        
+        status            = mock(BulkImportSourceStatus.class);
+        directoryAnalyser = new DirectoryAnalyser(serviceRegistry, mock(ContentStore.class), mock(MetadataLoader.class));
+        directoryAnalyser.init(status);
+        
+        final File directory = temporaryFolder.newFolder("source", "directory");
+        
+        items = new ArrayList<>();
+        
+        for (int i = 0; i < NUMBER_OF_FILES; i++)
+        {
+            final String                                        name     = "file-" + i + ".txt";
+            final NavigableSet<FilesystemBulkImportItemVersion> versions = new TreeSet<>();
+            
+            versions.add(version(BigDecimal.ONE, new File(directory, name + ".v1"), null));
+            versions.add(version(FilesystemBulkImportItemVersion.VERSION_HEAD, new File(directory, name), new File(directory, name + ".metadata.properties.xml")));
+            
+            // Alternate between the root of the source and a subdirectory
+            items.add(new FilesystemBulkImportItem(name, false, i % 2 == 0 ? null : directory.getName(), versions));
+        }
+    }
+    
+    
+    @Test
+    public void itemsHeldInMemoryAreReplayedInOrder()
+        throws InterruptedException
+    {
+        final FileItemBuffer buffer = new FileItemBuffer(directoryAnalyser, NUMBER_OF_FILES);
+        
+        addAll(buffer);
+        assertEquals(items, replay(buffer));
+    }
+    
+    
+    @Test
+    public void itemsHeldInMemoryAreSubmittedInBulkWhenTheCallbackSupportsIt()
+        throws InterruptedException
+    {
+        final FileItemBuffer       buffer    = new FileItemBuffer(directoryAnalyser, NUMBER_OF_FILES);
+        final List<BulkImportItem> submitted = new ArrayList<>();
+        
+        addAll(buffer);
+        buffer.replay(status, new BatchingBulkImportCallback()
+        {
+            @Override
+            @SuppressWarnings("rawtypes")
+            public void submit(final BulkImportItem item)
+            {
+                fail("Items were submitted one at a time.");
+            }
+            
+            @Override
+            @SuppressWarnings("rawtypes")
+            public void submitAll(final Collection<? extends BulkImportItem> items)
+            {
+                submitted.addAll(items);
+            }
+        });
+        
+        assertEquals(items, submitted);
+    }
+    
+    
+    @Test
+    public void spilledItemsAreReplayedInOrder()
+        throws InterruptedException
+    {
+        final FileItemBuffer buffer = new FileItemBuffer(directoryAnalyser, MAX_ITEMS_IN_MEMORY);
+        
+        addAll(buffer);
+        
+        final List<BulkImportItem> replayed = replay(buffer);
+        
+        assertEquals(items.size(), replayed.size());
+        
+        for (int i = 0; i < items.size(); i++)
+        {
+            assertSameItem(items.get(i), (FilesystemBulkImportItem)replayed.get(i));
+        }
+    }
+    
+    
+    @Test
+    public void bufferIsEmptyAfterReplay()
+        throws InterruptedException
+    {
+        final FileItemBuffer buffer = new FileItemBuffer(directoryAnalyser, MAX_ITEMS_IN_MEMORY);
+        
+        addAll(buffer);
+        replay(buffer);
+        assertTrue(replay(buffer).isEmpty());
+    }
+    
+    
+    @Test
+    public void clearDiscardsBufferedItems()
+        throws InterruptedException
+    {
+        final FileItemBuffer buffer = new FileItemBuffer(directoryAnalyser, MAX_ITEMS_IN_MEMORY);
+        
+        addAll(buffer);
+        buffer.clear();
+        assertTrue(replay(buffer).isEmpty());
+    }
+    
+    
+    @Test(expected = InterruptedException.class)
+    public void replayStopsWhenTheImportIsStopping()
+        throws InterruptedException
+    {
+        final FileItemBuffer buffer = new FileItemBuffer(directoryAnalyser, MAX_ITEMS_IN_MEMORY);
+        
+        addAll(buffer);
+        when(status.isStopping()).thenReturn(true);
+        replay(buffer);
+    }
+    
+    
+    private void addAll(final FileItemBuffer buffer)
+    {
+        for (final FilesystemBulkImportItem item : items)
+        {
+            buffer.add(item);
+        }
+    }
+    
+    
+    private List<BulkImportItem> replay(final FileItemBuffer buffer)
+        throws InterruptedException
+    {
+        final List<BulkImportItem> result = new ArrayList<>();
+        
+        buffer.replay(status, new BulkImportCallback()
+        {
+            @Override
+            @SuppressWarnings("rawtypes")
+            public void submit(final BulkImportItem item)
+            {
+                result.add(item);
+            }
+        });
+        
+        return(result);
+    }
+    
+    
+    private void assertSameItem(final FilesystemBulkImportItem expected, final FilesystemBulkImportItem actual)
+    {
+        assertEquals(expected.getName(),                 actual.getName());
+        assertEquals(expected.getRelativePathOfParent(), actual.getRelativePathOfParent());
+        assertEquals(expected.isDirectory(),             actual.isDirectory());
+        assertEquals(expected.getVersions().size(),      actual.getVersions().size());
+        
+        final Iterator<FilesystemBulkImportItemVersion> expectedVersions = expected.getVersions().iterator();
+        final Iterator<FilesystemBulkImportItemVersion> actualVersions   = actual.getVersions().iterator();
+        
+        while (expectedVersions.hasNext())
+        {
+            final FilesystemBulkImportItemVersion expectedVersion = expectedVersions.next();
+            final FilesystemBulkImportItemVersion actualVersion   = actualVersions.next();
+            
+            assertEquals(0, expectedVersion.getVersionNumber().compareTo(actualVersion.getVersionNumber()));
+            assertEquals(expectedVersion.getContentFile(),  actualVersion.getContentFile());
+            assertEquals(expectedVersion.getMetadataFile(), actualVersion.getMetadataFile());
+        }
+    }
+    
+    
+    private FilesystemBulkImportItemVersion version(final BigDecimal versionNumber, final File contentFile, final File metadataFile)
+    {
+        return(new FilesystemBulkImportItemVersion(serviceRegistry, null, null, versionNumber, contentFile, metadataFile));
+    }
+    
+}
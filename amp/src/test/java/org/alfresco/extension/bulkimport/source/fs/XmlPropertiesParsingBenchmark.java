@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2007 Peter Monks
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * This file is part of an unsupported extension to Alfresco.
+ * 
+ */
+
+package org.alfresco.extension.bulkimport.source.fs;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import org.alfresco.service.ServiceRegistry;
+
+import static org.mockito.Mockito.*;
+
+
+/**
+ * This class benchmarks the streaming (StAX) parser used by
+ * <code>XmlPropertiesFileMetadataLoader</code> against the
+ * <code>Properties.loadFromXML</code> implementation it replaced, over the
+ * metadata files in the <code>test/data/SinglePassTests/MetadataTests</code>
+ * directory.  Each operation parses every metadata file once.
+ * 
+ * Run it (from the amp directory) via:
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=org.alfresco.extension.bulkimport.source.fs.XmlPropertiesParsingBenchmark
+ * </pre>
+ * 
+ * A different directory of metadata files can be benchmarked by setting the
+ * <code>metadataDirectory</code> system property.
+ *
+ * @author Peter Monks (pmonks@gmail.com)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(value = 1, jvmArgsAppend = "-Dorg.apache.commons.logging.Log=org.apache.commons.logging.impl.NoOpLog")
+public class XmlPropertiesParsingBenchmark
+{
+    private final static String PROPERTY_METADATA_DIRECTORY = "metadataDirectory";
+    private final static String DEFAULT_METADATA_DIRECTORY  = "../test/data/SinglePassTests/MetadataTests";
+    private final static String METADATA_FILE_SUFFIX        = ".metadata.properties.xml";
+    
+    private XmlPropertiesFileMetadataLoader loader;
+    private File[]                          metadataFiles;
+    
+    
+    @Setup(Level.Trial)
+    public void findMetadataFiles()
+    {
+        final File metadataDirectory = new File(System.getProperty(PROPERTY_METADATA_DIRECTORY, DEFAULT_METADATA_DIRECTORY));
+        
+        metadataFiles = metadataDirectory.listFiles(new FileFilter()
+        {
+            @Override
+            public boolean accept(final File file)
+            {
+                return(file.isFile() && file.getName().endsWith(METADATA_FILE_SUFFIX));
+            }
+        });
+        
+        if (metadataFiles == null || metadataFiles.length == 0)
+        {
+            throw new IllegalStateException("No metadata files found in " + metadataDirectory.getAbsolutePath() + ".");
+        }
+        
+        Arrays.sort(metadataFiles);
+        loader = new XmlPropertiesFileMetadataLoader(mock(ServiceRegistry.class));
+    }
+    
+    
+    @Benchmark
+    public void stax(final Blackhole blackhole)
+    {
+        for (final File metadataFile : metadataFiles)
+        {
+            blackhole.consume(loader.loadMetadataFromFile(metadataFile));
+        }
+    }
+    
+    
+    @Benchmark
+    public void loadFromXml(final Blackhole blackhole)
+        throws IOException
+    {
+        for (final File metadataFile : metadataFiles)
+        {
+            final Properties result = new Properties();
+            
+            try (final InputStream metadataInputStream = new BufferedInputStream(new FileInputStream(metadataFile)))
+            {
+                result.loadFromXML(metadataInputStream);
+            }
+            
+            blackhole.consume(result);
+        }
+    }
+    
+    
+    public static void main(final String[] args)
+        throws RunnerException
+    {
+        new Runner(new OptionsBuilder().include(XmlPropertiesParsingBenchmark.class.getSimpleName()).build()).run();
+    }
+    
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2007 Peter Monks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * This file is part of an unsupported extension to Alfresco.
+ * 
+ */
+
+
+package org.alfresco.extension.bulkimport;
+
+import java.util.Collection;
+
+import org.alfresco.extension.bulkimport.source.BulkImportItem;
+
+
+/**
+ * This optional interface is implemented by <code>BulkImportCallback</code>s
+ * that can accept many items at once.  It allows sources that naturally
+ * produce items in bulk to submit them more cheaply than one at a time.
+ * 
+ * Sources should check for it, and fall back to calling <code>submit</code>
+ * for each item when the callback doesn't implement it.
+ *
+ * @author Peter Monks (pmonks@gmail.com)
+ *
+ */
+public interface BatchingBulkImportCallback
+    extends BulkImportCallback
+{
+    /**
+     * Submits all of the given items for import, in iteration order.  This is
+     * equivalent to calling <code>submit</code> for each item.
+     * 
+     * The same notes as for <code>submit</code> apply.
+     * 
+     * @param items The items being submitted <i>(must not be null, and must not contain nulls)</i>.
+     * @throws InterruptedException If the thread is interrupted.
+     */
+    @SuppressWarnings("rawtypes")
+    void submitAll(Collection<? extends BulkImportItem> items)
+        throws InterruptedException;
+    
+}
@@ -34,8 +34,9 @@ public interface BulkImportCallback
      * 
      * Notes:
      * <ol>
-     * <li>The implementation of this method is synchronized, and therefore
-     * thread safe.</li>
+     * <li>The implementation of this method is thread safe. Each calling
+     * thread assembles its own batches, so multi-threaded sources may call it
+     * concurrently without contending with one another.</li>
      * <li>This method may block (e.g. if the import work queue is full).</li>
      * <li>The caller of this method <b>must</b> let the
      * <code>InterruptedException</code> percolate up the call stack <b>without
@@ -43,6 +43,13 @@ public interface BulkImportStatus
     public final static String TARGET_COUNTER_ASPECTS_ASSOCIATED           = "Aspects associated";
     public final static String TARGET_COUNTER_METADATA_PROPERTIES_IMPORTED = "Metadata properties imported";
     public final static String TARGET_COUNTER_NODES_SKIPPED                = "Nodes skipped";
+    public final static String TARGET_COUNTER_NODES_FAILED                 = "Nodes failed";
+    public final static String TARGET_COUNTER_NODES_RESUMED                = "Nodes previously imported";
+    public final static String TARGET_COUNTER_BATCH_WEIGHT_ADJUSTMENTS     = "Batch weight adjustments";
+    public final static String TARGET_COUNTER_THREAD_POOL_ADJUSTMENTS      = "Thread pool size adjustments";
+    public final static String TARGET_COUNTER_TRANSACTION_RETRIES          = "Transaction retries";
+    public final static String TARGET_COUNTER_CONTENT_UNCHANGED            = "Unchanged content skipped";
+    public final static String TARGET_COUNTER_CONTENT_REWRITES_AVOIDED     = "Content rewrites avoided on retry";
 
     
     public final static String[] DEFAULT_TARGET_COUNTERS = { TARGET_COUNTER_BATCHES_SUBMITTED,
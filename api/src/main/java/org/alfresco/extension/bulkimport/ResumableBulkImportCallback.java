@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2007 Peter Monks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * This file is part of an unsupported extension to Alfresco.
+ * 
+ */
+
+package org.alfresco.extension.bulkimport;
+
+
+/**
+ * This optional interface is implemented by <code>BulkImportCallback</code>s
+ * that can resume an import that was interrupted (e.g. by a restart).  It
+ * allows sources to skip entire directories that were completely imported by
+ * a previous run of the same import, without scanning them again.
+ * 
+ * Directories are identified by their source-relative paths, in the same form
+ * as <code>BulkImportItem.getRelativePathOfParent()</code>.
+ *
+ * @author Peter Monks (pmonks@gmail.com)
+ *
+ */
+public interface ResumableBulkImportCallback
+    extends BulkImportCallback
+{
+    /**
+     * @param relativePath The source-relative path of a directory <i>(must not be null, empty or blank)</i>.
+     * @return True if every item beneath the given directory (including its subdirectories and their contents) was
+     *         imported by a previous run of this import, in which case the directory needn't be scanned.
+     */
+    boolean isDirectoryCompleted(String relativePath);
+    
+    
+    /**
+     * Called by the source once it has submitted every item beneath the given directory (including its
+     * subdirectories and their contents), so that the directory can be recorded as complete once those items have
+     * been imported.  Sources that don't call this can still be resumed, but less efficiently.
+     * 
+     * @param relativePath The source-relative path of the directory <i>(must not be null, empty or blank)</i>.
+     */
+    void directorySubmitted(String relativePath);
+    
+}
@@ -42,6 +42,13 @@ import org.alfresco.extension.bulkimport.BulkImportCallback;
  */
 public interface BulkImportSource
 {
+    /**
+     * The parameter, added to the parameters passed to {@link #init(BulkImportSourceStatus, Map)}, that contains the
+     * nodeRef of the target space of the import.
+     */
+    public final static String PARAMETER_TARGET = "targetNodeRef";
+
+
     /**
      * @return The human readable name of this bulk import source <i>(must not be null, empty or blank)</i>.
      */
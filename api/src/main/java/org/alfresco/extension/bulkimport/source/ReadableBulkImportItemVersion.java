@@ -0,0 +1,46 @@
+/*
+ * Copyright (C) 2007 Peter Monks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * This file is part of an unsupported extension to Alfresco.
+ * 
+ */
+
+
+package org.alfresco.extension.bulkimport.source;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * This optional interface may be implemented by <code>BulkImportItemVersion</code>s
+ * whose content can be read directly, rather than only written into a
+ * <code>ContentWriter</code>.  It allows the importer to inspect the content
+ * (e.g. to checksum it) without first copying it somewhere.
+ *
+ * @author Peter Monks (pmonks@gmail.com)
+ *
+ */
+public interface ReadableBulkImportItemVersion
+    extends BulkImportItemVersion
+{
+    /**
+     * Opens the content of this version for reading.  The caller is responsible for closing the stream.
+     * 
+     * @return An input stream over the content of this version <i>(will not be null)</i>.
+     * @throws IOException If the content cannot be opened.
+     */
+    InputStream getContentInputStream()
+        throws IOException;
+}